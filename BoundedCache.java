@@ -0,0 +1,194 @@
+import java.util.*;
+
+// Map with a fixed number of entries and one of two eviction policies:
+//
+//    LRU       drops the least recently used entry
+//    TINY_LFU  W-TinyLFU: new entries go through a small LRU window; an
+//              entry leaving the window only gets into the main area if
+//              a frequency sketch says it was asked for more often than
+//              the entry it would push out. The main area is a segmented
+//              LRU, where entries hit a second time are protected.
+//
+// TinyLFU keeps entries that are asked for again and again even when a
+// burst of one-off keys passes through, which plain LRU would let flush
+// them out. Not thread safe.
+public class BoundedCache<K, V> {
+    public enum Policy { LRU, TINY_LFU }
+
+    private final int capacity;
+    private final Policy policy;
+    private long evictions;
+
+    // LRU, or TinyLFU's window
+    private final LinkedHashMap<K, V> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final int windowCapacity;
+    // TinyLFU's main area: entries seen once there, and entries hit again
+    private final LinkedHashMap<K, V> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, V> protectedArea = new LinkedHashMap<>(16, 0.75f, true);
+    private final int protectedCapacity;
+    private final FrequencySketch sketch;
+
+    public BoundedCache(int capacity, Policy policy) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Cache capacity must be at least 1: " + capacity);
+        this.capacity = capacity;
+        this.policy = policy;
+        if (policy == Policy.LRU) {
+            windowCapacity = capacity;
+            protectedCapacity = 0;
+            sketch = null;
+        } else {
+            windowCapacity = Math.max(1, capacity / 100);
+            protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+            sketch = new FrequencySketch(capacity);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int size() {
+        return window.size() + probation.size() + protectedArea.size();
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    // Null when absent
+    public V get(K key) {
+        if (sketch != null)
+            sketch.increment(key);
+        V value = window.get(key);
+        if (value != null || policy == Policy.LRU)
+            return value;
+        value = protectedArea.get(key);
+        if (value != null)
+            return value;
+        value = probation.remove(key);
+        if (value != null) {
+            protectedArea.put(key, value);
+            if (protectedArea.size() > protectedCapacity)
+                demote();
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        if (protectedArea.containsKey(key)) {
+            protectedArea.put(key, value);
+            return;
+        }
+        if (probation.containsKey(key)) {
+            probation.put(key, value);
+            return;
+        }
+        window.put(key, value);
+        if (window.size() <= windowCapacity)
+            return;
+
+        Map.Entry<K, V> candidate = eldest(window);
+        window.remove(candidate.getKey());
+        if (policy == Policy.LRU || capacity == windowCapacity) {
+            evictions++;
+            return;
+        }
+        if (probation.size() + protectedArea.size() < capacity - windowCapacity) {
+            probation.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+        // The main area is full: the rarer of the two goes
+        LinkedHashMap<K, V> victims = probation.isEmpty() ? protectedArea : probation;
+        Map.Entry<K, V> victim = eldest(victims);
+        evictions++;
+        if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+            victims.remove(victim.getKey());
+            probation.put(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    public void clear() {
+        window.clear();
+        probation.clear();
+        protectedArea.clear();
+    }
+
+    // Moves the least recently used protected entry back to probation
+    private void demote() {
+        Map.Entry<K, V> eldest = eldest(protectedArea);
+        protectedArea.remove(eldest.getKey());
+        probation.put(eldest.getKey(), eldest.getValue());
+    }
+
+    private static <K, V> Map.Entry<K, V> eldest(LinkedHashMap<K, V> map) {
+        return map.entrySet().iterator().next();
+    }
+
+    // Count-min sketch of how often keys were asked for: four rows of
+    // counters that saturate at 15, read as the smallest of a key's four.
+    // All counters are halved every ten accesses per entry of capacity, so
+    // keys that were popular long ago fade out.
+    static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX = 15;
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int resetAfter;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity) * 2 - 1);
+            counters = new byte[ROWS][width];
+            mask = width - 1;
+            resetAfter = 10 * Math.max(16, capacity);
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int row = 0; row < ROWS; row++) {
+                int index = index(hash, row);
+                if (counters[row][index] < MAX) {
+                    counters[row][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= resetAfter)
+                halve();
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int min = MAX;
+            for (int row = 0; row < ROWS; row++)
+                min = Math.min(min, counters[row][index(hash, row)]);
+            return min;
+        }
+
+        private void halve() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; i++)
+                    row[i] >>= 1;
+            }
+            additions /= 2;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * (0x9E3779B9 + 2 * row * 0x632BE5AB);
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 17;
+            hash *= 0xED5AD4BB;
+            hash ^= hash >>> 11;
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.*;
+
+// Collects WRITE output as text, one value per line, in a reused char
+// buffer and hands it to the writer a batch at a time instead of per value
+public class BufferedSink implements OutputPort {
+    private final Writer out;
+    private final char[] buffer;
+    private int length;
+
+    public BufferedSink(Writer out) {
+        this(out, 8192);
+    }
+
+    public BufferedSink(Writer out, int capacity) {
+        this.out = out;
+        this.buffer = new char[Math.max(capacity, 16)];
+    }
+
+    @Override
+    public void write(int value) {
+        // Longest int plus sign and newline
+        if (buffer.length - length < 12)
+            drain();
+
+        if (value < 0) {
+            buffer[length++] = '-';
+        } else {
+            value = -value;
+        }
+        // Digits are produced from a negative value so Integer.MIN_VALUE works
+        int start = length;
+        do {
+            buffer[length++] = (char) ('0' - value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            char c = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = c;
+        }
+        buffer[length++] = '\n';
+    }
+
+    @Override
+    public void flush() {
+        drain();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void drain() {
+        try {
+            out.write(buffer, 0, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        length = 0;
+    }
+}
@@ -0,0 +1,395 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+// Remembers what each .sml source compiled to, so that an unchanged source
+// isn't compiled and written out again. A source is up to date when the
+// digest of its text, Compiler.VERSION and the compiler's settings matches
+// the recorded one, and its .mach and image are still the files written
+// then, going by size and modification time. Touching a source without
+// changing it keeps it up to date; editing it and undoing the edit does
+// too.
+//
+// A record also holds what the outputs don't: the symbol and label tables
+// and the warnings, so an up to date program is rebuilt from its image.
+// Records live in one text file:
+//
+//    source <path>
+//    key <digest>
+//    mach <size> <modified ms>
+//    image <size> <modified ms>
+//    instructions <count>
+//    symbol <name> <address>
+//    label <name> <address>
+//    warning <text>
+//    end
+public class BuildCache {
+    public static final String FILE_NAME = ".smlcache";
+
+    private static final String HEADER = "# SML build cache 1";
+
+    private final Path file;
+    private final Map<Path, Entry> entries = new HashMap<>();
+    private long hits;
+    private long misses;
+
+    private static final class Entry {
+        String key;
+        long machSize, machModified;
+        long imageSize, imageModified;
+        int instructions;
+        final Map<String, Integer> symbols = new LinkedHashMap<>();
+        final Map<String, Integer> labels = new LinkedHashMap<>();
+        final List<String> warnings = new ArrayList<>();
+    }
+
+    // One source's build: its program, and how it got it
+    public static final class Build {
+        private final CompiledProgram program;
+        private final boolean upToDate;
+        private final Map<String, Integer> movedLabels;
+
+        Build(CompiledProgram program, boolean upToDate, Map<String, Integer> movedLabels) {
+            this.program = program;
+            this.upToDate = upToDate;
+            this.movedLabels = Collections.unmodifiableMap(movedLabels);
+        }
+
+        public CompiledProgram getProgram() {
+            return program;
+        }
+
+        // True when nothing was compiled or written
+        public boolean isUpToDate() {
+            return upToDate;
+        }
+
+        // Labels at another address than in the previous build, with their
+        // new address; labels that are new or gone aren't included
+        public Map<String, Integer> getMovedLabels() {
+            return movedLabels;
+        }
+    }
+
+    private BuildCache(Path file) {
+        this.file = file;
+    }
+
+    // The cache kept in file; a missing or unreadable file starts it empty
+    public static BuildCache open(Path file) {
+        BuildCache cache = new BuildCache(file);
+        try {
+            cache.load();
+        } catch (IOException | RuntimeException e) {
+            cache.entries.clear();
+        }
+        return cache;
+    }
+
+    // Where the .mach export of a source goes
+    public static Path machFile(Path source) {
+        return Paths.get(base(source) + ".mach");
+    }
+
+    public static Path imageFile(Path source) {
+        return Paths.get(base(source) + ImageFile.EXTENSION);
+    }
+
+    private static String base(Path source) {
+        String name = source.toString();
+        return name.endsWith(".sml") ? name.substring(0, name.length() - ".sml".length()) : name;
+    }
+
+    // Compiles source and writes its outputs, unless it is up to date
+    public Build build(Compiler compiler, Path source) throws IOException, CompileException {
+        Path path = source.toAbsolutePath().normalize();
+        byte[] text = Files.readAllBytes(path);
+        String key = key(compiler, text);
+        Path mach = machFile(path);
+        Path image = imageFile(path);
+
+        Entry previous;
+        synchronized (this) {
+            previous = entries.get(path);
+        }
+        if (previous != null && previous.key.equals(key) && matches(mach, previous.machSize, previous.machModified)
+                && matches(image, previous.imageSize, previous.imageModified)) {
+            CompiledProgram program = restore(previous, image);
+            if (program != null) {
+                synchronized (this) {
+                    hits++;
+                }
+                return new Build(program, true, Collections.emptyMap());
+            }
+        }
+
+        CompiledProgram program;
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(text), StandardCharsets.UTF_8)) {
+            program = compiler.compile(reader);
+        }
+        program.writeText(mach);
+        program.writeImage(image);
+
+        Entry entry = new Entry();
+        entry.key = key;
+        entry.machSize = Files.size(mach);
+        entry.machModified = Files.getLastModifiedTime(mach).toMillis();
+        entry.imageSize = Files.size(image);
+        entry.imageModified = Files.getLastModifiedTime(image).toMillis();
+        entry.instructions = program.getMachineCode().size();
+        entry.symbols.putAll(program.getSymbols());
+        entry.labels.putAll(program.getLabels());
+        entry.warnings.addAll(program.getWarnings());
+
+        Map<String, Integer> moved = new TreeMap<>();
+        if (previous != null) {
+            program.getLabels().forEach((label, address) -> {
+                Integer old = previous.labels.get(label);
+                if (old != null && !old.equals(address))
+                    moved.put(label, address);
+            });
+        }
+        synchronized (this) {
+            misses++;
+            entries.put(path, entry);
+        }
+        return new Build(program, false, moved);
+    }
+
+    // Drops the record of a source that is gone
+    public synchronized void forget(Path source) {
+        entries.remove(source.toAbsolutePath().normalize());
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void save() throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(HEADER);
+        for (Map.Entry<Path, Entry> record : new TreeMap<>(entries).entrySet()) {
+            Entry entry = record.getValue();
+            lines.add("source " + record.getKey());
+            lines.add("key " + entry.key);
+            lines.add("mach " + entry.machSize + " " + entry.machModified);
+            lines.add("image " + entry.imageSize + " " + entry.imageModified);
+            lines.add("instructions " + entry.instructions);
+            entry.symbols.forEach((name, address) -> lines.add("symbol " + name + " " + address));
+            entry.labels.forEach((name, address) -> lines.add("label " + name + " " + address));
+            entry.warnings.forEach(warning -> lines.add("warning " + warning));
+            lines.add("end");
+        }
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), "build", ".tmp");
+        try {
+            Files.write(temp, lines, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file))
+            return;
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER))
+            return;
+        Path source = null;
+        Entry entry = null;
+        for (String line : lines.subList(1, lines.size())) {
+            int space = line.indexOf(' ');
+            String field = space < 0 ? line : line.substring(0, space);
+            String value = space < 0 ? "" : line.substring(space + 1);
+            String[] parts = value.split(" ");
+            switch (field) {
+                case "source":
+                    source = Paths.get(value);
+                    entry = new Entry();
+                    break;
+                case "key":
+                    entry.key = value;
+                    break;
+                case "mach":
+                    entry.machSize = Long.parseLong(parts[0]);
+                    entry.machModified = Long.parseLong(parts[1]);
+                    break;
+                case "image":
+                    entry.imageSize = Long.parseLong(parts[0]);
+                    entry.imageModified = Long.parseLong(parts[1]);
+                    break;
+                case "instructions":
+                    entry.instructions = Integer.parseInt(value);
+                    break;
+                case "symbol":
+                    entry.symbols.put(parts[0], Integer.parseInt(parts[1]));
+                    break;
+                case "label":
+                    entry.labels.put(parts[0], Integer.parseInt(parts[1]));
+                    break;
+                case "warning":
+                    entry.warnings.add(value);
+                    break;
+                case "end":
+                    if (entry.key != null)
+                        entries.put(source, entry);
+                    entry = null;
+                    break;
+                default:
+                    throw new IOException(file + ": unknown field " + field);
+            }
+        }
+    }
+
+    private static String key(Compiler compiler, byte[] text) {
+        byte[] settings = ("sml " + Compiler.VERSION + " " + compiler.getMemorySize() + " "
+                + compiler.getOptimizationLevel() + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] all = Arrays.copyOf(settings, settings.length + text.length);
+        System.arraycopy(text, 0, all, settings.length, text.length);
+        return MachineImage.hex(MachineImage.sha256(all));
+    }
+
+    private static boolean matches(Path output, long size, long modified) throws IOException {
+        if (!Files.isRegularFile(output))
+            return false;
+        return Files.size(output) == size && Files.getLastModifiedTime(output).toMillis() == modified;
+    }
+
+    // The program as it was compiled, from its image and the record; null
+    // if the image can't be read
+    private static CompiledProgram restore(Entry entry, Path imageFile) {
+        MachineImage image;
+        try {
+            image = ImageFile.read(imageFile);
+        } catch (IOException e) {
+            return null;
+        }
+        int start = image.getStartAddress();
+        if (start + entry.instructions > image.getWordCount())
+            return null;
+        List<String> machineCode = new ArrayList<>(entry.instructions);
+        for (int i = 0; i < entry.instructions; i++)
+            machineCode.add(Integer.toString(image.getWord(start + i)));
+        return new CompiledProgram(image, machineCode, new LinkedHashMap<>(entry.symbols),
+                new LinkedHashMap<>(entry.labels),
+                new ArrayList<>(entry.warnings), RangeAnalysis.analyze(image));
+    }
+
+    private static final String[] COUNTDOWN = {
+        "jmp start",
+        "    a",
+        "    one = 1",
+        "start:",
+        "    Read a",
+        "again:",
+        "    Write a",
+        "    LoadM a",
+        "    SubtM one",
+        "    JmpZ end",
+        "    Store a",
+        "    Jmp again",
+        "end:",
+        "    Halt"
+    };
+
+    // Builds a scratch tree twice, edits, touches and watches it, and checks
+    // that exactly the changed sources are compiled each time
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("buildcache");
+        Path nested = Files.createDirectories(dir.resolve("nested"));
+        Path first = dir.resolve("first.sml");
+        Path second = nested.resolve("second.sml");
+        Files.write(first, Arrays.asList(COUNTDOWN));
+        Files.write(second, Arrays.asList(COUNTDOWN));
+        Path cacheFile = dir.resolve(FILE_NAME);
+        Compiler compiler = new Compiler();
+        int mismatches = 0;
+
+        BuildCache cache = open(cacheFile);
+        Compiler.BatchResult batch = compiler.compileDirectory(dir, java.util.concurrent.ForkJoinPool.commonPool(), cache);
+        cache.save();
+        mismatches += check("first build", batch.getPrograms().size() == 2 && batch.getUpToDate().isEmpty());
+
+        // A reopened cache knows both, and writes nothing
+        FileTime written = Files.getLastModifiedTime(machFile(first));
+        Thread.sleep(20);
+        Files.setLastModifiedTime(first, FileTime.fromMillis(System.currentTimeMillis()));
+        cache = open(cacheFile);
+        batch = compiler.compileDirectory(dir, java.util.concurrent.ForkJoinPool.commonPool(), cache);
+        mismatches += check("second build", batch.getUpToDate().size() == 2);
+        mismatches += check("outputs kept", Files.getLastModifiedTime(machFile(first)).equals(written));
+        CompiledProgram restored = batch.getPrograms().get(first);
+        CompiledProgram fresh = compiler.compile(first);
+        mismatches += check("restored program", restored.getMachineCode().equals(fresh.getMachineCode())
+                && restored.getSymbols().equals(fresh.getSymbols())
+                && restored.getLabels().equals(fresh.getLabels())
+                && Arrays.equals(restored.getImage().getWords(), fresh.getImage().getWords()));
+
+        // Other settings are another key
+        Build optimized = cache.build(new Compiler(Compiler.DEFAULT_MEMORY_SIZE, 2), first);
+        mismatches += check("settings in key", !optimized.isUpToDate());
+        cache.build(compiler, first);
+
+        // An edit compiles that source alone and reports the labels it moved
+        List<String> edited = new ArrayList<>(Arrays.asList(COUNTDOWN));
+        edited.add(2, "    two = 2");
+        Files.write(first, edited);
+        batch = compiler.compileDirectory(dir, java.util.concurrent.ForkJoinPool.commonPool(), cache);
+        mismatches += check("edited build", batch.getUpToDate().equals(Collections.singleton(second)));
+        Files.write(first, Arrays.asList(COUNTDOWN));
+        Build undone = cache.build(compiler, first);
+        mismatches += check("moved labels", undone.getMovedLabels().keySet().equals(
+                new HashSet<>(Arrays.asList("start", "again", "end"))));
+        cache.save();
+
+        // Watching: an edited source and a new directory's source get built
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        BuildCache watched = cache;
+        Thread watcher = new Thread(() -> {
+            try {
+                compiler.watchDirectory(dir, watched, log::add);
+            } catch (InterruptedException e) {
+                // stopped
+            } catch (IOException e) {
+                log.add("failed: " + e);
+            }
+        });
+        watcher.start();
+        Thread.sleep(200);
+        Files.write(second, edited);
+        Path added = Files.createDirectories(dir.resolve("added")).resolve("third.sml");
+        Files.write(added, Arrays.asList(COUNTDOWN));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (log.size() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        Thread.sleep(200);
+        watcher.interrupt();
+        watcher.join();
+        mismatches += check("watched builds", log.size() == 2 && Files.exists(imageFile(added))
+                && log.stream().noneMatch(line -> line.contains("first.sml")));
+        log.forEach(line -> System.out.println("  " + line));
+
+        try (java.util.stream.Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        System.out.println("Build cache: " + mismatches + " mismatches");
+        if (mismatches > 0)
+            System.exit(1);
+    }
+
+    private static int check(String what, boolean ok) {
+        if (!ok)
+            System.out.println("MISMATCH: " + what);
+        return ok ? 0 : 1;
+    }
+}
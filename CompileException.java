@@ -0,0 +1,16 @@
+// Raised when a source file can't be compiled
+public class CompileException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final int line;
+
+    public CompileException(String message, int line) {
+        super(message);
+        this.line = line;
+    }
+
+    // Source line of the error, counting from 1
+    public int getLine() {
+        return line;
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Result of compiling one SML source: the memory image plus the tables
+// needed to read it back
+public class CompiledProgram {
+    private final MachineImage image;
+    private final List<String> machineCode;
+    private final Map<String, Integer> symbols;
+    private final Map<String, Integer> labels;
+    private final List<String> warnings;
+    private final RangeAnalysis ranges;
+
+    CompiledProgram(MachineImage image, List<String> machineCode, Map<String, Integer> symbols,
+            Map<String, Integer> labels, List<String> warnings, RangeAnalysis ranges) {
+        this.image = image;
+        this.machineCode = Collections.unmodifiableList(machineCode);
+        this.symbols = Collections.unmodifiableMap(symbols);
+        this.labels = Collections.unmodifiableMap(labels);
+        this.warnings = Collections.unmodifiableList(warnings);
+        this.ranges = ranges;
+    }
+
+    public MachineImage getImage() {
+        return image;
+    }
+
+    public int getStartAddress() {
+        return image.getStartAddress();
+    }
+
+    // Instruction words as they appear in the .mach export
+    public List<String> getMachineCode() {
+        return machineCode;
+    }
+
+    // Variable name to data address
+    public Map<String, Integer> getSymbols() {
+        return symbols;
+    }
+
+    // Label name to instruction address
+    public Map<String, Integer> getLabels() {
+        return labels;
+    }
+
+    // Problems that didn't stop compilation, such as undefined symbols
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    // Value ranges of the image from its start address, for
+    // Processor.setRangeAnalysis
+    public RangeAnalysis getRangeAnalysis() {
+        return ranges;
+    }
+
+    public void writeImage(Path file) throws IOException {
+        ImageFile.write(file, image);
+    }
+
+    // Readable .mach export, the format Loader reads
+    public void writeText(Path file) throws IOException {
+        int start = image.getStartAddress();
+        String[] names = new String[start];
+        symbols.forEach((var, addr) -> names[addr] = var);
+
+        String wordField = "%0" + MachineFormat.of(image.getWordCount()).getWordDigits() + "d";
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file))) {
+            // Write a header comment
+            writer.println("// Variables (addresses 0-" + (start - 1) + ")");
+            
+            // Write variable initial values in order
+            for (int i = 0; i < start; i++) {
+                writer.println(String.format(wordField, image.getWord(i)) + "  // " + names[i]);
+            }
+            
+            writer.println("// Instructions (starting at address " + start + ")");
+            // Write instructions
+            for (String code : machineCode) {
+                writer.println(code);
+            }
+        }
+    }
+}
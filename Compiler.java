@@ -1,334 +1,648 @@
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
 
+// Compiles SML source into machine images. A Compiler only holds settings,
+// every compile() call works on its own state, so one instance can be
+// shared between threads.
 public class Compiler {
-    private static Map<String, Integer> symbolTable = new HashMap<>();
-    private static Map<String, String> variableInitValues = new HashMap<>();
-    private static Map<String, Integer> labelTable = new HashMap<>();
-    private static List<String> sourceLines = new ArrayList<>();
-    private static int nextDataAddress = 0; 
-    private static int instructionStartAddress = 0; 
+    public static final int DEFAULT_MEMORY_SIZE = 100;
+    // Part of every BuildCache key; bump it when the code a source compiles
+    // to changes, so cached builds are compiled again
+    public static final int VERSION = 1;
+
+    private static final long WATCH_SETTLE_MILLIS = 50;
+
+    private static final Map<String, Integer> OPCODES = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    static {
+        String[][] mnemonics = {
+            { "10", "READ" }, { "11", "WRITE" },
+            { "20", "LOAD", "LOADM" }, { "21", "STORE" }, { "22", "LOADI" },
+            { "30", "ADD", "ADDM" }, { "31", "SUBT", "SUBTM" }, { "32", "DIV", "DIVM" },
+            { "33", "MOD", "MODM" }, { "34", "MULT", "MULTM" },
+            { "35", "ADDI" }, { "36", "SUBTI" }, { "37", "DIVI" }, { "38", "MODI" }, { "39", "MULTI" },
+            { "40", "JUMP", "JMP" }, { "41", "JUMPN", "JMPN" }, { "42", "JUMPZ", "JMPZ" },
+            { "43", "HALT" }
+        };
+        for (String[] names : mnemonics)
+            for (int i = 1; i < names.length; i++)
+                OPCODES.put(names[i], Integer.parseInt(names[0]));
+    }
     
+    private final int memorySize;
+    private final MachineFormat format;
+    private final int optimizationLevel;
+
+    public Compiler() {
+        this(DEFAULT_MEMORY_SIZE, 0);
+    }
+
+    public Compiler(int memorySize) {
+        this(memorySize, 0);
+    }
+
+    // optimizationLevel 0 emits code as written; see Optimizer for 1 and 2.
+    // Memories of more than 100 words get wider operands and words, see
+    // MachineFormat.
+    public Compiler(int memorySize, int optimizationLevel) {
+        this.memorySize = memorySize;
+        this.format = MachineFormat.of(memorySize);
+        this.optimizationLevel = optimizationLevel;
+    }
+
+    public int getMemorySize() {
+        return memorySize;
+    }
+
+    public int getOptimizationLevel() {
+        return optimizationLevel;
+    }
+
     public static void main(String[] args) {
         if (args.length == 0) {
-            System.out.println("Usage: java Compiler <filename> [-d]");
+            System.out.println("Usage: java Compiler <filename | directory> [-d | -s | -t[N | j]] [-j] [-r] [-p] [-O0 | -O1 | -O2] [-m<words>] [-l<instructions>] [-w<ms>] [-f] [-watch]");
             return;
         }
 
         String inputFile = args[0];
-        boolean directRun = args.length > 1 && args[1].equals("-d");
-        boolean stepRun = args.length > 1 && args[1].equals("-s");
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(inputFile))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sourceLines.add(line);
-            }
-        } catch (IOException e) {
-            System.out.println("Error reading file: " + e.getMessage());
+        List<String> flags = Arrays.asList(args).subList(1, args.length);
+        boolean jitRun = flags.contains("-j");
+        boolean record = flags.contains("-r");
+        boolean profile = flags.contains("-p");
+        boolean directRun = flags.contains("-d") || jitRun || record || profile;
+        boolean stepRun = flags.contains("-s");
+        // -f compiles even when the build cache says the outputs are up to date
+        boolean force = flags.contains("-f");
+        boolean watch = flags.contains("-watch");
+        // -t traces every step to <name>.trace, -tN every Nth step, -tj each jump
+        String traceFlag = null;
+        for (String flag : flags) {
+            if (flag.matches("-t(j|[0-9]*)"))
+                traceFlag = flag.substring(2);
+        }
+        int optimizationLevel = 0;
+        for (String flag : flags) {
+            if (flag.matches("-O[0-2]"))
+                optimizationLevel = flag.charAt(2) - '0';
+        }
+        // -m1000 gives the machine 1000 words instead of the classic 100
+        int memorySize = DEFAULT_MEMORY_SIZE;
+        for (String flag : flags) {
+            if (flag.matches("-m[0-9]{1,8}"))
+                memorySize = Integer.parseInt(flag.substring(2));
+        }
+        // -l and -w stop a -d run after that many instructions or milliseconds
+        long instructionLimit = 0;
+        long timeLimit = 0;
+        for (String flag : flags) {
+            if (flag.matches("-l[0-9]{1,18}"))
+                instructionLimit = Long.parseLong(flag.substring(2));
+            if (flag.matches("-w[0-9]{1,12}"))
+                timeLimit = Long.parseLong(flag.substring(2));
+        }
+        if (memorySize < 1 || memorySize > MachineFormat.MAX_MEMORY_SIZE) {
+            System.out.println("Memory size must be between 1 and " + MachineFormat.MAX_MEMORY_SIZE + " words");
             return;
         }
 
-        firstPass();
-        
-        List<String> machineCode = secondPass();
-        
-        if (machineCode == null) {
-            System.out.println("Compilation failed.");
+        Compiler compiler = new Compiler(memorySize, optimizationLevel);
+        if (new File(inputFile).isDirectory()) {
+            Path dir = Paths.get(inputFile);
+            BuildCache cache = BuildCache.open(dir.resolve(BuildCache.FILE_NAME));
+            if (force)
+                cache.clear();
+            compileAll(compiler, dir, cache, !watch);
+            if (watch)
+                watchAll(compiler, dir, cache);
             return;
         }
 
-        String outputFile = inputFile.replace(".sml", ".mach");
-        try (PrintWriter writer = new PrintWriter(new FileWriter(outputFile))) {
-            // Write a header comment
-            writer.println("// Variables (addresses 0-" + (instructionStartAddress - 1) + ")");
-            
-            // Write variable initial values in order
-            for (int i = 0; i < instructionStartAddress; i++) {
-                // Find which variable has this address
-                String value = "0000";
-                for (Map.Entry<String, Integer> entry : symbolTable.entrySet()) {
-                    if (entry.getValue() == i) {
-                        value = variableInitValues.get(entry.getKey());
-                        writer.println(String.format("%04d", Integer.parseInt(value)) + "  // " + entry.getKey());
-                        break;
-                    }
-                }
-            }
-            
-            writer.println("// Instructions (starting at address " + instructionStartAddress + ")");
-            // Write instructions
-            for (String code : machineCode) {
-                writer.println(code);
-            }
+        Path source = Paths.get(inputFile);
+        Path parent = source.toAbsolutePath().getParent();
+        BuildCache cache = BuildCache.open(parent.resolve(BuildCache.FILE_NAME));
+        if (force)
+            cache.forget(source);
+        BuildCache.Build build;
+        try {
+            build = cache.build(compiler, source);
+            cache.save();
         } catch (IOException e) {
-            System.out.println("Error writing machine code: " + e.getMessage());
+            System.out.println("Error reading file: " + e.getMessage());
+            return;
+        } catch (CompileException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Compilation failed.");
             return;
         }
+        CompiledProgram program = build.getProgram();
+        program.getWarnings().forEach(System.out::println);
 
-        System.out.println("Compilation successful! Machine code saved to: " + outputFile);
+        Path outputFile = BuildCache.machFile(source);
+        Path imageFile = BuildCache.imageFile(source);
+        if (build.isUpToDate()) {
+            System.out.println("Machine code is up to date: " + outputFile);
+        } else {
+            System.out.println("Compilation successful! Machine code saved to: " + outputFile);
+            System.out.println("Binary image saved to: " + imageFile);
+        }
         System.out.println("\nSymbol Table:");
-        symbolTable.forEach((var, addr) -> System.out.println("  " + var + " -> " + addr));
+        program.getSymbols().forEach((var, addr) -> System.out.println("  " + var + " -> " + addr));
         System.out.println("\nLabel Table:");
-        labelTable.forEach((label, addr) -> System.out.println("  " + label + " -> " + addr));
+        program.getLabels().forEach((label, addr) -> System.out.println("  " + label + " -> " + addr));
 
-        // If -d or -s flag provided, load into memory and run
-        if (directRun || stepRun) {
+        // If -d, -s or -t flag provided, load into memory and run
+        if (directRun || stepRun || traceFlag != null) {
             System.out.println("\nExecuting program...\n");
 
-            Memory mem = new Memory(100);
-            
-            for (Map.Entry<String, Integer> entry : symbolTable.entrySet()) {
-                String varName = entry.getKey();
-                int address = entry.getValue();
-                String initValue = variableInitValues.get(varName);
-                mem.addItem(address, initValue);
-            }
-            
-            for (int i = 0; i < machineCode.size(); i++) {
-                mem.addItem(instructionStartAddress + i, machineCode.get(i));
+            Memory mem = program.getImage().toMemory();
+
+            Processor cpu = new Processor(mem, program.getStartAddress());
+            cpu.setJit(jitRun);
+            cpu.setInstructionLimit(instructionLimit);
+            cpu.setTimeLimit(timeLimit);
+            cpu.setRangeAnalysis(program.getRangeAnalysis());
+
+            ExecutionRecorder recorder = null;
+            String recordFile = inputFile.replace(".sml", ExecutionRecorder.EXTENSION);
+            if (record) {
+                try {
+                    recorder = new ExecutionRecorder(Paths.get(recordFile));
+                } catch (IOException e) {
+                    System.out.println("Error writing execution log: " + e.getMessage());
+                    return;
+                }
+                try {
+                    cpu.setRecorder(recorder);
+                } catch (IllegalArgumentException e) {
+                    // Memories past ExecutionRecorder.MAX_MEMORY words can't be recorded
+                    System.out.println("Error writing execution log: " + e.getMessage());
+                    try {
+                        recorder.close();
+                        Files.deleteIfExists(Paths.get(recordFile));
+                    } catch (IOException ignored) {
+                        // nothing was recorded
+                    }
+                    return;
+                }
             }
+            Profiler profiler = profile ? new Profiler() : null;
+            cpu.setProfiler(profiler);
 
-            Processor cpu = new Processor(mem, instructionStartAddress);
-            
-            if (stepRun) {
-                cpu.dumpStep();
+            RunResult result;
+            if (traceFlag != null) {
+                String traceFile = inputFile.replace(".sml", ".trace");
+                try (TraceRenderer trace = openTrace(traceFile, traceFlag)) {
+                    result = cpu.trace(trace);
+                } catch (IOException e) {
+                    System.out.println("Error writing trace: " + e.getMessage());
+                    return;
+                }
+                System.out.println("\nTrace saved to: " + traceFile);
+            } else if (stepRun) {
+                result = cpu.dumpStep();
             } else {
-                cpu.dumpDirect();
+                result = cpu.dumpDirect();
             }
-        }
-    }
 
-    private static void firstPass() {
-        for (String line : sourceLines) {
-            line = line.trim();
-            
-            if (line.isEmpty() || line.startsWith("//") || line.endsWith(":"))
-                continue;
-            if (!isVariableLine(line))
-                continue;
-            if (line.matches("[a-zA-Z_][a-zA-Z0-9_]*\\s*[=]\\s*-?\\d+")) {
-                String[] parts = line.split("\\s*[=]\\s*");
-                String varName = parts[0].trim();
-                String initValue = parts[1].trim();
-                
-                if (!symbolTable.containsKey(varName)) {
-                    symbolTable.put(varName, nextDataAddress++);
-                    variableInitValues.put(varName, initValue);
+            if (recorder != null) {
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                    System.out.println("Error writing execution log: " + e.getMessage());
                 }
+                System.out.println("\nExecution log saved to: " + recordFile);
             }
-            else if (line.matches("[a-zA-Z_][a-zA-Z0-9_]*\\s+\\d+")) {
-                String[] parts = line.split("\\s+");
-                String varName = parts[0].trim();
-                String initValue = parts[1].trim();
-                
-                if (!symbolTable.containsKey(varName)) {
-                    symbolTable.put(varName, nextDataAddress++);
-                    variableInitValues.put(varName, initValue);
+
+            if (profiler != null) {
+                String jsonFile = inputFile.replace(".sml", ".profile.json");
+                String metricsFile = inputFile.replace(".sml", ".prom");
+                try {
+                    Profiler.Snapshot snapshot = profiler.snapshot();
+                    snapshot.writeJson(Paths.get(jsonFile));
+                    snapshot.writePrometheus(Paths.get(metricsFile));
+                } catch (IOException e) {
+                    System.out.println("Error writing profile: " + e.getMessage());
                 }
+                System.out.println("\nProfile saved to: " + jsonFile + " and " + metricsFile);
             }
-            else if (isVariableDeclaration(line)) {
-                String varName = line.trim();
-                if (!symbolTable.containsKey(varName)) {
-                    symbolTable.put(varName, nextDataAddress++);
-                    variableInitValues.put(varName, "0");
-                }
+
+            if (result.isFault()) {
+                System.out.println(result.getFault().getMessage());
+                System.exit(1);
             }
         }
-        
-        instructionStartAddress = nextDataAddress;
-        int instructionAddress = instructionStartAddress;
-        
-        for (String line : sourceLines) {
-            line = line.trim();
-            
-            if (line.isEmpty() || line.startsWith("//"))
-                continue;
-            if (line.endsWith(":")) {
-                String label = line.substring(0, line.length() - 1).trim();
-                labelTable.put(label, instructionAddress);
-            }
-            else if (isVariableLine(line)) {
-                continue;
-            }
-            else {
-                instructionAddress++;
-            }
+    }
+
+    private static TraceRenderer openTrace(String file, String mode) throws IOException {
+        Path path = Paths.get(file);
+        if (mode.equals("j"))
+            return TraceRenderer.toFile(path, TraceRenderer.Sampling.ON_JUMP, 0);
+        if (mode.isEmpty())
+            return TraceRenderer.toFile(path, TraceRenderer.Sampling.EVERY_STEP, 1);
+        return TraceRenderer.toFile(path, TraceRenderer.Sampling.EVERY_N, Integer.parseInt(mode));
+    }
+
+    private static void compileAll(Compiler compiler, Path dir, BuildCache cache, boolean exitOnFailure) {
+        BatchResult batch;
+        try {
+            batch = compiler.compileDirectory(dir, ForkJoinPool.commonPool(), cache);
+            cache.save();
+        } catch (IOException e) {
+            System.out.println("Error reading directory: " + e.getMessage());
+            return;
         }
+
+        batch.getFailures().forEach((file, message) -> System.out.println(file + ": " + message));
+        System.out.println("Compiled " + batch.getPrograms().size() + " of "
+                + (batch.getPrograms().size() + batch.getFailures().size()) + " files in " + dir
+                + " (" + batch.getUpToDate().size() + " up to date)");
+        if (!batch.getFailures().isEmpty() && exitOnFailure)
+            System.exit(1);
     }
 
-    private static boolean isVariableDeclaration(String line) {
-        line = line.trim();
-        if (!line.matches("[a-zA-Z_][a-zA-Z0-9_]*") || line.endsWith(":")) {
-            return false;
+    private static void watchAll(Compiler compiler, Path dir, BuildCache cache) {
+        System.out.println("Watching " + dir + " for changes...");
+        try {
+            compiler.watchDirectory(dir, cache, System.out::println);
+        } catch (IOException e) {
+            System.out.println("Error watching directory: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        
-        String upper = line.toUpperCase();
-        Set<String> keywords = Set.of(
-            "READ", "WRITE", "LOAD", "LOADM", "LOADI", "STORE",
-            "ADD", "ADDM", "ADDI", "SUBT", "SUBTM", "SUBTI",
-            "DIV", "DIVM", "DIVI", "MOD", "MODM", "MODI",
-            "MULT", "MULTM", "MULTI", "JUMP", "JMP", "JUMPN", "JMPN",
-            "JUMPZ", "JMPZ", "HALT"
-        );
-        
-        return !keywords.contains(upper);
     }
-    
-    private static boolean isVariableLine(String line) {
-        line = line.trim();
-        
-        if (line.matches("[a-zA-Z_][a-zA-Z0-9_]*\\s*[=]\\s*-?\\d+") ||
-            line.matches("[a-zA-Z_][a-zA-Z0-9_]*\\s+\\d+")) {
-            return true;
+
+    public static class BatchResult {
+        private final Map<Path, CompiledProgram> programs;
+        private final Map<Path, String> failures;
+        private final Set<Path> upToDate;
+
+        BatchResult(Map<Path, CompiledProgram> programs, Map<Path, String> failures, Set<Path> upToDate) {
+            this.programs = Collections.unmodifiableMap(new TreeMap<>(programs));
+            this.failures = Collections.unmodifiableMap(new TreeMap<>(failures));
+            this.upToDate = Collections.unmodifiableSet(new TreeSet<>(upToDate));
+        }
+
+        public Map<Path, CompiledProgram> getPrograms() {
+            return programs;
         }
-        
-        return isVariableDeclaration(line);
+
+        public Map<Path, String> getFailures() {
+            return failures;
+        }
+
+        // Sources whose outputs were already current, so weren't compiled
+        public Set<Path> getUpToDate() {
+            return upToDate;
+        }
+    }
+
+    // Compiles every .sml file under dir on the given pool and writes each
+    // .mach and image next to its source as soon as it is done
+    public BatchResult compileDirectory(Path dir, ForkJoinPool pool) throws IOException {
+        return compileDirectory(dir, pool, null);
     }
 
-    private static List<String> secondPass() {
-        List<String> machineCode = new ArrayList<>();
-        
-        for (String line : sourceLines) {
-            line = line.trim();
-            
-            if (line.isEmpty() || line.startsWith("//"))
-                continue;
-            
-            if (line.endsWith(":") || isVariableLine(line))
-                continue;
-            
-            String instruction = compileInstruction(line);
-            if (instruction == null) {
-                return null;
+    // As above, but leaves the sources the cache has up to date alone. The
+    // caller saves the cache.
+    public BatchResult compileDirectory(Path dir, ForkJoinPool pool, BuildCache cache) throws IOException {
+        List<Path> sources = findSources(dir);
+        Map<Path, CompiledProgram> programs = new ConcurrentHashMap<>();
+        Map<Path, String> failures = new ConcurrentHashMap<>();
+        Set<Path> upToDate = ConcurrentHashMap.newKeySet();
+        try {
+            pool.submit(() -> sources.parallelStream().forEach(source -> {
+                try {
+                    if (cache != null) {
+                        BuildCache.Build build = cache.build(this, source);
+                        if (build.isUpToDate())
+                            upToDate.add(source);
+                        programs.put(source, build.getProgram());
+                        return;
+                    }
+                    CompiledProgram program = compile(source);
+                    program.writeText(BuildCache.machFile(source));
+                    program.writeImage(BuildCache.imageFile(source));
+                    programs.put(source, program);
+                } catch (IOException | CompileException e) {
+                    failures.put(source, e.getMessage());
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch compile interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Batch compile failed", e.getCause());
+        }
+        return new BatchResult(programs, failures, upToDate);
+    }
+
+    private static List<Path> findSources(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(f -> f.toString().endsWith(".sml") && Files.isRegularFile(f))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // Keeps the outputs under dir current: waits for .sml files to be
+    // created or changed and builds just those through the cache, telling
+    // log about each one it compiles. A source is compiled as a whole; the
+    // report lists the labels that moved, whose jumps changed with them.
+    // Runs until the thread is interrupted.
+    public void watchDirectory(Path dir, BuildCache cache, Consumer<String> log)
+            throws IOException, InterruptedException {
+        try (WatchService watcher = dir.getFileSystem().newWatchService()) {
+            Map<WatchKey, Path> keys = new HashMap<>();
+            watchTree(watcher, dir, keys);
+            while (true) {
+                WatchKey key = watcher.take();
+                // Editors save in several steps; let them finish first
+                Thread.sleep(WATCH_SETTLE_MILLIS);
+                Set<Path> changed = new TreeSet<>();
+                boolean overflow = false;
+                for (; key != null; key = watcher.poll()) {
+                    Path parent = keys.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW || parent == null) {
+                            overflow = true;
+                            continue;
+                        }
+                        Path path = parent.resolve((Path) event.context());
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                            // Sources may have been put there before it was watched
+                            watchTree(watcher, path, keys);
+                            changed.addAll(findSources(path));
+                        } else if (path.toString().endsWith(".sml")) {
+                            changed.add(path);
+                        }
+                    }
+                    if (!key.reset())
+                        keys.remove(key);
+                }
+                if (overflow)
+                    changed.addAll(findSources(dir));
+
+                for (Path source : changed) {
+                    if (!Files.isRegularFile(source)) {
+                        cache.forget(source);
+                        continue;
+                    }
+                    long started = System.nanoTime();
+                    try {
+                        BuildCache.Build build = cache.build(this, source);
+                        if (build.isUpToDate())
+                            continue;
+                        String report = String.format("Compiled %s in %.1f ms", source,
+                                (System.nanoTime() - started) / 1e6);
+                        if (!build.getMovedLabels().isEmpty())
+                            report += ", labels moved: " + build.getMovedLabels();
+                        log.accept(report);
+                    } catch (IOException | CompileException e) {
+                        log.accept(source + ": " + e.getMessage());
+                    }
+                }
+                cache.save();
+            }
+        }
+    }
+
+    private static void watchTree(WatchService watcher, Path dir, Map<WatchKey, Path> keys) throws IOException {
+        try (Stream<Path> dirs = Files.walk(dir)) {
+            for (Path sub : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                keys.put(sub.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), sub);
             }
-            machineCode.add(instruction);
         }
-        
-        return machineCode;
     }
 
-    private static String compileInstruction(String line) {
-        String[] parts = line.split("\\s+");
-        if (parts.length == 0) return null;
-        
-        String instr = parts[0].toUpperCase();
-        int opcode = 0;
-        int operand = 0;
-        
-        // Determine opcode
-        switch (instr) {
-            case "READ":
-                opcode = 10;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "WRITE":
-                opcode = 11;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "LOAD":
-            case "LOADM":
-                opcode = 20;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "LOADI":
-                opcode = 22;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "STORE":
-                opcode = 21;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "ADD":
-            case "ADDM":
-                opcode = 30;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "ADDI":
-                opcode = 35;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "SUBT":
-            case "SUBTM":
-                opcode = 31;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "SUBTI":
-                opcode = 36;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "DIV":
-            case "DIVM":
-                opcode = 32;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "DIVI":
-                opcode = 37;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "MOD":
-            case "MODM":
-                opcode = 33;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "MODI":
-                opcode = 38;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "MULT":
-            case "MULTM":
-                opcode = 34;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "MULTI":
-                opcode = 39;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "JUMP":
-            case "JMP":
-                opcode = 40;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "JUMPN":
-            case "JMPN":
-                opcode = 41;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "JUMPZ":
-            case "JMPZ":
-                opcode = 42;
-                operand = resolveOperand(parts[1]);
-                break;
-            case "HALT":
-                opcode = 43;
-                operand = 0;
-                break;
-            default:
-                System.out.println("Unknown instruction: " + instr);
-                return null;
+    public CompiledProgram compile(Path source) throws IOException, CompileException {
+        try (Reader reader = Files.newBufferedReader(source)) {
+            return compile(reader);
+        }
+    }
+
+    public CompiledProgram compile(List<String> lines) throws CompileException {
+        try {
+            return compile(new StringReader(String.join("\n", lines)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+    }
+
+    // Compiles the source in a single scan
+    public CompiledProgram compile(Reader source) throws IOException, CompileException {
+        return new Unit().compile(source);
+    }
 
-        return String.format("%02d%02d", opcode, operand);
+    // Opcodes have two digits followed by the operand field, so in the
+    // classic format this is the familiar four-digit word
+    static String formatInstruction(MachineFormat format, int opCode, int operand) {
+        return Integer.toString(format.word(opCode, operand));
     }
 
-    private static int resolveOperand(String operand) {
-        if (operand == null) return 0;
-        
-        operand = operand.trim();
-        
-        if (operand.matches("\\d+")) {
-            return Integer.parseInt(operand);
+    // State of one compilation
+    private final class Unit {
+        private final Map<String, Integer> symbolTable = new HashMap<>();
+        private final Map<String, String> variableInitValues = new HashMap<>();
+        private final Map<String, Integer> labelTable = new HashMap<>();
+        private final List<String> warnings = new ArrayList<>();
+        private int nextDataAddress = 0; 
+        private int instructionStartAddress = 0; 
+
+        // Operands that name a symbol are kept in operandSymbols and patched
+        // once the whole source has been read
+        private int[] opCodes = new int[64];
+        private int[] operands = new int[64];
+        private String[] operandSymbols = new String[64];
+        private int[] sourceLines = new int[64];
+        private int instructionCount = 0;
+
+        CompiledProgram compile(Reader source) throws IOException, CompileException {
+            Lexer lexer = new Lexer(source);
+            Lexer.Token token = lexer.next();
+            while (token != Lexer.Token.EOF) {
+                if (token != Lexer.Token.NEWLINE)
+                    token = statement(lexer, token);
+                if (token != Lexer.Token.EOF)
+                    token = lexer.next();
+            }
+
+            if (optimizationLevel > 0)
+                optimize();
+            link();
+
+            if (instructionStartAddress + instructionCount > memorySize)
+                throw new CompileException("Program needs " + (instructionStartAddress + instructionCount)
+                        + " words but memory has " + memorySize, lexer.line());
+
+            int[] words = new int[memorySize];
+            for (Map.Entry<String, Integer> entry : symbolTable.entrySet())
+                words[entry.getValue()] = parseValue(variableInitValues.get(entry.getKey()), entry.getKey());
+
+            List<String> machineCode = new ArrayList<>(instructionCount);
+            for (int i = 0; i < instructionCount; i++) {
+                // Immediates and jump targets only have to fit the operand
+                // field; memory operands have to name a word in memory
+                int limit = MachineFormat.usesMemory(opCodes[i]) ? memorySize - 1 : format.getMaxOperand();
+                if (operands[i] > limit)
+                    throw new CompileException("Operand out of range: " + operands[i], sourceLines[i]);
+                words[instructionStartAddress + i] = format.word(opCodes[i], operands[i]);
+                machineCode.add(formatInstruction(format, opCodes[i], operands[i]));
+            }
+
+            MachineImage image = new MachineImage(instructionStartAddress, words);
+            RangeAnalysis ranges = RangeAnalysis.analyze(image);
+            for (int address : ranges.getZeroDivisors()) {
+                int opCode = format.opCode(words[address]);
+                String name = opCode == 32 || opCode == 37 ? "Division" : "Modulo";
+                warnings.add("Warning: Line " + sourceLines[address - instructionStartAddress] + ": "
+                        + name + " by zero whenever it runs");
+            }
+            return new CompiledProgram(image, machineCode, symbolTable, labelTable, warnings, ranges);
         }
-        
-        if (labelTable.containsKey(operand)) {
-            return labelTable.get(operand);
+
+        private int parseValue(String value, String varName) throws CompileException {
+            long num;
+            try {
+                num = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                num = Long.MAX_VALUE;
+            }
+            if (!format.fits(num))
+                throw new CompileException("Initial value of " + varName + " out of range: " + value, 0);
+            return (int) num;
         }
-        
-        if (symbolTable.containsKey(operand)) {
-            return symbolTable.get(operand);
+
+        // Parses one statement whose first token has been read: a label, a
+        // variable or an instruction. Returns the token that ended the line.
+        private Lexer.Token statement(Lexer lexer, Lexer.Token first) throws IOException, CompileException {
+            if (first != Lexer.Token.IDENT) {
+                throw new CompileException("Unknown instruction: " + lexer.text().toUpperCase(), lexer.line());
+            }
+
+            String word = lexer.text();
+            Integer opCode = OPCODES.get(word);
+            Lexer.Token token = lexer.next();
+
+            if (token == Lexer.Token.COLON) {
+                labelTable.put(word, instructionCount);
+                token = lexer.next();
+                if (token == Lexer.Token.NEWLINE || token == Lexer.Token.EOF)
+                    return token;
+                return statement(lexer, token);
+            }
+
+            if (opCode != null) {
+                if (opCode == 43) {
+                    emit(opCode, 0, null, lexer.line());
+                    return endOfLine(lexer, token);
+                }
+                if (token == Lexer.Token.IDENT) {
+                    emit(opCode, 0, lexer.text(), lexer.line());
+                } else if (token == Lexer.Token.NUMBER && lexer.number() >= 0) {
+                    emit(opCode, (int) Math.min(lexer.number(), Integer.MAX_VALUE), null, lexer.line());
+                } else if (token == Lexer.Token.NUMBER) {
+                    warnings.add("Error: Undefined symbol '" + lexer.text() + "'");
+                    emit(opCode, 0, null, lexer.line());
+                } else {
+                    throw new CompileException("Error: Missing operand for " + word.toUpperCase()
+                            + " on line " + lexer.line(), lexer.line());
+                }
+                return endOfLine(lexer, lexer.next());
+            }
+
+            // Variables: "name", "name = value" or "name value"
+            if (token == Lexer.Token.NEWLINE || token == Lexer.Token.EOF) {
+                declare(word, "0");
+                return token;
+            }
+            if (token == Lexer.Token.EQUALS)
+                token = lexer.next();
+            if (token == Lexer.Token.NUMBER) {
+                declare(word, lexer.text());
+                return endOfLine(lexer, lexer.next());
+            }
+
+            throw new CompileException("Unknown instruction: " + word.toUpperCase(), lexer.line());
+        }
+
+        // Anything after the operand is ignored
+        private Lexer.Token endOfLine(Lexer lexer, Lexer.Token token) throws IOException {
+            while (token != Lexer.Token.NEWLINE && token != Lexer.Token.EOF)
+                token = lexer.next();
+            return token;
+        }
+
+        private void declare(String varName, String initValue) {
+            if (!symbolTable.containsKey(varName)) {
+                symbolTable.put(varName, nextDataAddress++);
+                variableInitValues.put(varName, initValue);
+            }
+        }
+
+        private void emit(int opCode, int operand, String symbol, int line) {
+            if (instructionCount == opCodes.length) {
+                int grown = opCodes.length * 2;
+                opCodes = Arrays.copyOf(opCodes, grown);
+                operands = Arrays.copyOf(operands, grown);
+                operandSymbols = Arrays.copyOf(operandSymbols, grown);
+                sourceLines = Arrays.copyOf(sourceLines, grown);
+            }
+            opCodes[instructionCount] = opCode;
+            operands[instructionCount] = operand;
+            operandSymbols[instructionCount] = symbol;
+            sourceLines[instructionCount] = line;
+            instructionCount++;
+        }
+
+        // Runs the Optimizer over the instruction list. Labels still hold
+        // instruction indexes here, so link() places them afterwards.
+        private void optimize() {
+            List<Optimizer.Instruction> code = new ArrayList<>(instructionCount);
+            for (int i = 0; i < instructionCount; i++)
+                code.add(new Optimizer.Instruction(opCodes[i], operands[i], operandSymbols[i], sourceLines[i]));
+
+            Optimizer optimizer = new Optimizer(code, labelTable, symbolTable.keySet(), nextDataAddress,
+                    format.getMaxOperand());
+            if (!optimizer.optimize(optimizationLevel)) {
+                warnings.add("Optimizer skipped: program refers to code by address");
+                return;
+            }
+
+            instructionCount = code.size();
+            for (int i = 0; i < instructionCount; i++) {
+                Optimizer.Instruction instruction = code.get(i);
+                opCodes[i] = instruction.opCode;
+                operands[i] = instruction.operand;
+                operandSymbols[i] = instruction.symbol;
+                sourceLines[i] = instruction.line;
+            }
+        }
+
+        // Instructions follow the variables, so addresses are only known once the
+        // whole source has been read. Labels are recorded as instruction indexes
+        // and every symbolic operand is patched here.
+        private void link() {
+            instructionStartAddress = nextDataAddress;
+            labelTable.replaceAll((label, index) -> index + instructionStartAddress);
+
+            for (int i = 0; i < instructionCount; i++) {
+                String symbol = operandSymbols[i];
+                if (symbol == null)
+                    continue;
+                operandSymbols[i] = null;
+
+                Integer address = labelTable.get(symbol);
+                if (address == null)
+                    address = symbolTable.get(symbol);
+                if (address == null) {
+                    warnings.add("Error: Undefined symbol '" + symbol + "'");
+                    address = 0;
+                }
+                operands[i] = address;
+            }
         }
-        
-        System.out.println("Error: Undefined symbol '" + operand + "'");
-        return 0;
     }
-}
\ No newline at end of file
+}
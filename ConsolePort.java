@@ -0,0 +1,48 @@
+import java.util.*;
+
+// Interactive console I/O, the default for a Processor
+public class ConsolePort implements InputPort, OutputPort {
+    private Scanner scan;
+
+    @Override
+    public boolean available() {
+        return true;
+    }
+
+    // Throws InputMismatchException when the entered token is not a number
+    @Override
+    public int read() {
+        System.out.print("Enter value: ");
+        String val = scanner().next();
+        scanner().nextLine();
+
+        if (!val.matches("[+-]?\\d{1,9}"))
+            throw new InputMismatchException(val);
+        return Integer.parseInt(val);
+    }
+
+    @Override
+    public void write(int value) {
+        System.out.print(value);
+    }
+
+    @Override
+    public void warn(String message) {
+        System.out.println(message);
+    }
+
+    @Override
+    public void flush() {
+        System.out.flush();
+    }
+
+    public void waitForEnter() {
+        scanner().nextLine();
+    }
+
+    private Scanner scanner() {
+        if (scan == null)
+            scan = new Scanner(System.in);
+        return scan;
+    }
+}
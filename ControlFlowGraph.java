@@ -0,0 +1,715 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Basic blocks of a machine image as loaded, with dominators and natural
+// loops. Only code reachable from the start address is included. A block
+// ends after JUMP, JUMPN, JUMPZ or HALT, before any jump target, and after
+// a memory instruction whose operand lies past the end of memory, which
+// stops the machine with an ADDRESS fault. Words that aren't instructions
+// run as no-ops, like the interpreter runs them.
+//
+// Dominators use the iterative algorithm of Cooper, Harvey and Kennedy over
+// reverse postorder. A loop is the natural loop of one header: every block
+// that reaches a back edge into the header without passing through it.
+// Cycles that enter at more than one block have no natural loop; their
+// entries are still reported by Block.isCycleEntry(), so an iterating
+// analysis that widens at cycle entries terminates on any graph.
+//
+//    java ControlFlowGraph [file.sml ...]
+public class ControlFlowGraph {
+    // Simulated iterations before a trip count is given up as unknown
+    private static final int TRIP_LIMIT = 1_000_000;
+
+    public static final class Block {
+        private final int index;
+        private final int start;
+        private int end;
+        private final List<Block> successors = new ArrayList<>(2);
+        private final List<Block> predecessors = new ArrayList<>(2);
+        private Block dominator;
+        private int order = -1;
+        private boolean cycleEntry;
+        private Loop loop;
+
+        Block(int index, int start) {
+            this.index = index;
+            this.start = start;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        // First address of the block
+        public int getStart() {
+            return start;
+        }
+
+        // Address just past the last instruction
+        public int getEnd() {
+            return end;
+        }
+
+        public int getLast() {
+            return end - 1;
+        }
+
+        public List<Block> getSuccessors() {
+            return Collections.unmodifiableList(successors);
+        }
+
+        public List<Block> getPredecessors() {
+            return Collections.unmodifiableList(predecessors);
+        }
+
+        // Null for the entry block
+        public Block getImmediateDominator() {
+            return dominator == this ? null : dominator;
+        }
+
+        // Position in reverse postorder, the entry block being 0
+        public int getOrder() {
+            return order;
+        }
+
+        public boolean isCycleEntry() {
+            return cycleEntry;
+        }
+
+        public boolean isLoopHeader() {
+            return loop != null && loop.header == this;
+        }
+
+        // Innermost loop containing the block, or null
+        public Loop getLoop() {
+            return loop;
+        }
+
+        public int getLoopDepth() {
+            return loop == null ? 0 : loop.depth;
+        }
+
+        @Override
+        public String toString() {
+            return "B" + index + " [" + start + ", " + end + ")";
+        }
+    }
+
+    public static final class Loop {
+        private final ControlFlowGraph graph;
+        private final Block header;
+        private final List<Block> latches = new ArrayList<>(1);
+        private final Set<Block> blocks = new TreeSet<>(Comparator.comparingInt(Block::getIndex));
+        private Loop parent;
+        private int depth;
+        private long tripCount = -1;
+
+        Loop(ControlFlowGraph graph, Block header) {
+            this.graph = graph;
+            this.header = header;
+        }
+
+        public Block getHeader() {
+            return header;
+        }
+
+        // Sources of the back edges into the header
+        public List<Block> getLatches() {
+            return Collections.unmodifiableList(latches);
+        }
+
+        public Set<Block> getBlocks() {
+            return Collections.unmodifiableSet(blocks);
+        }
+
+        public boolean contains(Block block) {
+            return block != null && blocks.contains(block);
+        }
+
+        // Enclosing loop, or null for an outermost loop
+        public Loop getParent() {
+            return parent;
+        }
+
+        // 1 for an outermost loop
+        public int getDepth() {
+            return depth;
+        }
+
+        // Times the exit test runs each time the loop is entered, or -1 when
+        // the loop isn't a counter stepping by a constant to a constant
+        // limit. Found by running the counter from its value on entry.
+        public long getTripCount() {
+            return tripCount;
+        }
+
+        // Header executions per entry into the loop, measured by a profile
+        // of runs of the same image; NaN when the loop never ran
+        public double getMeasuredTripCount(Profiler.Snapshot profile) {
+            long headerRuns = profile.getHits(header.start);
+            long repeats = 0;
+            for (Block latch : latches) {
+                int last = latch.getLast();
+                int opCode = graph.opCode(last);
+                if (opCode >= 40 && opCode <= 42 && graph.operand(last) == header.start)
+                    repeats += opCode == 40 ? profile.getHits(last) : profile.getTaken(last);
+                else
+                    repeats += opCode == 41 || opCode == 42 ? profile.getNotTaken(last) : profile.getHits(last);
+            }
+            long entries = headerRuns - repeats;
+            return entries <= 0 ? Double.NaN : (double) headerRuns / entries;
+        }
+
+        @Override
+        public String toString() {
+            return "loop at " + header.start + ": " + blocks.size() + " blocks, depth " + depth
+                    + (tripCount >= 0 ? ", " + tripCount + " trips" : "");
+        }
+    }
+
+    private final int[] words;
+    private final int startAddress;
+    private final MachineFormat format;
+    private final boolean[] reachable;
+    private final Block[] blockAt;
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<Block> reversePostorder = new ArrayList<>();
+    private final List<Loop> loops = new ArrayList<>();
+    private boolean reducible = true;
+
+    private ControlFlowGraph(int[] words, int startAddress) {
+        this.words = words;
+        this.startAddress = startAddress;
+        this.format = MachineFormat.of(words.length);
+        this.reachable = new boolean[words.length];
+        this.blockAt = new Block[words.length];
+    }
+
+    public static ControlFlowGraph build(int[] words, int startAddress) {
+        ControlFlowGraph cfg = new ControlFlowGraph(words.clone(), startAddress);
+        if (startAddress >= 0 && startAddress < words.length) {
+            cfg.findReachable();
+            cfg.splitBlocks();
+            cfg.order();
+            cfg.findDominators();
+            cfg.findLoops();
+        }
+        return cfg;
+    }
+
+    public static ControlFlowGraph build(MachineImage image) {
+        return build(image.getWords(), image.getStartAddress());
+    }
+
+    public int getStartAddress() {
+        return startAddress;
+    }
+
+    // Null when the start address lies outside memory
+    public Block getEntry() {
+        return reversePostorder.isEmpty() ? null : reversePostorder.get(0);
+    }
+
+    // In address order
+    public List<Block> getBlocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    public List<Block> getReversePostorder() {
+        return Collections.unmodifiableList(reversePostorder);
+    }
+
+    // Outer loops before the loops they contain
+    public List<Loop> getLoops() {
+        return Collections.unmodifiableList(loops);
+    }
+
+    public boolean isReachable(int address) {
+        return address >= 0 && address < reachable.length && reachable[address];
+    }
+
+    // Owned by the graph; callers must not change it
+    boolean[] getReachable() {
+        return reachable;
+    }
+
+    // Block holding the instruction at address, or null if it's unreachable
+    public Block getBlock(int address) {
+        return address >= 0 && address < blockAt.length ? blockAt[address] : null;
+    }
+
+    // False when some cycle can be entered at more than one block
+    public boolean isReducible() {
+        return reducible;
+    }
+
+    public boolean dominates(Block a, Block b) {
+        for (Block block = b; block != null; block = block.getImmediateDominator()) {
+            if (block == a)
+                return true;
+        }
+        return false;
+    }
+
+    int opCode(int address) {
+        return format.opCode(words[address]);
+    }
+
+    int operand(int address) {
+        return format.operand(words[address]);
+    }
+
+    // Whether the machine stops at the instruction or leaves it by a jump
+    private boolean endsBlock(int address) {
+        int opCode = opCode(address);
+        return (opCode >= 40 && opCode <= 43) || (words[address] >= 0 && MachineFormat.usesMemory(opCode) && operand(address) >= words.length);
+    }
+
+    // Addresses that can run after the instruction, including ones past
+    // the end of memory, where the machine stops
+    private int[] next(int address) {
+        int opCode = opCode(address);
+        if (words[address] < 0)
+            return new int[] { address + 1 };
+        if (opCode == 40)
+            return new int[] { operand(address) };
+        if (opCode == 41 || opCode == 42)
+            return new int[] { operand(address), address + 1 };
+        if (endsBlock(address))
+            return new int[0];
+        return new int[] { address + 1 };
+    }
+
+    private void findReachable() {
+        IntRingBuffer work = new IntRingBuffer();
+        work.offer(startAddress);
+        reachable[startAddress] = true;
+        while (!work.isEmpty()) {
+            for (int target : next(work.poll())) {
+                if (target >= 0 && target < words.length && !reachable[target]) {
+                    reachable[target] = true;
+                    work.offer(target);
+                }
+            }
+        }
+    }
+
+    private void splitBlocks() {
+        boolean[] leader = new boolean[words.length];
+        leader[startAddress] = true;
+        for (int address = 0; address < words.length; address++) {
+            if (!reachable[address])
+                continue;
+            int opCode = opCode(address);
+            if (words[address] >= 0 && opCode >= 40 && opCode <= 42 && operand(address) < words.length)
+                leader[operand(address)] = true;
+            if (endsBlock(address) && address + 1 < words.length)
+                leader[address + 1] = true;
+        }
+
+        Block current = null;
+        for (int address = 0; address < words.length; address++) {
+            if (!reachable[address]) {
+                current = null;
+                continue;
+            }
+            if (current == null || leader[address]) {
+                current = new Block(blocks.size(), address);
+                blocks.add(current);
+            }
+            blockAt[address] = current;
+            current.end = address + 1;
+        }
+
+        for (Block block : blocks) {
+            for (int target : next(block.getLast())) {
+                Block successor = getBlock(target);
+                if (successor != null && !block.successors.contains(successor)) {
+                    block.successors.add(successor);
+                    successor.predecessors.add(block);
+                }
+            }
+        }
+    }
+
+    // Depth-first from the entry: reverse postorder, and the targets of
+    // edges back to a block still on the stack
+    private void order() {
+        Block entry = blockAt[startAddress];
+        boolean[] visited = new boolean[blocks.size()];
+        boolean[] onStack = new boolean[blocks.size()];
+        Deque<Block> stack = new ArrayDeque<>();
+        Deque<Integer> nextEdge = new ArrayDeque<>();
+        List<Block> postorder = new ArrayList<>();
+        stack.push(entry);
+        nextEdge.push(0);
+        visited[entry.index] = onStack[entry.index] = true;
+        while (!stack.isEmpty()) {
+            Block block = stack.peek();
+            int edge = nextEdge.pop();
+            if (edge < block.successors.size()) {
+                nextEdge.push(edge + 1);
+                Block successor = block.successors.get(edge);
+                if (onStack[successor.index]) {
+                    successor.cycleEntry = true;
+                } else if (!visited[successor.index]) {
+                    visited[successor.index] = onStack[successor.index] = true;
+                    stack.push(successor);
+                    nextEdge.push(0);
+                }
+            } else {
+                stack.pop();
+                onStack[block.index] = false;
+                postorder.add(block);
+            }
+        }
+        for (int i = postorder.size() - 1; i >= 0; i--) {
+            Block block = postorder.get(i);
+            block.order = reversePostorder.size();
+            reversePostorder.add(block);
+        }
+    }
+
+    private void findDominators() {
+        Block entry = reversePostorder.get(0);
+        entry.dominator = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < reversePostorder.size(); i++) {
+                Block block = reversePostorder.get(i);
+                Block dominator = null;
+                for (Block predecessor : block.predecessors) {
+                    if (predecessor.dominator == null)
+                        continue;
+                    dominator = dominator == null ? predecessor : intersect(predecessor, dominator);
+                }
+                if (dominator != block.dominator) {
+                    block.dominator = dominator;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private static Block intersect(Block a, Block b) {
+        while (a != b) {
+            while (a.order > b.order)
+                a = a.dominator;
+            while (b.order > a.order)
+                b = b.dominator;
+        }
+        return a;
+    }
+
+    private void findLoops() {
+        Map<Block, Loop> byHeader = new LinkedHashMap<>();
+        for (Block block : reversePostorder) {
+            for (Block successor : block.successors) {
+                if (!dominates(successor, block)) {
+                    if (successor.order <= block.order)
+                        reducible = false;
+                    continue;
+                }
+                Loop loop = byHeader.computeIfAbsent(successor, header -> new Loop(this, header));
+                loop.latches.add(block);
+                collectBody(loop, block);
+            }
+        }
+
+        // Larger loops first, so each block ends up in its innermost loop
+        List<Loop> found = new ArrayList<>(byHeader.values());
+        found.sort(Comparator.comparingInt((Loop loop) -> -loop.blocks.size())
+                .thenComparingInt(loop -> loop.header.order));
+        for (Loop loop : found) {
+            loop.parent = loop.header.loop;
+            loop.depth = loop.parent == null ? 1 : loop.parent.depth + 1;
+            for (Block block : loop.blocks)
+                block.loop = loop;
+        }
+        loops.addAll(found);
+        for (Loop loop : loops)
+            loop.tripCount = tripCount(loop);
+    }
+
+    private static void collectBody(Loop loop, Block latch) {
+        loop.blocks.add(loop.header);
+        Deque<Block> work = new ArrayDeque<>();
+        if (loop.blocks.add(latch))
+            work.push(latch);
+        while (!work.isEmpty()) {
+            for (Block predecessor : work.pop().predecessors) {
+                if (loop.blocks.add(predecessor))
+                    work.push(predecessor);
+            }
+        }
+    }
+
+    // Looks for a counter updated and tested once per iteration, in a block
+    // that runs on every iteration:
+    //
+    //    LOAD c; ADD/SUBT step; STORE c; [SUBT limit]; JUMPZ/JUMPN
+    //
+    // where step and limit are immediates or words nothing stores to, and c
+    // is stored nowhere else in the loop.
+    private long tripCount(Loop loop) {
+        for (Block block : loop.blocks) {
+            int branch = block.getLast();
+            int opCode = opCode(branch);
+            if (opCode != 41 && opCode != 42 || block.successors.size() != 2 || words[branch] < 0)
+                continue;
+            boolean takenExits = !loop.contains(getBlock(operand(branch)));
+            boolean fallExits = !loop.contains(getBlock(branch + 1));
+            // The test must run exactly once per iteration
+            if (takenExits == fallExits || block.loop != loop || !dominatesLatches(block, loop))
+                continue;
+
+            int at = branch - 1;
+            long limit = 0;
+            if (at >= block.start && (opCode(at) == 31 || opCode(at) == 36)) {
+                Integer value = constant(at);
+                if (value == null)
+                    continue;
+                limit = value;
+                at--;
+            }
+            if (at - 2 < block.start || opCode(at) != 21 || opCode(at - 2) != 20 || operand(at - 2) != operand(at))
+                continue;
+            int counter = operand(at);
+            int update = opCode(at - 1);
+            Integer step = constant(at - 1);
+            if (step == null || (update != 30 && update != 31 && update != 35 && update != 36))
+                continue;
+            if (update == 31 || update == 36)
+                step = -step;
+            Long start = entryValue(loop, counter, at);
+            if (start == null)
+                continue;
+
+            long value = start;
+            for (long trip = 1; trip <= TRIP_LIMIT; trip++) {
+                value += step;
+                if (!format.fits(value))
+                    return -1;
+                long tested = value - limit;
+                boolean jumps = opCode == 42 ? tested == 0 : tested < 0;
+                if (jumps == takenExits)
+                    return trip;
+            }
+            return -1;
+        }
+        return -1;
+    }
+
+    private boolean dominatesLatches(Block block, Loop loop) {
+        for (Block latch : loop.latches) {
+            if (!dominates(block, latch))
+                return false;
+        }
+        return true;
+    }
+
+    // Operand value of an ADD/SUBT family instruction when it can't change
+    private Integer constant(int address) {
+        int opCode = opCode(address);
+        int operand = operand(address);
+        if (opCode == 35 || opCode == 36)
+            return operand;
+        if (operand >= words.length || isWritten(operand))
+            return null;
+        return words[operand];
+    }
+
+    private boolean isWritten(int address) {
+        for (int i = 0; i < words.length; i++) {
+            if (reachable[i] && words[i] >= 0 && (opCode(i) == 21 || opCode(i) == 10) && operand(i) == address)
+                return true;
+        }
+        return false;
+    }
+
+    // Value of the counter on entry into the loop: set in the single block
+    // that enters it by LOAD of a constant or LOADI, or never written outside
+    // the update and the loop only entered once
+    private Long entryValue(Loop loop, int counter, int update) {
+        for (int i = 0; i < words.length; i++) {
+            if (reachable[i] && words[i] >= 0 && opCode(i) == 10 && operand(i) == counter)
+                return null;
+        }
+        Block preheader = null;
+        for (Block predecessor : loop.header.predecessors) {
+            if (loop.contains(predecessor))
+                continue;
+            if (preheader != null)
+                return null;
+            preheader = predecessor;
+        }
+        for (Block block : loop.blocks) {
+            for (int i = block.start; i < block.end; i++) {
+                if (i != update && opCode(i) == 21 && operand(i) == counter)
+                    return null;
+            }
+        }
+
+        if (preheader != null) {
+            for (int i = preheader.getLast(); i > preheader.start; i--) {
+                if (opCode(i) != 21 || operand(i) != counter)
+                    continue;
+                if (opCode(i - 1) == 22)
+                    return (long) operand(i - 1);
+                if (opCode(i - 1) == 20 && operand(i - 1) < words.length && !isWritten(operand(i - 1)))
+                    return (long) words[operand(i - 1)];
+                return null;
+            }
+        }
+        // Nothing outside the loop writes the counter, so only the first
+        // entry sees the loaded value
+        boolean writtenOutside = false;
+        for (int i = 0; i < words.length; i++) {
+            if (i != update && reachable[i] && words[i] >= 0 && opCode(i) == 21 && operand(i) == counter)
+                writtenOutside = true;
+        }
+        if (writtenOutside || loop.parent != null || preheader == null)
+            return null;
+        return (long) words[counter];
+    }
+
+    public void print(PrintStream out) {
+        for (Block block : blocks) {
+            StringBuilder line = new StringBuilder(block.toString());
+            line.append(" ->");
+            for (Block successor : block.successors)
+                line.append(' ').append('B').append(successor.index);
+            Block dominator = block.getImmediateDominator();
+            if (dominator != null)
+                line.append(", idom B").append(dominator.index);
+            if (block.isLoopHeader())
+                line.append(", loop header");
+            else if (block.cycleEntry)
+                line.append(", cycle entry");
+            out.println(line);
+        }
+        for (Loop loop : loops)
+            out.println(loop);
+        if (!reducible)
+            out.println("irreducible");
+    }
+
+    // Checks the graph of known programs, then prints the graph of each file
+    // given
+    public static void main(String[] args) throws IOException {
+        int failures = 0;
+        failures += check("sum", compile(Files.readAllLines(Paths.get("test2.sml"))), 2, 0, -1);
+        failures += check("countdown", compile(Files.readAllLines(Paths.get("test3.sml"))), 5, 1, -1);
+        failures += check("nested", compile(Arrays.asList(NESTED)), 8, 2, 6);
+        failures += check("stepped", compile(Arrays.asList(STEPPED)), 5, 1, 17);
+
+        for (String file : args) {
+            try {
+                System.out.println(file + ":");
+                build(new Compiler().compile(Paths.get(file)).getImage()).print(System.out);
+            } catch (CompileException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+        System.out.println(failures == 0 ? "All graphs as expected" : failures + " checks failed");
+        if (failures > 0)
+            System.exit(1);
+    }
+
+    // Six trips of an outer loop around four of an inner one
+    private static final String[] NESTED = {
+        "jmp start",
+        "    i",
+        "    j",
+        "    sum = 0",
+        "    one = 1",
+        "    six = 6",
+        "start:",
+        "    LoadM six",
+        "    Store i",
+        "outer:",
+        "    LoadI 4",
+        "    Store j",
+        "inner:",
+        "    LoadM sum",
+        "    AddM one",
+        "    Store sum",
+        "    LoadM j",
+        "    SubtM one",
+        "    Store j",
+        "    JmpZ next",
+        "    Jmp inner",
+        "next:",
+        "    LoadM i",
+        "    SubtI 1",
+        "    Store i",
+        "    JmpZ done",
+        "    Jmp outer",
+        "done:",
+        "    Write sum",
+        "    Halt",
+    };
+
+    // Counts up by 3 from 2 until the counter passes 50: 17 trips, with the
+    // test at the top
+    private static final String[] STEPPED = {
+        "jmp start",
+        "    k = 2",
+        "start:",
+        "    LoadM k",
+        "    AddI 3",
+        "    Store k",
+        "    SubtI 51",
+        "    JmpN body",
+        "    Jmp done",
+        "body:",
+        "    Write k",
+        "    Jmp start",
+        "done:",
+        "    Halt",
+    };
+
+    private static MachineImage compile(List<String> source) {
+        try {
+            return new Compiler().compile(source).getImage();
+        } catch (CompileException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    private static int check(String name, MachineImage image, int blockCount, int loopCount, long outerTrips) {
+        ControlFlowGraph cfg = build(image);
+        List<String> problems = new ArrayList<>();
+        if (cfg.getBlocks().size() != blockCount)
+            problems.add(cfg.getBlocks().size() + " blocks, expected " + blockCount);
+        if (cfg.getLoops().size() != loopCount)
+            problems.add(cfg.getLoops().size() + " loops, expected " + loopCount);
+        if (!cfg.isReducible())
+            problems.add("irreducible");
+        if (loopCount > 0 && cfg.getLoops().get(0).getTripCount() != outerTrips)
+            problems.add(cfg.getLoops().get(0).getTripCount() + " trips, expected " + outerTrips);
+        for (Block block : cfg.getBlocks()) {
+            if (block != cfg.getEntry() && !cfg.dominates(cfg.getEntry(), block))
+                problems.add("entry doesn't dominate " + block);
+        }
+
+        // Against a profiled run: header executions per entry match the
+        // static trip counts
+        Profiler profiler = new Profiler();
+        Processor cpu = new Processor(image.toMemory(), image.getStartAddress());
+        cpu.setInput(IntRingBuffer.of(3, 4));
+        cpu.setOutput(value -> { });
+        cpu.setProfiler(profiler);
+        cpu.dumpDirect();
+        for (Loop loop : cfg.getLoops()) {
+            double measured = loop.getMeasuredTripCount(profiler.snapshot());
+            if (loop.getTripCount() >= 0 && measured != loop.getTripCount())
+                problems.add(loop + " ran " + measured + " times per entry");
+        }
+
+        System.out.println(name + ": " + (problems.isEmpty() ? "ok" : String.join("; ", problems)));
+        return problems.size();
+    }
+}
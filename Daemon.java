@@ -0,0 +1,583 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Long-lived server that keeps compiled programs and a warmed-up
+// interpreter resident, so a run doesn't pay for a JVM start, class
+// loading and a cold interpreter each time:
+//
+//    java Daemon [-p<port> | -u<socket>] [-r<root>] [-m<words>] [-O0 | -O1 | -O2]
+//                [-t<threads>] [-l<instructions>] [-w<ms>]
+//
+// It listens on a loopback port (DEFAULT_PORT unless -p) or a Unix domain
+// socket (-u) that only its owner can use, and talks in lines of text, so
+// DaemonClient or a plain nc can drive it. Anyone on the machine can reach
+// the port, so a request can only name sources under the root directory
+// (-r, the working directory by default), where the daemon writes its
+// build output; paths are taken relative to it, and links that lead out of
+// it are refused. For the same reason STOP has to carry a token the daemon
+// makes up at start and writes to tokenFile(), which only its owner can
+// read. Requests, with <id> chosen by the client:
+//
+//    RUN <id> <instruction limit> <time limit ms> <path>
+//    IN <id> <value>              input for that run
+//    EOF <id>                     no more input for it
+//    COMPILE <id> <path>
+//    STATS <id>
+//    STOP <id> <token>            shuts the daemon down
+//
+// and replies:
+//
+//    OUT <id> <value>             a WRITE, as soon as it happens
+//    WARN <id> <message>          a problem the run goes on after
+//    DONE <id> <reason> <fault> <instructions> <run microseconds>
+//    COMPILED <id> <compiled | cached> <instructions>
+//    ERROR <id> <message>
+//    STATS <id> <name>=<value> ...
+//    BYE <id>
+//
+// One selector thread does all the network I/O. RUN and COMPILE requests
+// read in one pass over the ready connections go to the compile thread as
+// one batch, which loads each source in it once; replies wait in a queue
+// per connection and go out in one gathering write per pass. A client that
+// lets MAX_OUTPUT bytes of replies pile up isn't read from until it takes
+// them, and one that lets MAX_BACKLOG pile up is dropped. Runs share the
+// carriers of a Scheduler, with the daemon's limits unless a request has
+// its own.
+// A program is compiled again when its text changes, through a BuildCache
+// in its directory like the command line compiler's. The MAX_RESIDENT most
+// recently used programs and MAX_CACHES build caches stay loaded.
+public class Daemon implements AutoCloseable {
+    public static final int DEFAULT_PORT = 7743;
+    // Limits a run gets when neither its request nor -l/-w set one
+    public static final long DEFAULT_TIME_LIMIT = 10_000;
+
+    private static final int READ_BUFFER = 64 * 1024;
+    private static final int MAX_LINE = 64 * 1024;
+    private static final int MAX_OUTPUT = 1 << 20;
+    private static final int MAX_BACKLOG = 64 << 20;
+    // Buffers handed to one gathering write
+    private static final int MAX_GATHER = 64;
+    public static final int MAX_RESIDENT = 256;
+    public static final int MAX_CACHES = 32;
+
+    private final Path root;
+    private final Compiler compiler;
+    private final long instructionLimit;
+    private final long timeLimit;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final SocketAddress address;
+    private final Path tokenFile;
+    private final String token;
+    private final Scheduler scheduler;
+    private final ExecutorService compileThread = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sml-daemon-compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Thread loop;
+    private final Queue<Connection> dirty = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    // Compile thread only
+    private final BoundedCache<Path, Resident> resident = new BoundedCache<>(MAX_RESIDENT, BoundedCache.Policy.LRU);
+    private final BoundedCache<Path, BuildCache> caches = new BoundedCache<>(MAX_CACHES, BoundedCache.Policy.LRU);
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong compiles = new AtomicLong();
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+
+    // A program as last loaded, with the digest of the text it came from
+    private static final class Resident {
+        final byte[] digest;
+        final CompiledProgram program;
+
+        Resident(byte[] digest, CompiledProgram program) {
+            this.digest = digest;
+            this.program = program;
+        }
+    }
+
+    // A RUN or COMPILE waiting for its batch
+    private static final class Request {
+        final Connection connection;
+        final String id;
+        final Path source;
+        final Scheduler.Feed feed;   // null for COMPILE
+        final long instructionLimit;
+        final long timeLimit;
+
+        Request(Connection connection, String id, Path source, Scheduler.Feed feed, long instructionLimit,
+                long timeLimit) {
+            this.connection = connection;
+            this.id = id;
+            this.source = source;
+            this.feed = feed;
+            this.instructionLimit = instructionLimit;
+            this.timeLimit = timeLimit;
+        }
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        final Queue<String> out = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean queued = new AtomicBoolean();
+        final Map<String, Scheduler.Feed> feeds = new ConcurrentHashMap<>();
+        // Replies taken from out but not written yet, and their size;
+        // selector thread only
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        long pendingBytes;
+        volatile boolean closed;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        // Queues a reply line; any thread. The selector is only woken for
+        // the first line since its last write, so a run writing many values
+        // costs one wakeup per pass, not one per value.
+        void send(String reply) {
+            if (closed)
+                return;
+            out.add(reply);
+            if (queued.compareAndSet(false, true)) {
+                dirty.add(this);
+                selector.wakeup();
+            }
+        }
+    }
+
+    // Serves sources under root, which has to exist
+    public Daemon(SocketAddress address, Path root, Compiler compiler, int threads, long instructionLimit,
+            long timeLimit) throws IOException {
+        this.root = root.toRealPath();
+        this.compiler = compiler;
+        this.instructionLimit = instructionLimit;
+        this.timeLimit = timeLimit;
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            server = ServerSocketChannel.open();
+        }
+        server.bind(address);
+        if (address instanceof UnixDomainSocketAddress)
+            ownerOnly(((UnixDomainSocketAddress) address).getPath());
+        server.configureBlocking(false);
+        this.address = server.getLocalAddress();
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        token = MachineImage.hex(secret);
+        tokenFile = tokenFile(this.address);
+        writeOwnerOnly(tokenFile, token);
+        selector = Selector.open();
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        scheduler = new Scheduler(threads, Scheduler.DEFAULT_SLICE);
+        loop = new Thread(this::serve, "sml-daemon");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    private static void ownerOnly(Path socket) throws IOException {
+        try {
+            Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system; the directory has to protect it
+        }
+    }
+
+    // Replaces file with one only its owner can read or write
+    private static void writeOwnerOnly(Path file, String text) throws IOException {
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system; the directory has to protect it
+            Files.createFile(file);
+        }
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Where the daemon at address keeps its STOP token: next to a Unix
+    // socket, or in the user's home directory for a port
+    public static Path tokenFile(SocketAddress address) {
+        if (address instanceof UnixDomainSocketAddress)
+            return Paths.get(((UnixDomainSocketAddress) address).getPath() + ".token");
+        return Paths.get(System.getProperty("user.home"),
+                ".sml-daemon-" + ((InetSocketAddress) address).getPort() + ".token");
+    }
+
+    // Where it listens; the actual port when it was asked for port 0
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    // The address the -p or -u flag names, the default port otherwise
+    public static SocketAddress address(List<String> flags) {
+        SocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT);
+        for (String flag : flags) {
+            if (flag.matches("-p[0-9]{1,5}"))
+                address = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(flag.substring(2)));
+            if (flag.startsWith("-u") && flag.length() > 2)
+                address = UnixDomainSocketAddress.of(flag.substring(2));
+        }
+        return address;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public String getStats() {
+        return "requests=" + requests.get() + " batches=" + batches.get() + " compiles=" + compiles.get()
+                + " runs=" + runs.get() + " connections=" + connections.get();
+    }
+
+    public void awaitStop() throws InterruptedException {
+        loop.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            loop.join();
+            compileThread.shutdown();
+            compileThread.awaitTermination(10, TimeUnit.SECONDS);
+            scheduler.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys())
+            key.channel().close();
+        selector.close();
+        Files.deleteIfExists(tokenFile);
+        if (address instanceof UnixDomainSocketAddress)
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+    }
+
+    private void serve() {
+        try {
+            while (running) {
+                selector.select();
+                List<Request> batch = new ArrayList<>();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable())
+                        read(connection, batch);
+                    if (key.isValid() && key.isWritable())
+                        flush(connection);
+                }
+                selector.selectedKeys().clear();
+                if (!batch.isEmpty())
+                    compileThread.execute(() -> process(batch));
+                for (Connection connection; (connection = dirty.poll()) != null; )
+                    flush(connection);
+            }
+        } catch (IOException e) {
+            System.out.println("Daemon stopped: " + e.getMessage());
+            running = false;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        new Connection(channel);
+        connections.incrementAndGet();
+    }
+
+    private void read(Connection connection, List<Request> batch) {
+        int count;
+        try {
+            count = connection.channel.read(connection.in);
+        } catch (IOException e) {
+            count = -1;
+        }
+        if (count < 0) {
+            drop(connection);
+            return;
+        }
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+                String line = new String(connection.line.toByteArray(), StandardCharsets.UTF_8);
+                connection.line.reset();
+                handle(connection, line.endsWith("\r") ? line.substring(0, line.length() - 1) : line, batch);
+            } else if (connection.line.size() < MAX_LINE) {
+                connection.line.write(b);
+            } else {
+                drop(connection);
+                return;
+            }
+        }
+        in.clear();
+    }
+
+    private void handle(Connection connection, String line, List<Request> batch) {
+        String[] parts = line.split(" ", 5);
+        String verb = parts[0];
+        String id = parts.length > 1 ? parts[1] : "0";
+        requests.incrementAndGet();
+        try {
+            switch (verb) {
+                case "RUN": {
+                    if (parts.length < 5)
+                        throw new IllegalArgumentException("RUN <id> <instruction limit> <time limit ms> <path>");
+                    if (connection.feeds.containsKey(id))
+                        throw new IllegalArgumentException("Run " + id + " is still going");
+                    Scheduler.Feed feed = new Scheduler.Feed();
+                    connection.feeds.put(id, feed);
+                    batch.add(new Request(connection, id, Paths.get(parts[4]), feed, Long.parseLong(parts[2]),
+                            Long.parseLong(parts[3])));
+                    break;
+                }
+                case "IN": {
+                    Scheduler.Feed feed = connection.feeds.get(id);
+                    if (feed == null)
+                        break;
+                    // A value the console would reject ends the input
+                    if (parts.length > 2 && parts[2].trim().matches("[+-]?\\d{1,9}"))
+                        feed.offer(Integer.parseInt(parts[2].trim()));
+                    else
+                        feed.close();
+                    break;
+                }
+                case "EOF": {
+                    Scheduler.Feed feed = connection.feeds.get(id);
+                    if (feed != null)
+                        feed.close();
+                    break;
+                }
+                case "COMPILE":
+                    if (parts.length < 3)
+                        throw new IllegalArgumentException("COMPILE <id> <path>");
+                    batch.add(new Request(connection, id, Paths.get(line.split(" ", 3)[2]), null, 0, 0));
+                    break;
+                case "STATS":
+                    connection.send("STATS " + id + " " + getStats());
+                    break;
+                case "STOP":
+                    if (parts.length < 3 || !MessageDigest.isEqual(parts[2].getBytes(StandardCharsets.UTF_8),
+                            token.getBytes(StandardCharsets.UTF_8)))
+                        throw new IllegalArgumentException("STOP <id> <token from " + tokenFile + ">");
+                    connection.send("BYE " + id);
+                    running = false;
+                    break;
+                default:
+                    connection.send("ERROR " + id + " Unknown request: " + verb);
+            }
+        } catch (IllegalArgumentException e) {
+            connection.send("ERROR " + id + " " + e.getMessage());
+        }
+    }
+
+    private void flush(Connection connection) {
+        if (connection.closed)
+            return;
+        connection.queued.set(false);
+        StringBuilder text = new StringBuilder();
+        for (String reply; (reply = connection.out.poll()) != null; )
+            text.append(reply).append('\n');
+        if (text.length() > 0) {
+            byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            connection.pending.add(ByteBuffer.wrap(bytes));
+            connection.pendingBytes += bytes.length;
+        }
+        if (connection.pendingBytes > MAX_BACKLOG) {
+            drop(connection);
+            return;
+        }
+        try {
+            while (!connection.pending.isEmpty()) {
+                ByteBuffer[] buffers = connection.pending.stream().limit(MAX_GATHER).toArray(ByteBuffer[]::new);
+                long written = connection.channel.write(buffers);
+                connection.pendingBytes -= written;
+                while (!connection.pending.isEmpty() && !connection.pending.peek().hasRemaining())
+                    connection.pending.poll();
+                if (written == 0)
+                    break;
+            }
+        } catch (IOException e) {
+            drop(connection);
+            return;
+        }
+        boolean more = !connection.pending.isEmpty();
+        connection.key.interestOps((connection.pendingBytes < MAX_OUTPUT ? SelectionKey.OP_READ : 0)
+                | (more ? SelectionKey.OP_WRITE : 0));
+    }
+
+    // Runs waiting for input from a client that is gone stop with NO_INPUT
+    private void drop(Connection connection) {
+        connection.closed = true;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        connection.feeds.values().forEach(Scheduler.Feed::close);
+    }
+
+    // On the compile thread: each source in the batch is loaded once
+    private void process(List<Request> batch) {
+        batches.incrementAndGet();
+        Map<Path, Object> loaded = new HashMap<>();
+        Set<BuildCache> touched = new HashSet<>();
+        Set<Path> compiled = new HashSet<>();
+        for (Request request : batch) {
+            Path source = root.resolve(request.source).normalize();
+            Object program = loaded.computeIfAbsent(source, path -> load(path, touched, compiled));
+            if (program instanceof String) {
+                request.connection.feeds.remove(request.id);
+                request.connection.send("ERROR " + request.id + " " + program);
+            } else if (request.feed == null) {
+                Resident found = (Resident) program;
+                request.connection.send("COMPILED " + request.id + " "
+                        + (compiled.contains(source) ? "compiled" : "cached") + " "
+                        + found.program.getMachineCode().size());
+            } else {
+                start(request, ((Resident) program).program);
+            }
+        }
+        for (BuildCache cache : touched) {
+            try {
+                cache.save();
+            } catch (IOException e) {
+                System.out.println("Error saving build cache: " + e.getMessage());
+            }
+        }
+        scheduler.purge();
+    }
+
+    // The resident program for source, or why there is none. Sources that
+    // had to be compiled go into compiled, and the caches that recorded it
+    // into touched.
+    private Object load(Path requested, Set<BuildCache> touched, Set<Path> compiled) {
+        try {
+            Path source = requested.toRealPath();
+            if (!source.startsWith(root))
+                return requested + " is outside " + root;
+            byte[] digest = MachineImage.sha256(Files.readAllBytes(source));
+            Resident known = resident.get(source);
+            if (known != null && Arrays.equals(known.digest, digest))
+                return known;
+            BuildCache cache = caches.get(source.getParent());
+            if (cache == null) {
+                cache = BuildCache.open(source.getParent().resolve(BuildCache.FILE_NAME));
+                caches.put(source.getParent(), cache);
+            }
+            BuildCache.Build build = cache.build(compiler, source);
+            if (!build.isUpToDate()) {
+                touched.add(cache);
+                compiled.add(requested);
+                compiles.incrementAndGet();
+            }
+            Resident loaded = new Resident(digest, build.getProgram());
+            resident.put(source, loaded);
+            return loaded;
+        } catch (IOException e) {
+            return "Error reading file: " + e.getMessage();
+        } catch (CompileException e) {
+            return e.getMessage().replace('\n', ' ') + " Compilation failed.";
+        }
+    }
+
+    private void start(Request request, CompiledProgram program) {
+        Connection connection = request.connection;
+        String id = request.id;
+        Processor cpu = new Processor(program.getImage().toMemory(), program.getStartAddress());
+        cpu.setRangeAnalysis(program.getRangeAnalysis());
+        cpu.setInput(request.feed);
+        cpu.setOutput(new OutputPort() {
+            @Override
+            public void write(int value) {
+                connection.send("OUT " + id + " " + value);
+            }
+
+            @Override
+            public void warn(String message) {
+                connection.send("WARN " + id + " " + message);
+            }
+        });
+        cpu.setInstructionLimit(request.instructionLimit > 0 ? request.instructionLimit : instructionLimit);
+        cpu.setTimeLimit(request.timeLimit > 0 ? request.timeLimit : timeLimit);
+        runs.incrementAndGet();
+        scheduler.submit(cpu, 0, job -> {
+            connection.feeds.remove(id);
+            RunResult result = job.getResult();
+            connection.send("DONE " + id + " " + result.getReason() + " " + result.getFault() + " "
+                    + result.getInstructionCount() + " " + cpu.getRunTime() / 1000);
+        });
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> flags = Arrays.asList(args);
+        int memorySize = Compiler.DEFAULT_MEMORY_SIZE;
+        int optimizationLevel = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long instructionLimit = 0;
+        long timeLimit = DEFAULT_TIME_LIMIT;
+        Path root = Paths.get("");
+        for (String flag : flags) {
+            if (flag.matches("-m[0-9]{1,8}"))
+                memorySize = Integer.parseInt(flag.substring(2));
+            else if (flag.matches("-O[0-2]"))
+                optimizationLevel = flag.charAt(2) - '0';
+            else if (flag.matches("-t[0-9]{1,3}"))
+                threads = Math.max(1, Integer.parseInt(flag.substring(2)));
+            else if (flag.matches("-l[0-9]{1,18}"))
+                instructionLimit = Long.parseLong(flag.substring(2));
+            else if (flag.matches("-w[0-9]{1,12}"))
+                timeLimit = Long.parseLong(flag.substring(2));
+            else if (flag.startsWith("-r") && flag.length() > 2)
+                root = Paths.get(flag.substring(2));
+            else if (!flag.matches("-p[0-9]{1,5}") && !flag.startsWith("-u")) {
+                System.out.println("Usage: java Daemon [-p<port> | -u<socket>] [-r<root>] [-m<words>] [-O0 | -O1 | -O2] [-t<threads>] [-l<instructions>] [-w<ms>]");
+                return;
+            }
+        }
+        if (memorySize < 1 || memorySize > MachineFormat.MAX_MEMORY_SIZE) {
+            System.out.println("Memory size must be between 1 and " + MachineFormat.MAX_MEMORY_SIZE + " words");
+            return;
+        }
+
+        if (!Files.isDirectory(root)) {
+            System.out.println("Root is not a directory: " + root.toAbsolutePath());
+            return;
+        }
+
+        Daemon daemon = new Daemon(address(flags), root, new Compiler(memorySize, optimizationLevel), threads,
+                instructionLimit, timeLimit);
+        System.out.println("Listening on " + daemon.getAddress() + ", serving " + daemon.getRoot());
+        daemon.awaitStop();
+        daemon.close();
+        System.out.println("Stopped: " + daemon.getStats());
+    }
+}
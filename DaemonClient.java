@@ -0,0 +1,342 @@
+import java.io.*;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+// Client for a running Daemon, and a thin command line front end to it in
+// place of `java Compiler file.sml -d`:
+//
+//    java DaemonClient <file.sml> [-l<instructions>] [-w<ms>] [-p<port> | -u<socket>]
+//    java DaemonClient -stats | -stop [-p<port> | -u<socket>]
+//
+// Standard input goes to the program line by line as it comes, and its
+// outputs are printed as the daemon streams them back. The client loads
+// none of the compiler or processor, so it starts in a fraction of the
+// time a cold run takes. Not thread safe, except that input for a run may
+// be sent from another thread while one waits for it.
+public class DaemonClient implements AutoCloseable {
+    private final SocketChannel channel;
+    private final BufferedReader in;
+    private final Writer out;
+    // Replies read while waiting for another run
+    private final Map<String, Run> runs = new HashMap<>();
+    private long nextId;
+
+    // What came back for one request
+    public static final class Run {
+        private final String id;
+        private final List<Integer> outputs = new ArrayList<>();
+        private final List<String> warnings = new ArrayList<>();
+        private RunResult.Reason reason;
+        private RunResult.Fault fault = RunResult.Fault.NONE;
+        private long instructionCount;
+        private long runMicros;
+        private String error;
+        private String reply;
+        private boolean done;
+
+        Run(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public List<Integer> getOutputs() {
+            return outputs;
+        }
+
+        // As RunResult.getWarnings()
+        public List<String> getWarnings() {
+            return warnings;
+        }
+
+        // Null when the run never started, see getError()
+        public RunResult.Reason getReason() {
+            return reason;
+        }
+
+        public RunResult.Fault getFault() {
+            return fault;
+        }
+
+        public long getInstructionCount() {
+            return instructionCount;
+        }
+
+        // Time the daemon spent running it
+        public long getRunMicros() {
+            return runMicros;
+        }
+
+        // Why the request failed, such as a compile error; null otherwise
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return error != null ? "run " + id + ": " + error
+                    : "run " + id + " " + reason + (fault != RunResult.Fault.NONE ? " (" + fault + ")" : "")
+                            + ", " + instructionCount + " instructions, outputs " + outputs;
+        }
+    }
+
+    private DaemonClient(SocketChannel channel) {
+        this.channel = channel;
+        // Not Channels.newInputStream and newOutputStream: those share a
+        // lock, so waiting for a reply would hold up the input for the run
+        InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+        OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+        };
+        this.in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        this.out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    }
+
+    public static DaemonClient connect(SocketAddress address) throws IOException {
+        return new DaemonClient(SocketChannel.open(address));
+    }
+
+    // Sends a RUN for the program compiled from source and returns its id.
+    // Nothing goes out until flush() or a wait for a reply. Limits of 0 leave
+    // the daemon's own.
+    public String start(Path source, long instructionLimit, long timeLimitMillis) throws IOException {
+        String id = Long.toString(++nextId);
+        send("RUN " + id + " " + instructionLimit + " " + timeLimitMillis + " " + source.toAbsolutePath());
+        runs.put(id, new Run(id));
+        return id;
+    }
+
+    // The next line of input for a run; text the console wouldn't take as
+    // a number ends its input instead
+    public void input(String id, String value) throws IOException {
+        send("IN " + id + " " + value);
+    }
+
+    public void endInput(String id) throws IOException {
+        send("EOF " + id);
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    // Waits for the run to finish, handing each output to onOutput as it
+    // arrives when that isn't null
+    public Run await(String id, IntConsumer onOutput) throws IOException {
+        return await(id, onOutput, null);
+    }
+
+    // Also hands each warning to onWarning as it arrives
+    public Run await(String id, IntConsumer onOutput, Consumer<String> onWarning) throws IOException {
+        flush();
+        Run run = runs.get(id);
+        if (run == null)
+            throw new IllegalArgumentException("No run " + id);
+        while (!run.done)
+            receive(id, onOutput, onWarning);
+        runs.remove(id);
+        return run;
+    }
+
+    // One run with all of its input given up front
+    public Run run(Path source, int... inputs) throws IOException {
+        String id = start(source, 0, 0);
+        for (int input : inputs)
+            input(id, Integer.toString(input));
+        endInput(id);
+        return await(id, null);
+    }
+
+    // Sends every run before waiting for any, so they go out in few
+    // packets and the daemon can take them in one batch
+    public List<Run> runAll(List<Path> sources, List<int[]> inputs) throws IOException {
+        List<String> ids = new ArrayList<>(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            String id = start(sources.get(i), 0, 0);
+            for (int input : inputs.get(i))
+                input(id, Integer.toString(input));
+            endInput(id);
+            ids.add(id);
+        }
+        List<Run> results = new ArrayList<>(ids.size());
+        for (String id : ids)
+            results.add(await(id, null));
+        return results;
+    }
+
+    // "compiled" or "cached" and the instruction count, or the compile error
+    public String compile(Path source) throws IOException {
+        return request("COMPILE", " " + source.toAbsolutePath());
+    }
+
+    public String stats() throws IOException {
+        return request("STATS", "");
+    }
+
+    // Reads the token the daemon wrote for its owner, see Daemon.tokenFile()
+    // Empty once the daemon agreed to stop, or why it didn't
+    public String stop() throws IOException {
+        Path tokenFile = Daemon.tokenFile(channel.getRemoteAddress());
+        String token = new String(Files.readAllBytes(tokenFile), StandardCharsets.UTF_8).trim();
+        return request("STOP", " " + token);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private String request(String verb, String arguments) throws IOException {
+        String id = Long.toString(++nextId);
+        Run run = new Run(id);
+        runs.put(id, run);
+        send(verb + " " + id + arguments);
+        Run reply = await(id, null);
+        return reply.error != null ? reply.error : reply.reply;
+    }
+
+    private synchronized void send(String line) throws IOException {
+        out.write(line);
+        out.write('\n');
+    }
+
+    // Reads one reply and files it under its run
+    private void receive(String streaming, IntConsumer onOutput, Consumer<String> onWarning) throws IOException {
+        String line = in.readLine();
+        if (line == null)
+            throw new EOFException("Daemon closed the connection");
+        String[] parts = line.split(" ", 3);
+        Run run = parts.length > 1 ? runs.get(parts[1]) : null;
+        if (run == null)
+            return;
+        String rest = parts.length > 2 ? parts[2] : "";
+        switch (parts[0]) {
+            case "OUT": {
+                int value = Integer.parseInt(rest);
+                run.outputs.add(value);
+                if (onOutput != null && run.id.equals(streaming))
+                    onOutput.accept(value);
+                break;
+            }
+            case "WARN":
+                run.warnings.add(rest);
+                if (onWarning != null && run.id.equals(streaming))
+                    onWarning.accept(rest);
+                break;
+            case "DONE": {
+                String[] fields = rest.split(" ");
+                run.reason = RunResult.Reason.valueOf(fields[0]);
+                run.fault = RunResult.Fault.valueOf(fields[1]);
+                run.instructionCount = Long.parseLong(fields[2]);
+                run.runMicros = Long.parseLong(fields[3]);
+                run.done = true;
+                break;
+            }
+            case "ERROR":
+                run.error = rest;
+                run.done = true;
+                break;
+            default:
+                run.reply = rest;
+                run.done = true;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: java DaemonClient <filename> [-l<instructions>] [-w<ms>] [-p<port> | -u<socket>]");
+            System.out.println("       java DaemonClient -stats | -stop [-p<port> | -u<socket>]");
+            return;
+        }
+        List<String> flags = Arrays.asList(args).subList(1, args.length);
+        long instructionLimit = 0;
+        long timeLimit = 0;
+        for (String flag : flags) {
+            if (flag.matches("-l[0-9]{1,18}"))
+                instructionLimit = Long.parseLong(flag.substring(2));
+            if (flag.matches("-w[0-9]{1,12}"))
+                timeLimit = Long.parseLong(flag.substring(2));
+        }
+
+        DaemonClient client;
+        try {
+            client = connect(Daemon.address(Arrays.asList(args)));
+        } catch (IOException e) {
+            System.out.println("No daemon running: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        try (client) {
+            if (args[0].equals("-stats")) {
+                System.out.println(client.stats());
+                return;
+            }
+            if (args[0].equals("-stop")) {
+                String reply = client.stop();
+                if (!reply.isEmpty())
+                    System.out.println(reply);
+                return;
+            }
+
+            String id = client.start(Paths.get(args[0]), instructionLimit, timeLimit);
+            client.flush();
+            Thread feeder = new Thread(() -> {
+                try {
+                    BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+                    for (String line; (line = stdin.readLine()) != null; ) {
+                        client.input(id, line.trim());
+                        client.flush();
+                    }
+                    client.endInput(id);
+                    client.flush();
+                } catch (IOException e) {
+                    // the run is over or the daemon went away
+                }
+            }, "sml-client-input");
+            feeder.setDaemon(true);
+            feeder.start();
+
+            Run run = client.await(id, value -> {
+                System.out.print(value);
+                System.out.flush();
+            }, System.out::println);
+            if (run.getError() != null) {
+                System.out.println(run.getError());
+                System.exit(1);
+            }
+            System.out.println();
+            if (run.getFault() != RunResult.Fault.NONE) {
+                System.out.println(run.getFault().getMessage());
+                System.exit(1);
+            }
+        }
+    }
+}
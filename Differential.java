@@ -0,0 +1,217 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Differential check of the engines on generated workloads:
+//
+//    java Differential [workloads] [seed] [-o<timings.csv>]
+//
+// Every workload is a ProgramGenerator program of a random shape, run on a
+// few input vectors by each engine. The plain interpreter is the reference;
+// every other engine must end each run the same way, with the same
+// outputs, warnings, final memory, accumulator, counter and instruction
+// count. The -O2 build only has to write the same outputs and stop the
+// same way, since the optimizer moves data and drops instructions.
+//
+// Each engine is timed per workload, best of a few repetitions after one
+// untimed run, and the timings go to the CSV when -o names one, so a claim
+// that an engine is faster can be checked against workloads of every
+// shape rather than one benchmark.
+public class Differential {
+    private static final int VECTORS = 4;
+    private static final int REPETITIONS = 3;
+
+    // Runs a compiled program once per input vector
+    interface Engine {
+        List<MachineRunner.Result> run(Workload workload) throws Exception;
+    }
+
+    static final class Workload {
+        final int id;
+        final ProgramGenerator.Program program;
+        final CompiledProgram compiled;
+        final CompiledProgram optimized;
+        final List<int[]> inputs;
+
+        Workload(int id, ProgramGenerator.Program program, CompiledProgram compiled, CompiledProgram optimized,
+                List<int[]> inputs) {
+            this.id = id;
+            this.program = program;
+            this.compiled = compiled;
+            this.optimized = optimized;
+            this.inputs = inputs;
+        }
+    }
+
+    private static final Map<String, Engine> engines = new LinkedHashMap<>();
+    static {
+        engines.put("interpreter", w -> processors(w.compiled, w.inputs, cpu -> cpu.setFusion(false)));
+        engines.put("fused", w -> processors(w.compiled, w.inputs, cpu -> { }));
+        engines.put("unchecked", w -> processors(w.compiled, w.inputs,
+                cpu -> cpu.setRangeAnalysis(w.compiled.getRangeAnalysis())));
+        engines.put("jit", w -> processors(w.compiled, w.inputs, cpu -> cpu.setJit(true)));
+        engines.put("limited", w -> processors(w.compiled, w.inputs, cpu -> cpu.setInstructionLimit(Long.MAX_VALUE)));
+        engines.put("sliced", w -> {
+            List<MachineRunner.Result> results = new ArrayList<>();
+            for (int i = 0; i < w.inputs.size(); i++) {
+                MachineImage image = w.compiled.getImage();
+                Processor cpu = new Processor(image.toMemory(), image.getStartAddress());
+                IntRingBuffer outputs = new IntRingBuffer();
+                cpu.setInput(IntRingBuffer.of(w.inputs.get(i)));
+                cpu.setOutput(outputs);
+                while (cpu.runSlice(97)) {
+                    // another slice
+                }
+                results.add(new MachineRunner.Result(i, cpu.getResult(), cpu.getMemory(), outputs));
+            }
+            return results;
+        });
+        engines.put("lockstep", w -> new LockstepBatch(w.compiled.getImage(), w.inputs).run());
+        // A fresh cache per call would only ever miss; the untimed first run
+        // fills this one, so the timed runs are hits
+        ResultCache cache = new ResultCache(1 << 16, BoundedCache.Policy.TINY_LFU);
+        engines.put("cache", w -> {
+            List<MachineRunner.Result> results = new ArrayList<>();
+            for (int i = 0; i < w.inputs.size(); i++)
+                results.add(cache.run(i, w.compiled.getImage(), w.inputs.get(i)));
+            return results;
+        });
+        engines.put("O2", w -> processors(w.optimized, w.inputs, cpu -> { }));
+    }
+
+    interface Setup {
+        void apply(Processor cpu);
+    }
+
+    private static List<MachineRunner.Result> processors(CompiledProgram program, List<int[]> inputs, Setup setup) {
+        List<MachineRunner.Result> results = new ArrayList<>(inputs.size());
+        MachineImage image = program.getImage();
+        for (int i = 0; i < inputs.size(); i++) {
+            Processor cpu = new Processor(image.toMemory(), image.getStartAddress());
+            setup.apply(cpu);
+            results.add(MachineRunner.run(i, cpu, inputs.get(i), null));
+        }
+        return results;
+    }
+
+    // A generator of a random shape; a quarter of them may overflow
+    static ProgramGenerator shape(Random random) {
+        ProgramGenerator generator = new ProgramGenerator(random.nextLong());
+        generator.setMemorySize(random.nextInt(3) == 0 ? 100 : 1000);
+        generator.setLoopDepth(random.nextInt(4));
+        generator.setBlockSize(1 + random.nextInt(8));
+        generator.setMaxTrips(1 + random.nextInt(20));
+        generator.setVariables(1 + random.nextInt(8));
+        generator.setInputCount(random.nextInt(4));
+        generator.setJumpDensity(random.nextInt(4) * 0.15);
+        for (ProgramGenerator.Op op : ProgramGenerator.Op.values())
+            generator.setWeight(op, random.nextInt(4));
+        generator.setFaults(random.nextInt(4) == 0);
+        return generator;
+    }
+
+    // What differs between a result and the reference, or null
+    static String compare(MachineRunner.Result expected, MachineRunner.Result actual, boolean outputsOnly) {
+        RunResult e = expected.getRunResult();
+        RunResult a = actual.getRunResult();
+        if (e.getReason() != a.getReason() || e.getFault() != a.getFault())
+            return "stopped by " + a.getReason() + "/" + a.getFault() + ", expected " + e.getReason() + "/" + e.getFault();
+        if (!Arrays.equals(expected.getOutputs(), actual.getOutputs()))
+            return "outputs " + Arrays.toString(actual.getOutputs()) + ", expected " + Arrays.toString(expected.getOutputs());
+        if (outputsOnly)
+            return null;
+        if (!e.getWarnings().equals(a.getWarnings()))
+            return "warnings " + a.getWarnings() + ", expected " + e.getWarnings();
+        if (!Arrays.equals(expected.getMemory(), actual.getMemory()))
+            return "memory differs";
+        if (e.getAccumulator() != a.getAccumulator() || e.getAddress() != a.getAddress())
+            return "accumulator " + a.getAccumulator() + " at " + a.getAddress() + ", expected "
+                    + e.getAccumulator() + " at " + e.getAddress();
+        if (e.getInstructionCount() != a.getInstructionCount())
+            return a.getInstructionCount() + " instructions, expected " + e.getInstructionCount();
+        return null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> positional = new ArrayList<>();
+        Path csv = null;
+        for (String arg : args) {
+            if (arg.startsWith("-o") && arg.length() > 2)
+                csv = Paths.get(arg.substring(2));
+            else
+                positional.add(arg);
+        }
+        int count = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 300;
+        long seed = positional.size() > 1 ? Long.parseLong(positional.get(1)) : 42;
+
+        Random random = new Random(seed);
+        Map<String, Long> totals = new LinkedHashMap<>();
+        engines.keySet().forEach(name -> totals.put(name, 0L));
+        List<String> rows = new ArrayList<>();
+        rows.add("workload,engine,shape,instructions,nanos");
+        int mismatches = 0;
+        long instructions = 0;
+        int faulted = 0;
+
+        for (int id = 0; id < count; id++) {
+            ProgramGenerator generator = shape(random);
+            ProgramGenerator.Program program = generator.next();
+            String shape = program.getShape();
+            CompiledProgram compiled = new Compiler(program.getMemorySize()).compile(program.getSource());
+            CompiledProgram optimized = new Compiler(program.getMemorySize(), 2).compile(program.getSource());
+            List<int[]> inputs = new ArrayList<>();
+            inputs.add(program.getInputs());
+            for (int v = 1; v < VECTORS; v++)
+                inputs.add(generator.nextInputs());
+            Workload workload = new Workload(id, program, compiled, optimized, inputs);
+
+            List<MachineRunner.Result> reference = null;
+            long ran = 0;
+            for (Map.Entry<String, Engine> engine : engines.entrySet()) {
+                String name = engine.getKey();
+                List<MachineRunner.Result> results = engine.getValue().run(workload);
+                long best = Long.MAX_VALUE;
+                for (int r = 0; r < REPETITIONS; r++) {
+                    long started = System.nanoTime();
+                    engine.getValue().run(workload);
+                    best = Math.min(best, System.nanoTime() - started);
+                }
+                totals.merge(name, best, Long::sum);
+
+                if (reference == null) {
+                    reference = results;
+                    for (MachineRunner.Result result : results) {
+                        ran += result.getInstructionCount();
+                        if (result.getRunResult().isFault())
+                            faulted++;
+                    }
+                    instructions += ran;
+                }
+                rows.add(id + "," + name + ",\"" + shape + "\"," + ran + "," + best);
+                for (int i = 0; i < results.size(); i++) {
+                    String difference = compare(reference.get(i), results.get(i), name.equals("O2"));
+                    if (difference != null) {
+                        mismatches++;
+                        if (mismatches <= 10) {
+                            System.out.println("MISMATCH: workload " + id + " (" + shape + ") input "
+                                    + Arrays.toString(inputs.get(i)) + " on " + name + ": " + difference);
+                            program.getSource().forEach(line -> System.out.println("  " + line));
+                        }
+                    }
+                }
+            }
+        }
+
+        if (csv != null)
+            Files.write(csv, rows);
+        long base = totals.get("interpreter");
+        System.out.printf("%-12s %12s %10s%n", "engine", "total ms", "speedup");
+        totals.forEach((name, nanos) -> System.out.printf("%-12s %12.2f %9.2fx%n", name, nanos / 1e6,
+                nanos == 0 ? 0 : (double) base / nanos));
+        System.out.println(count + " workloads, " + count * VECTORS + " runs (" + faulted + " faulted), "
+                + instructions + " instructions each engine, " + mismatches + " mismatches"
+                + (csv != null ? ", timings in " + csv : ""));
+        if (mismatches > 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+// Binary execution log for offline debugging, read back by ExecutionReplayer.
+// The file starts with the machine state before the first step and then
+// holds one long per executed instruction: its address and the single
+// change it made, the new accumulator or the new value of one memory word.
+// READ records mark the value consumed from input. Records collect in one
+// of two preallocated off-heap buffers; when it fills up a writer thread
+// writes it to the file while the machine goes on into the other, so the
+// run only waits when the disk falls a whole buffer behind.
+//
+// Layout, little-endian like the machines that write it:
+//    header   int 'SMLT', version, memory size, start address, accumulator,
+//             then every memory word
+//    record   long: kind << 60 | address << 46 | changed address << 32 | value
+//    end      END record with the final counter as address, reason << 8 |
+//             fault as changed address and the accumulator as value
+public class ExecutionRecorder implements Closeable {
+    public static final int MAGIC = 0x534D4C54;
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".strace";
+
+    // Addresses, including the one just past the end, are stored in 14 bits
+    public static final int MAX_MEMORY = (1 << 14) - 1;
+
+    static final int HEADER_INTS = 5;
+    static final int RECORD_SIZE = 8;
+
+    // Record kinds
+    static final int NONE = 0;
+    static final int ACCUMULATOR = 1;
+    static final int MEMORY = 2;
+    static final int INPUT = 3;
+    static final int END = 4;
+
+    private final WritableByteChannel out;
+    // The buffer being filled, and the one the writer may still be writing
+    private ByteBuffer buffer;
+    private ByteBuffer spare;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sml-recorder");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> writing;
+    private boolean started;
+    private boolean finished;
+    // Records handed to the writer so far, and the next free slot in the
+    // buffer, kept here rather than in the buffer's own position
+    private long flushed;
+    private int position;
+    private long headerBytes;
+
+    public ExecutionRecorder(Path file) throws IOException {
+        this(file, 64 * 1024);
+    }
+
+    // An existing file is written over in place and cut to length on
+    // close, which is much cheaper than truncating it first and having the
+    // file system hand out all of its pages again
+    public ExecutionRecorder(Path file, int bufferRecords) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE), bufferRecords);
+    }
+
+    public ExecutionRecorder(WritableByteChannel out, int bufferRecords) {
+        this.out = out;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(bufferRecords, 16) * RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        this.spare = ByteBuffer.allocateDirect(buffer.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public long getSteps() {
+        return flushed + position / RECORD_SIZE - (finished ? 1 : 0);
+    }
+
+    // Called by Processor.setRecorder with the state before the first step
+    void start(int startAddress, int accumulator, int[] words) {
+        if (started)
+            throw new IllegalStateException("Recorder is already attached to a run");
+        if (words.length > MAX_MEMORY)
+            throw new IllegalArgumentException("Memory too large to record: " + words.length);
+        started = true;
+        ByteBuffer header = ByteBuffer.allocate((HEADER_INTS + words.length) * 4).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(words.length).putInt(startAddress).putInt(accumulator);
+        header.asIntBuffer().put(words);
+        header.position(header.capacity());
+        header.flip();
+        headerBytes = header.remaining();
+        try {
+            while (header.hasRemaining())
+                out.write(header);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void record(int kind, int pc, int changed, int value) {
+        put((long) kind << 60 | (long) pc << 46 | (long) changed << 32 | (value & 0xFFFFFFFFL));
+    }
+
+    // Called once the run stops; later runs are not recorded
+    void finish(RunResult result) {
+        if (finished)
+            return;
+        finished = true;
+        long status = result.getReason().ordinal() << 8 | result.getFault().ordinal();
+        put((long) END << 60 | (long) result.getAddress() << 46 | status << 32
+                | (result.getAccumulator() & 0xFFFFFFFFL));
+        drain();
+        await();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+            await();
+            if (out instanceof FileChannel)
+                ((FileChannel) out).truncate(headerBytes + flushed * RECORD_SIZE);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            writer.shutdown();
+            out.close();
+        }
+    }
+
+    private void put(long record) {
+        if (position == buffer.capacity())
+            drain();
+        buffer.putLong(position, record);
+        position += RECORD_SIZE;
+    }
+
+    // Hands the filled part of the buffer to the writer and goes on in the
+    // spare one once the writer is done with it
+    private void drain() {
+        if (position == 0)
+            return;
+        await();
+        ByteBuffer full = buffer;
+        full.limit(position).position(0);
+        writing = writer.submit(() -> {
+            while (full.hasRemaining())
+                out.write(full);
+            full.clear();
+            return null;
+        });
+        buffer = spare;
+        spare = full;
+        flushed += position / RECORD_SIZE;
+        position = 0;
+    }
+
+    // Waits for the last write, passing on its failure
+    private void await() {
+        if (writing == null)
+            return;
+        try {
+            writing.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? new UncheckedIOException((IOException) cause)
+                    : new IllegalStateException("Recorder write failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while recording"));
+        } finally {
+            writing = null;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+// Rebuilds machine state from an ExecutionRecorder log. The replayer sits
+// between two steps: at step n the first n instructions have run. Records
+// only hold new values, so opening a log takes one pass that saves the
+// state every few thousand steps; moving backwards restores the nearest
+// saved state at or before the target and applies records from there.
+// The records are mapped in chunks, since one mapping can't pass 2 GB.
+//
+//    java ExecutionReplayer <file.strace> [step]
+public class ExecutionReplayer {
+    // Records per mapped chunk, 512 MB
+    private static final int CHUNK_SHIFT = 26;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private final LongBuffer[] chunks;
+    private final long steps;
+    private final int startAddress;
+    private final int[] startWords;
+    private final MachineFormat format;
+    private final RunResult result;
+
+    // Saved states, one every interval steps
+    private final int interval;
+    private final int[][] savedWords;
+    private final int[] savedAccumulators;
+
+    private final int[] words;
+    private int accumulator;
+    private long step;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: java ExecutionReplayer <file" + ExecutionRecorder.EXTENSION + "> [step]");
+            return;
+        }
+        ExecutionReplayer replay = open(Paths.get(args[0]));
+        System.out.println(replay.getStepCount() + " steps, "
+                + (replay.getResult() == null ? "no end record" : replay.getResult()));
+        replay.seek(args.length > 1 ? Long.parseLong(args[1]) : replay.getStepCount());
+
+        System.out.println("step " + replay.getStep() + ": counter " + replay.getCounter()
+                + ", accumulator " + replay.format.format(replay.getAccumulator()));
+        if (replay.getStep() > 0)
+            System.out.println("last step: " + replay.describe(replay.getStep() - 1));
+        for (int i = 0; i < replay.words.length; i++) {
+            if (replay.words[i] != replay.startWords[i])
+                System.out.println("  " + i + ": " + replay.format.format(replay.startWords[i])
+                        + " -> " + replay.format.format(replay.words[i]));
+        }
+    }
+
+    public static ExecutionReplayer open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            String source = file.toString();
+            ByteBuffer header = read(channel, 0, ExecutionRecorder.HEADER_INTS * 4);
+            int size = header.remaining() == ExecutionRecorder.HEADER_INTS * 4 ? header.getInt(8) : 0;
+            if (size < 0 || size > ExecutionRecorder.MAX_MEMORY)
+                throw new IOException(source + ": truncated trace");
+            header = read(channel, 0, (ExecutionRecorder.HEADER_INTS + size) * 4);
+
+            long offset = header.remaining();
+            long count = Math.max(0, channel.size() - offset) / ExecutionRecorder.RECORD_SIZE;
+            LongBuffer[] chunks = new LongBuffer[(int) ((count + CHUNK_MASK) >> CHUNK_SHIFT)];
+            for (int i = 0; i < chunks.length; i++) {
+                long first = (long) i << CHUNK_SHIFT;
+                long records = Math.min(CHUNK_MASK + 1, count - first);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + first * ExecutionRecorder.RECORD_SIZE,
+                        records * ExecutionRecorder.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            }
+            return new ExecutionReplayer(header, chunks, count, source);
+        }
+    }
+
+    // A trace held in memory, such as one recorded into a buffer
+    public ExecutionReplayer(ByteBuffer buffer, String source) throws IOException {
+        this(buffer, new LongBuffer[] { records(buffer) }, records(buffer).capacity(), source);
+    }
+
+    private ExecutionReplayer(ByteBuffer header, LongBuffer[] chunks, long count, String source) throws IOException {
+        ByteBuffer buffer = header.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < ExecutionRecorder.HEADER_INTS * 4 || buffer.getInt() != ExecutionRecorder.MAGIC)
+            throw new IOException(source + ": not an execution trace");
+        int version = buffer.getInt();
+        if (version != ExecutionRecorder.VERSION)
+            throw new IOException(source + ": unsupported trace version " + version);
+
+        int size = buffer.getInt();
+        startAddress = buffer.getInt();
+        int startAccumulator = buffer.getInt();
+        if (size < 0 || size > ExecutionRecorder.MAX_MEMORY || buffer.remaining() < size * 4)
+            throw new IOException(source + ": truncated trace");
+        format = MachineFormat.of(size);
+        startWords = new int[size];
+        buffer.asIntBuffer().get(startWords);
+
+        this.chunks = chunks;
+        // A run that was cut short has no end record
+        if (count > 0 && kind(record(count - 1)) == ExecutionRecorder.END) {
+            long end = record(count - 1);
+            int status = changed(end);
+            result = new RunResult(RunResult.Reason.values()[status >> 8],
+                    RunResult.Fault.values()[status & 0xFF], address(end), value(end), count - 1);
+            count--;
+        } else {
+            result = null;
+        }
+        steps = count;
+
+        // Keeps the saved states to about a quarter of a byte per step
+        interval = Math.max(1024, 16 * size);
+        savedWords = new int[(int) (steps / interval) + 1][];
+        savedAccumulators = new int[savedWords.length];
+        words = startWords.clone();
+        accumulator = startAccumulator;
+        for (int i = 0; i < savedWords.length; i++) {
+            if (i > 0) {
+                while (step < (long) i * interval)
+                    stepForward();
+            }
+            savedWords[i] = words.clone();
+            savedAccumulators[i] = accumulator;
+        }
+        restore(0);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+            // until full or at the end of the file
+        }
+        return buffer.flip();
+    }
+
+    // The records after the header of a whole trace in one buffer, or none
+    // when the header is cut short
+    private static LongBuffer records(ByteBuffer buffer) {
+        buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int size = buffer.remaining() < ExecutionRecorder.HEADER_INTS * 4 ? -1 : buffer.getInt(buffer.position() + 8);
+        if (size < 0 || size > ExecutionRecorder.MAX_MEMORY
+                || (ExecutionRecorder.HEADER_INTS + size) * 4 > buffer.remaining())
+            return LongBuffer.allocate(0);
+        buffer.position(buffer.position() + (ExecutionRecorder.HEADER_INTS + size) * 4);
+        return buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+
+    private long record(long index) {
+        return chunks[(int) (index >>> CHUNK_SHIFT)].get((int) (index & CHUNK_MASK));
+    }
+
+    public long getStepCount() {
+        return steps;
+    }
+
+    public long getStep() {
+        return step;
+    }
+
+    // How the recorded run ended, or null when the trace has no end record
+    public RunResult getResult() {
+        return result;
+    }
+
+    // Address of the next instruction, or -1 past the end of a cut short trace
+    public int getCounter() {
+        if (step < steps)
+            return address(record(step));
+        if (result != null)
+            return result.getAddress();
+        return step == 0 ? startAddress : -1;
+    }
+
+    public int getAccumulator() {
+        return accumulator;
+    }
+
+    public int getWord(int address) {
+        return words[address];
+    }
+
+    public Memory getMemory() {
+        Memory memory = new Memory(words.length);
+        memory.loadWords(0, words);
+        return memory;
+    }
+
+    // Values the program read, in order
+    public int[] getInputs() {
+        IntRingBuffer inputs = new IntRingBuffer();
+        for (long i = 0; i < steps; i++) {
+            long record = record(i);
+            if (kind(record) == ExecutionRecorder.INPUT)
+                inputs.offer(value(record));
+        }
+        return inputs.toArray();
+    }
+
+    public boolean stepForward() {
+        if (step >= steps)
+            return false;
+        long record = record(step);
+        switch (kind(record)) {
+            case ExecutionRecorder.ACCUMULATOR:
+                accumulator = value(record);
+                break;
+            case ExecutionRecorder.MEMORY:
+            case ExecutionRecorder.INPUT:
+                words[changed(record)] = value(record);
+                break;
+            default:
+                break;
+        }
+        step++;
+        return true;
+    }
+
+    public boolean stepBack() {
+        if (step <= 0)
+            return false;
+        seek(step - 1);
+        return true;
+    }
+
+    // Applies records from the current step when the target lies ahead in
+    // the same stretch, otherwise from the nearest saved state
+    public void seek(long target) {
+        if (target < 0 || target > steps)
+            throw new IllegalArgumentException("Step out of range: " + target);
+        int saved = (int) (target / interval);
+        if (target < step || step < (long) saved * interval)
+            restore(saved);
+        while (step < target)
+            stepForward();
+    }
+
+    // One line for a step, such as "12 @ 07: memory[15] = 0004"
+    public String describe(long index) {
+        long record = record(index);
+        String where = index + " @ " + String.format("%0" + format.getOperandDigits() + "d", address(record)) + ": ";
+        String value = format.format(value(record));
+        switch (kind(record)) {
+            case ExecutionRecorder.ACCUMULATOR:
+                return where + "accumulator = " + value;
+            case ExecutionRecorder.MEMORY:
+                return where + "memory[" + changed(record) + "] = " + value;
+            case ExecutionRecorder.INPUT:
+                return where + "input " + value + " into [" + changed(record) + "]";
+            default:
+                return where + "no change";
+        }
+    }
+
+    private void restore(int saved) {
+        System.arraycopy(savedWords[saved], 0, words, 0, words.length);
+        accumulator = savedAccumulators[saved];
+        step = (long) saved * interval;
+    }
+
+    private static int kind(long record) {
+        return (int) (record >>> 60);
+    }
+
+    private static int address(long record) {
+        return (int) (record >>> 46) & 0x3FFF;
+    }
+
+    private static int changed(long record) {
+        return (int) (record >>> 32) & 0x3FFF;
+    }
+
+    private static int value(long record) {
+        return (int) record;
+    }
+}
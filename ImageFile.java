@@ -0,0 +1,116 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Binary machine image, the compact alternative to the text .mach format.
+//
+//    int    magic        'SMLI'
+//    short  version
+//    int    start address
+//    int    word count
+//    int    CRC32 of the packed words
+//    short  words[word count]     version 1
+//    int    words[word count]     version 2
+//
+// All values are big-endian. Classic images of up to 100 words are written
+// as version 1, since their four-digit words fit in a short; larger images
+// have wider words and use version 2.
+public class ImageFile {
+    public static final String EXTENSION = ".simg";
+
+    private static final int MAGIC = 0x534D4C49;
+    private static final short VERSION = 1;
+    private static final short WIDE_VERSION = 2;
+    private static final int HEADER_SIZE = 18;
+
+    public static void write(Path file, MachineImage image) throws IOException {
+        int count = image.getWordCount();
+        boolean wide = count > MachineFormat.CLASSIC.getMaxOperand() + 1;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (wide ? 4 : 2) * count);
+        buffer.putInt(MAGIC);
+        buffer.putShort(wide ? WIDE_VERSION : VERSION);
+        buffer.putInt(image.getStartAddress());
+        buffer.putInt(count);
+        buffer.putInt(0);
+        for (int i = 0; i < count; i++) {
+            if (wide)
+                buffer.putInt(image.getWord(i));
+            else
+                buffer.putShort((short) image.getWord(i));
+        }
+
+        buffer.putInt(HEADER_SIZE - 4, checksum(buffer.duplicate().position(HEADER_SIZE)));
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+
+    // Maps the file and decodes it, checking the header and checksum
+    public static MachineImage read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(buffer, file.toString());
+        }
+    }
+
+    // Every image in a directory, keyed by file name without the extension
+    public static Map<String, MachineImage> readDirectory(Path dir) throws IOException {
+        Map<String, MachineImage> images = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                images.put(name.substring(0, name.length() - EXTENSION.length()), read(file));
+            }
+        }
+        return images;
+    }
+
+    public static MachineImage decode(ByteBuffer buffer, String source) throws IOException {
+        buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+            throw new IOException(source + ": not a machine image");
+        short version = buffer.getShort();
+        if (version != VERSION && version != WIDE_VERSION)
+            throw new IOException(source + ": unsupported image version " + version);
+        int wordSize = version == VERSION ? 2 : 4;
+
+        int start = buffer.getInt();
+        int count = buffer.getInt();
+        int expected = buffer.getInt();
+        if (count < 0 || count > MachineFormat.MAX_MEMORY_SIZE || buffer.remaining() != (long) wordSize * count)
+            throw new IOException(source + ": truncated image");
+        if (start < 0 || start > count)
+            throw new IOException(source + ": bad start address " + start);
+        if (checksum(buffer.duplicate()) != expected)
+            throw new IOException(source + ": checksum mismatch");
+
+        int[] words = new int[count];
+        if (wordSize == 4) {
+            buffer.asIntBuffer().get(words);
+        } else {
+            short[] packed = new short[count];
+            buffer.asShortBuffer().get(packed);
+            for (int i = 0; i < count; i++)
+                words[i] = packed[i];
+        }
+        MachineFormat format = MachineFormat.of(count);
+        for (int i = 0; i < count; i++) {
+            if (!format.fits(words[i]))
+                throw new IOException(source + ": word out of range at address " + i);
+        }
+        return new MachineImage(start, words);
+    }
+
+    private static int checksum(ByteBuffer words) {
+        CRC32 crc = new CRC32();
+        crc.update(words);
+        return (int) crc.getValue();
+    }
+}
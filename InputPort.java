@@ -0,0 +1,16 @@
+import java.util.NoSuchElementException;
+
+// Where READ takes its values from
+public interface InputPort {
+    // True when read() would return a value without blocking
+    boolean available();
+
+    // Next value; throws NoSuchElementException when no more input will come
+    int read() throws NoSuchElementException;
+
+    // True once no more input will come, so a READ that finds nothing
+    // available should fail rather than wait
+    default boolean isClosed() {
+        return false;
+    }
+}
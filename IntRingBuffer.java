@@ -0,0 +1,91 @@
+import java.util.*;
+
+// In-memory FIFO of ints that can serve as a Processor's input, its output,
+// or both. The backing array wraps around and doubles when it fills up, so
+// nothing is dropped.
+public class IntRingBuffer implements InputPort, OutputPort {
+    private int[] values;
+    private int head;
+    private int size;
+
+    public IntRingBuffer() {
+        this(16);
+    }
+
+    public IntRingBuffer(int capacity) {
+        values = new int[Math.max(1, capacity)];
+    }
+
+    public static IntRingBuffer of(int... inputs) {
+        IntRingBuffer buffer = new IntRingBuffer(inputs.length);
+        System.arraycopy(inputs, 0, buffer.values, 0, inputs.length);
+        buffer.size = inputs.length;
+        return buffer;
+    }
+
+    public void offer(int value) {
+        if (size == values.length)
+            grow();
+        values[(head + size) % values.length] = value;
+        size++;
+    }
+
+    public int poll() {
+        if (size == 0)
+            throw new NoSuchElementException("Ring buffer is empty");
+        int value = values[head];
+        head = (head + 1) % values.length;
+        size--;
+        return value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    // Contents in FIFO order, without removing them
+    public int[] toArray() {
+        int[] out = new int[size];
+        for (int i = 0; i < size; i++)
+            out[i] = values[(head + i) % values.length];
+        return out;
+    }
+
+    @Override
+    public boolean available() {
+        return size > 0;
+    }
+
+    // Nothing is added to a buffer while a machine reads from it
+    @Override
+    public boolean isClosed() {
+        return size == 0;
+    }
+
+    @Override
+    public int read() {
+        return poll();
+    }
+
+    @Override
+    public void write(int value) {
+        offer(value);
+    }
+
+    private void grow() {
+        int[] grown = new int[values.length * 2];
+        for (int i = 0; i < size; i++)
+            grown[i] = values[(head + i) % values.length];
+        values = grown;
+        head = 0;
+    }
+}
@@ -0,0 +1,629 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.util.*;
+
+// Turns a loaded image into a JVM class with one static method,
+//
+//    static void run(Processor p, int[] memory, int acc, int pc)
+//
+// The accumulator and instruction count live in locals and memory is the
+// Memory's own int[]. Every reachable address gets a label; JUMP, JUMPN and
+// JUMPZ become goto/iflt/ifeq to the target's label and straight-line code
+// between them falls through, so HotSpot sees ordinary loops. LOAD, STORE and
+// the arithmetic opcodes run inline. READ, WRITE, DIV, MOD, HALT and anything
+// that would fault are handed to the interpreter one instruction at a time.
+//
+// A STORE or READ into a reachable address is self-modifying code: the
+// generated method runs that instruction through the interpreter and returns,
+// and the Processor carries on interpreting.
+//
+// An image is only compiled once runs of it have interpreted HOT_INSTRUCTIONS
+// between them. Generating a class and waiting for HotSpot to compile it
+// costs more than a few short runs take to interpret, and run only a few
+// times the generated code runs slower than the interpreter. The cache holds
+// no copies of memory: heat is counted under a cheap 64-bit hash of the
+// image, and compiled code under the image's SHA-256 digest, which is only
+// worked out for hot images. It is bounded by entries and by the words of
+// the images it compiled.
+public class JitCompiler {
+    // Methods are limited to 64K and branches here use 16-bit offsets
+    private static final int MAX_CODE = 32767;
+    private static final int CACHE_SIZE = 256;
+    private static final long CACHE_WORDS = 1 << 22;
+    public static final long HOT_INSTRUCTIONS = 500_000;
+
+    private static final MethodType RUN_TYPE = MethodType.methodType(
+            void.class, Processor.class, int[].class, int.class, int.class);
+
+    // Least recently used first; cachedWords is the sum of the entries'
+    // words, both guarded by cache
+    private static final Map<Long, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedWords;
+
+    private static int classCount = 0;
+
+    public static class Program {
+        private final MethodHandle run;
+        private final boolean[] code;
+
+        private Program(MethodHandle run, boolean[] code) {
+            this.run = run;
+            this.code = code;
+        }
+
+        public boolean isCode(int address) {
+            return address >= 0 && address < code.length && code[address];
+        }
+
+        void run(Processor cpu, int[] memory, int acc, int pc) {
+            try {
+                run.invokeExact(cpu, memory, acc, pc);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    // An image and what the JIT made of it so far: nothing while it is
+    // cold, then its compiled code, or a note that it can't be compiled,
+    // so that an image over MAX_CODE isn't generated again on every run.
+    // Images whose hashes collide share the heat, and only the first to be
+    // compiled gets code. Callers pass the image's words in.
+    public static final class Entry {
+        private final long hash;
+        private final int startAddress;
+        private long heat;
+        private String digest;
+        // Set with program, which stays null when the image can't be compiled
+        private Program program;
+        // Words charged to the cache for this entry
+        private long words = 1;
+
+        private Entry(long hash, int startAddress) {
+            this.hash = hash;
+            this.startAddress = startAddress;
+        }
+
+        // The compiled code once the image is hot, compiling it from words
+        // the first time; null while it is cold or when it can't be compiled
+        public synchronized Program getProgram(int[] words) {
+            return heat >= HOT_INSTRUCTIONS || digest != null ? compile(words) : null;
+        }
+
+        // Instructions a run may interpret before the image turns hot
+        public synchronized long getColdLeft() {
+            return digest != null ? Long.MAX_VALUE : Math.max(0, HOT_INSTRUCTIONS - heat);
+        }
+
+        // Counts the instructions a run interpreted; true once they have
+        // made an image hot that may still be compiled
+        public synchronized boolean interpreted(long instructions) {
+            heat += instructions;
+            return heat >= HOT_INSTRUCTIONS && digest == null;
+        }
+
+        // Compiles the image now, however cold; null when it can't be
+        public synchronized Program compile(int[] words) {
+            String image = digest(words, startAddress);
+            if (digest == null) {
+                digest = image;
+                program = generate(words, startAddress);
+                if (program != null)
+                    charge(this, words.length);
+            }
+            return image.equals(digest) ? program : null;
+        }
+    }
+
+    // The entry for the image as it is now, entered at startAddress
+    public static Entry entry(int[] words, int startAddress) {
+        long hash = startAddress;
+        for (int word : words)
+            hash = hash * 0x9E3779B97F4A7C15L + word;
+        synchronized (cache) {
+            Entry entry = cache.get(hash);
+            if (entry == null) {
+                entry = new Entry(hash, startAddress);
+                cache.put(hash, entry);
+                cachedWords += entry.words;
+                evict();
+            }
+            return entry;
+        }
+    }
+
+    // Returns null when the image can't be compiled; callers then interpret
+    public static Program compile(int[] words, int startAddress) {
+        return entry(words, startAddress).compile(words);
+    }
+
+    // SHA-256 of the start address and words, as MachineImage.getDigest()
+    private static String digest(int[] words, int startAddress) {
+        ByteBuffer bytes = ByteBuffer.allocate(4 * (words.length + 1));
+        bytes.putInt(startAddress).asIntBuffer().put(words);
+        return MachineImage.hex(MachineImage.sha256(bytes.array()));
+    }
+
+    // Counts a compiled image's words against the cache, unless the entry
+    // was dropped from it while compiling
+    private static void charge(Entry entry, int words) {
+        synchronized (cache) {
+            if (cache.get(entry.hash) != entry)
+                return;
+            cachedWords += words;
+            entry.words += words;
+            evict();
+        }
+    }
+
+    private static void evict() {
+        Iterator<Entry> eldest = cache.values().iterator();
+        while (cache.size() > CACHE_SIZE || (cachedWords > CACHE_WORDS && cache.size() > 1)) {
+            cachedWords -= eldest.next().words;
+            eldest.remove();
+        }
+    }
+
+    private static Program generate(int[] words, int startAddress) {
+        if (startAddress < 0 || startAddress >= words.length)
+            return null;
+        ControlFlowGraph graph = ControlFlowGraph.build(words, startAddress);
+        boolean[] code = graph.getReachable();
+        // Block starts, which take in startAddress and every jump target
+        int[] entries = graph.getBlocks().stream().mapToInt(ControlFlowGraph.Block::getStart).sorted().toArray();
+        // Compiled code is only entered at startAddress with memory holding
+        // exactly words, the state the analysis starts from, whatever the
+        // accumulator holds: entries hand code only to images with the
+        // digest it was compiled from, and a run that turns an image hot
+        // compiles the state it has reached rather than entering the
+        // image's code at its current counter
+        boolean[] unchecked = RangeAnalysis.analyze(words, startAddress).getUnchecked();
+
+        String name = nextClassName();
+        ClassBuilder cls = new ClassBuilder(name);
+        byte[] body = new MethodEmitter(cls, words, code, entries, unchecked).emit();
+        if (body == null)
+            return null;
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(cls.toBytes(body, 6, 7), true);
+            MethodHandle run = lookup.findStatic(lookup.lookupClass(), "run", RUN_TYPE);
+            return new Program(run, code);
+        } catch (IllegalAccessException | NoSuchMethodException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static synchronized String nextClassName() {
+        return "SmlJit" + (classCount++);
+    }
+
+    // Locals of the generated run method
+    private static final int L_CPU = 0;
+    private static final int L_MEM = 1;
+    private static final int L_ACC = 2;
+    private static final int L_PC = 3;
+    private static final int L_COUNT = 4;    // long, takes 4 and 5
+    private static final int L_TEMP = 6;
+
+    private static final class MethodEmitter {
+        private final ClassBuilder cls;
+        private final int[] words;
+        private final MachineFormat format;
+        // Whether the product of two words still fits in an int, as it
+        // does for four-digit words
+        private final boolean intProducts;
+        private final boolean[] code;
+        // Addresses the entry switch goes to, in order
+        private final int[] entries;
+        // Arithmetic that can't leave the word range, emitted without checks
+        private final boolean[] unchecked;
+        private byte[] out = new byte[1024];
+        private int size;
+        private final int[] labels;
+        // Branch sites waiting for their target label: {site, patch offset, address}
+        private final List<int[]> fixups = new ArrayList<>();
+
+        private final int jitStep;
+        private final int jitExit;
+        private final int getAccumulator;
+        private final int getCounter;
+        private final int isStopped;
+
+        MethodEmitter(ClassBuilder cls, int[] words, boolean[] code, int[] entries, boolean[] unchecked) {
+            this.cls = cls;
+            this.words = words;
+            this.format = MachineFormat.of(words.length);
+            this.intProducts = (long) format.getMaxWord() * format.getMaxWord() <= Integer.MAX_VALUE;
+            this.code = code;
+            this.entries = entries;
+            this.unchecked = unchecked;
+            this.labels = new int[words.length];
+            this.jitStep = cls.methodRef("Processor", "jitStep", "(II)V");
+            this.jitExit = cls.methodRef("Processor", "jitExit", "(IIJ)V");
+            this.getAccumulator = cls.methodRef("Processor", "getAccumulator", "()I");
+            this.getCounter = cls.methodRef("Processor", "getCounter", "()I");
+            this.isStopped = cls.methodRef("Processor", "isStopped", "()Z");
+        }
+
+        byte[] emit() {
+            op(0x09); op(0x37); op(L_COUNT);   // lconst_0, lstore count
+            op(0x03); op(0x36); op(L_TEMP);    // iconst_0, istore temp
+            emitEntrySwitch();
+
+            for (int address = 0; address < words.length; address++) {
+                if (!code[address])
+                    continue;
+                labels[address] = size;
+                emitInstruction(address);
+            }
+
+            for (int[] fixup : fixups) {
+                int offset = labels[fixup[2]] - fixup[0];
+                if (fixup[1] == 4)
+                    patch4(fixup[0] + fixup[3], offset);
+                else
+                    patch2(fixup[0] + 1, offset);
+            }
+
+            return size > MAX_CODE ? null : Arrays.copyOf(out, size);
+        }
+
+        // A lookupswitch over the block starts only, so that the switch
+        // grows with the code rather than with memory
+        private void emitEntrySwitch() {
+            load(L_PC);
+            int site = size;
+            op(0xab);                           // lookupswitch
+            while (size % 4 != 0)
+                op(0);
+            int defaultSlot = size - site;
+            int4(0);
+            int4(entries.length);
+            int[] slots = new int[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                int4(entries[i]);
+                slots[i] = size - site;
+                int4(0);
+            }
+
+            // Addresses outside the compiled region go straight back
+            int exitLabel = size;
+            exit(L_PC);
+            patch4(site + defaultSlot, exitLabel - site);
+            for (int i = 0; i < entries.length; i++)
+                fixups.add(new int[] { site, 4, entries[i], slots[i] });
+        }
+
+        private void emitInstruction(int address) {
+            int word = words[address];
+            int opCode = format.opCode(word);
+            int operand = format.operand(word);
+
+            // The interpreter stops on an operand past the end of memory
+            // with an ADDRESS fault
+            if (operand >= words.length && MachineFormat.usesMemory(opCode)) {
+                stepAndExit(address);
+                return;
+            }
+
+            switch (opCode) {
+                case 20:                        // LOAD
+                    load(L_MEM); push(operand); op(0x2e); store(L_ACC);
+                    count();
+                    break;
+                case 22:                        // LOADI
+                    push(operand); store(L_ACC);
+                    count();
+                    break;
+                case 21:                        // STORE
+                    if (code[operand]) {
+                        stepAndExit(address);
+                        return;
+                    } else {
+                        load(L_MEM); push(operand); load(L_ACC); op(0x4f);
+                        count();
+                    }
+                    break;
+                case 10:                        // READ
+                    if (code[operand]) {
+                        stepAndExit(address);
+                        return;
+                    }
+                    step(address);
+                    break;
+                case 30: arithmetic(address, 0x60, operand, true); break;
+                case 31: arithmetic(address, 0x64, operand, true); break;
+                case 34:
+                case 39:
+                    if (intProducts || unchecked[address])
+                        arithmetic(address, 0x68, operand, opCode == 34);
+                    else
+                        step(address);
+                    break;
+                case 35: arithmetic(address, 0x60, operand, false); break;
+                case 36: arithmetic(address, 0x64, operand, false); break;
+                case 40:                        // JUMP
+                    count();
+                    jumpTo(0xa7, operand);
+                    break;
+                case 41:                        // JUMPN
+                    count();
+                    load(L_ACC);
+                    jumpTo(0x9b, operand);      // iflt
+                    break;
+                case 42:                        // JUMPZ
+                    count();
+                    load(L_ACC);
+                    jumpTo(0x99, operand);      // ifeq
+                    break;
+                default:                        // WRITE, DIV, MOD, HALT, unknown
+                    step(address);
+            }
+
+            if (opCode != 40 && (address + 1 >= words.length || !code[address + 1]))
+                exitAt(address + 1);
+        }
+
+        // acc = acc <op> value, handing the instruction to the interpreter
+        // when the result leaves the word range
+        private void arithmetic(int address, int opcode, int operand, boolean fromMemory) {
+            load(L_ACC);
+            if (fromMemory) {
+                load(L_MEM); push(operand); op(0x2e);
+            } else {
+                push(operand);
+            }
+            op(opcode);
+            if (unchecked[address]) {
+                store(L_ACC);
+                count();
+                return;
+            }
+            store(L_TEMP);
+
+            load(L_TEMP); push(format.getMaxWord());
+            int over = branch(0xa3);            // if_icmpgt
+            load(L_TEMP); push(format.getMinWord());
+            int under = branch(0xa1);           // if_icmplt
+            load(L_TEMP); store(L_ACC);
+            count();
+            int done = branch(0xa7);
+
+            int fault = size;
+            patch2(over + 1, fault - over);
+            patch2(under + 1, fault - under);
+            step(address);
+            patch2(done + 1, size - done);
+        }
+
+        // Runs one instruction in the interpreter, then either continues or
+        // returns if the machine stopped
+        private void step(int address) {
+            callStep(address);
+            load(L_CPU); op(0xb6); u2(isStopped);
+            int running = branch(0x99);         // ifeq
+            load(L_CPU); load(L_ACC);
+            load(L_CPU); op(0xb6); u2(getCounter);
+            op(0x16); op(L_COUNT);
+            op(0xb6); u2(jitExit);
+            op(0xb1);                           // return
+            patch2(running + 1, size - running);
+        }
+
+        private void stepAndExit(int address) {
+            step(address);
+            exitAt(address + 1);
+        }
+
+        private void callStep(int address) {
+            load(L_CPU); load(L_ACC); push(address);
+            op(0xb6); u2(jitStep);
+            load(L_CPU); op(0xb6); u2(getAccumulator);
+            store(L_ACC);
+        }
+
+        private void jumpTo(int opcode, int target) {
+            if (target >= 0 && target < words.length && code[target]) {
+                int site = size;
+                op(opcode); u2(0);
+                fixups.add(new int[] { site, 2, target });
+            } else if (opcode == 0xa7) {
+                exitAt(target);
+            } else {
+                int skip = branch(opcode == 0x9b ? 0x9c : 0x9a);   // ifge / ifne
+                exitAt(target);
+                patch2(skip + 1, size - skip);
+            }
+        }
+
+        private void exitAt(int pc) {
+            push(pc); store(L_PC);
+            exit(L_PC);
+        }
+
+        private void exit(int pcLocal) {
+            load(L_CPU); load(L_ACC); load(pcLocal);
+            op(0x16); op(L_COUNT);
+            op(0xb6); u2(jitExit);
+            op(0xb1);
+        }
+
+        private void count() {
+            op(0x16); op(L_COUNT);              // lload count
+            op(0x0a); op(0x61);                 // lconst_1, ladd
+            op(0x37); op(L_COUNT);              // lstore count
+        }
+
+        private int branch(int opcode) {
+            int site = size;
+            op(opcode); u2(0);
+            return site;
+        }
+
+        private void load(int local) {
+            op(local == L_CPU || local == L_MEM ? 0x19 : 0x15);
+            op(local);
+        }
+
+        private void store(int local) {
+            op(0x36); op(local);
+        }
+
+        private void push(int value) {
+            if (value >= -1 && value <= 5) {
+                op(0x03 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(0x10); op(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(0x11); u2(value);
+            } else {
+                int index = cls.intConstant(value);
+                op(0x13); u2(index);            // ldc_w
+            }
+        }
+
+        private void op(int b) {
+            if (size == out.length)
+                out = Arrays.copyOf(out, size * 2);
+            out[size++] = (byte) b;
+        }
+
+        private void u2(int v) {
+            op(v >>> 8);
+            op(v);
+        }
+
+        private void int4(int v) {
+            u2(v >>> 16);
+            u2(v);
+        }
+
+        private void patch2(int at, int v) {
+            out[at] = (byte) (v >>> 8);
+            out[at + 1] = (byte) v;
+        }
+
+        private void patch4(int at, int v) {
+            out[at] = (byte) (v >>> 24);
+            out[at + 1] = (byte) (v >>> 16);
+            out[at + 2] = (byte) (v >>> 8);
+            out[at + 3] = (byte) v;
+        }
+    }
+
+    // Minimal class file writer. Version 50 class files don't need
+    // StackMapTable frames, which keeps the emitter small.
+    private static final class ClassBuilder {
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int poolCount = 1;
+
+        private final int thisClass;
+        private final int superClass;
+        private final int runName;
+        private final int runType;
+        private final int codeName;
+
+        ClassBuilder(String name) {
+            thisClass = classRef(name);
+            superClass = classRef("java/lang/Object");
+            runName = utf8("run");
+            runType = utf8(RUN_TYPE.toMethodDescriptorString());
+            codeName = utf8("Code");
+        }
+
+        int utf8(String value) {
+            return entry("U" + value, out -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            });
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return entry("C" + name, out -> {
+                out.writeByte(7);
+                out.writeShort(nameIndex);
+            });
+        }
+
+        int methodRef(String owner, String name, String type) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            int nameAndType = entry("N" + name + type, out -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(typeIndex);
+            });
+            return entry("M" + owner + "." + name + type, out -> {
+                out.writeByte(10);
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        int intConstant(int value) {
+            return entry("I" + value, out -> {
+                out.writeByte(3);
+                out.writeInt(value);
+            });
+        }
+
+        private interface EntryWriter {
+            void write(DataOutputStream out) throws IOException;
+        }
+
+        private int entry(String key, EntryWriter writer) {
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+            try {
+                writer.write(poolOut);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            entries.put(key, poolCount);
+            return poolCount++;
+        }
+
+        byte[] toBytes(byte[] code, int maxStack, int maxLocals) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(50);
+                out.writeShort(poolCount);
+                out.write(pool.toByteArray());
+                out.writeShort(0x0031);             // public final super
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(0);                  // interfaces
+                out.writeShort(0);                  // fields
+                out.writeShort(1);                  // methods
+                out.writeShort(0x0009);             // public static
+                out.writeShort(runName);
+                out.writeShort(runType);
+                out.writeShort(1);                  // attributes
+                out.writeShort(codeName);
+                out.writeInt(12 + code.length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                out.writeShort(0);                  // exception table
+                out.writeShort(0);                  // code attributes
+                out.writeShort(0);                  // class attributes
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+    }
+}
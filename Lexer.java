@@ -0,0 +1,136 @@
+import java.io.*;
+
+// Hand-written tokenizer for SML source. Reads the input once through its
+// own buffer and hands out one token at a time; identifier text is only
+// materialised when the parser asks for it.
+public class Lexer {
+    public enum Token { IDENT, NUMBER, EQUALS, COLON, NEWLINE, EOF, OTHER }
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+
+    private final StringBuilder text = new StringBuilder();
+    private long number;
+    private int line = 1;
+    private int tokenLine = 1;
+
+    public Lexer(Reader in) {
+        this.in = in;
+    }
+
+    public Token next() throws IOException {
+        text.setLength(0);
+        int c = peek();
+
+        // Blanks, and comments up to the end of the line
+        while (true) {
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\f') {
+                position++;
+                c = peek();
+            } else if (c == '/' && peekAt(1) == '/') {
+                while (c != '\n' && c != -1) {
+                    position++;
+                    c = peek();
+                }
+            } else {
+                break;
+            }
+        }
+
+        tokenLine = line;
+        if (c == -1)
+            return Token.EOF;
+        position++;
+
+        if (c == '\n') {
+            line++;
+            return Token.NEWLINE;
+        }
+        if (c == '=')
+            return Token.EQUALS;
+        if (c == ':')
+            return Token.COLON;
+
+        if (isIdentStart(c)) {
+            text.append((char) c);
+            while (isIdentPart(c = peek())) {
+                text.append((char) c);
+                position++;
+            }
+            return Token.IDENT;
+        }
+
+        boolean negative = c == '-';
+        if (isDigit(c) || ((c == '-' || c == '+') && isDigit(peek()))) {
+            text.append((char) c);
+            number = isDigit(c) ? c - '0' : 0;
+            while (isDigit(c = peek())) {
+                text.append((char) c);
+                // Saturate rather than wrap; such values are rejected later
+                if (number < Integer.MAX_VALUE)
+                    number = number * 10 + (c - '0');
+                position++;
+            }
+            if (negative)
+                number = -number;
+            return Token.NUMBER;
+        }
+
+        text.append((char) c);
+        return Token.OTHER;
+    }
+
+    // Source text of the last IDENT, NUMBER or OTHER token
+    public String text() {
+        return text.toString();
+    }
+
+    // Value of the last NUMBER token
+    public long number() {
+        return number;
+    }
+
+    // Line the last token started on, counting from 1
+    public int line() {
+        return tokenLine;
+    }
+
+    private int peek() throws IOException {
+        return peekAt(0);
+    }
+
+    private int peekAt(int offset) throws IOException {
+        if (position + offset >= limit && !fill(offset + 1))
+            return -1;
+        return buffer[position + offset];
+    }
+
+    private boolean fill(int needed) throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while (limit < needed) {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0)
+                return false;
+            limit += read;
+        }
+        return true;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentStart(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isIdentPart(int c) {
+        return isIdentStart(c) || isDigit(c);
+    }
+}
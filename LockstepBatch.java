@@ -0,0 +1,484 @@
+import java.util.*;
+
+// Runs one image over many input vectors at once. Each vector gets a lane
+// with its own accumulator, memory, instruction count and output, kept as
+// parallel arrays; word a of lane l is memory[a * lanes + l], so one word
+// of every lane sits in one stretch of the matrix.
+//
+// Lanes at the same counter form a group, which fetches and decodes each
+// instruction once and then runs it across its lanes in a plain loop. A
+// JUMPN or JUMPZ that goes different ways for different lanes splits the
+// group. The group with the lowest counter always runs next, so lanes
+// that leave a loop early wait behind it for the rest and run on together
+// once they arrive. Lanes that halt or fault drop out of their group.
+//
+// Every lane ends as it would on a Processor of its own, with the same
+// output, memory, counter and instruction count. Operands past the end of
+// memory stop the lane with an ADDRESS fault, as they do there.
+public class LockstepBatch {
+    // Largest array the VM reliably allocates
+    private static final long MAX_CELLS = Integer.MAX_VALUE - 8;
+
+    private final int size;
+    private final int lanes;
+    private final int startAddress;
+    private final int operandScale;
+    private final int maxWord;
+
+    private final int[] memory;
+    private final int[] accumulators;
+    private final int[] counters;
+    // Instructions each lane ran, less the steps of the group it is in
+    private final long[] counts;
+    private final RunResult.Reason[] reasons;
+    private final RunResult.Fault[] faults;
+    private final int[][] inputs;
+    private final int[] inputPositions;
+    private final IntRingBuffer[] outputs;
+    private final List<List<String>> warnings;
+    // Words any lane has written, where the lanes' code may differ
+    private final boolean[] written;
+    private long instructionLimit;
+
+    // Groups waiting to run, by counter
+    private final TreeMap<Integer, Group> waiting = new TreeMap<>();
+    private long dispatches;
+    private long splits;
+
+    // Lanes at one counter. Instructions are counted once per group, in
+    // steps, and handed to the lanes when they leave it.
+    private static final class Group {
+        int counter;
+        int[] lanes;
+        int count;
+        long steps;
+
+        Group(int counter, int[] lanes, int count) {
+            this.counter = counter;
+            this.lanes = lanes;
+            this.count = count;
+        }
+    }
+
+    // One lane per input vector, all starting from the image
+    public LockstepBatch(MachineImage image, List<int[]> inputs) {
+        this.size = image.getWordCount();
+        this.lanes = inputs.size();
+        this.startAddress = image.getStartAddress();
+        MachineFormat format = MachineFormat.of(size);
+        this.operandScale = format.getMaxOperand() + 1;
+        this.maxWord = format.getMaxWord();
+
+        long cells = (long) size * lanes;
+        if (cells > MAX_CELLS)
+            throw new IllegalArgumentException(lanes + " lanes of " + size + " words are too many for one batch");
+        memory = new int[(int) cells];
+        for (int address = 0; address < size; address++)
+            Arrays.fill(memory, address * lanes, (address + 1) * lanes, image.getWord(address));
+        accumulators = new int[lanes];
+        counters = new int[lanes];
+        counts = new long[lanes];
+        reasons = new RunResult.Reason[lanes];
+        faults = new RunResult.Fault[lanes];
+        Arrays.fill(faults, RunResult.Fault.NONE);
+        this.inputs = inputs.toArray(new int[0][]);
+        inputPositions = new int[lanes];
+        outputs = new IntRingBuffer[lanes];
+        warnings = new ArrayList<>(lanes);
+        for (int lane = 0; lane < lanes; lane++) {
+            outputs[lane] = new IntRingBuffer();
+            warnings.add(new ArrayList<>());
+        }
+        written = new boolean[size];
+    }
+
+    // As Processor.setInstructionLimit, for every lane
+    public void setInstructionLimit(long limit) {
+        this.instructionLimit = Math.max(0, limit);
+    }
+
+    // Instructions fetched and decoded, once for a whole group
+    public long getDispatches() {
+        return dispatches;
+    }
+
+    // Times a group went two ways at a branch or over differing code
+    public long getSplits() {
+        return splits;
+    }
+
+    // Runs every lane until it stops; results are in input order
+    public List<MachineRunner.Result> run() {
+        int[] all = new int[lanes];
+        for (int lane = 0; lane < lanes; lane++)
+            all[lane] = lane;
+        if (lanes > 0)
+            waiting.put(startAddress, new Group(startAddress, all, lanes));
+        while (!waiting.isEmpty())
+            runGroup(waiting.pollFirstEntry().getValue());
+
+        int[][] words = new int[lanes][size];
+        for (int address = 0; address < size; address++) {
+            for (int lane = 0; lane < lanes; lane++)
+                words[lane][address] = memory[address * lanes + lane];
+        }
+        List<MachineRunner.Result> results = new ArrayList<>(lanes);
+        for (int lane = 0; lane < lanes; lane++) {
+            RunResult run = new RunResult(reasons[lane], faults[lane], counters[lane], accumulators[lane], counts[lane],
+                    warnings.get(lane));
+            results.add(new MachineRunner.Result(lane, run, words[lane], outputs[lane].toArray()));
+        }
+        return results;
+    }
+
+    // Runs the group until its lanes have stopped or another group's
+    // counter is at or below its own
+    private void runGroup(Group group) {
+        while (group.count > 0) {
+            int pc = group.counter;
+            if (pc >= size) {
+                for (int i = 0; i < group.count; i++)
+                    stop(group, group.lanes[i], RunResult.Reason.END_OF_MEMORY, RunResult.Fault.NONE);
+                return;
+            }
+            if (instructionLimit > 0)
+                stopAtLimit(group);
+            if (group.count == 0 || (written[pc] && splitByWord(group)))
+                return;
+
+            Group other = step(group);
+            if (other != null)
+                park(other);
+            if (group.count > 0 && !waiting.isEmpty() && group.counter >= waiting.firstKey()) {
+                park(group);
+                return;
+            }
+        }
+    }
+
+    private void park(Group group) {
+        if (group.count == 0)
+            return;
+        Group there = waiting.get(group.counter);
+        if (there == null) {
+            waiting.put(group.counter, group);
+            return;
+        }
+        if (there.count + group.count > there.lanes.length)
+            there.lanes = Arrays.copyOf(there.lanes, Math.max(there.count + group.count, there.lanes.length * 2));
+        for (int i = 0; i < group.count; i++) {
+            int lane = group.lanes[i];
+            counts[lane] += group.steps - there.steps;
+            there.lanes[there.count++] = lane;
+        }
+    }
+
+    private void stopAtLimit(Group group) {
+        int kept = 0;
+        for (int i = 0; i < group.count; i++) {
+            int lane = group.lanes[i];
+            if (counts[lane] + group.steps >= instructionLimit)
+                stop(group, lane, RunResult.Reason.FAULT, RunResult.Fault.INSTRUCTION_LIMIT);
+            else
+                group.lanes[kept++] = lane;
+        }
+        group.count = kept;
+    }
+
+    // Lanes that wrote to the word at the counter may hold different code
+    // there. If they do, the lanes of each word run it as a group of their
+    // own and wait to run on. Returns whether the group was split up.
+    private boolean splitByWord(Group group) {
+        int base = group.counter * lanes;
+        int first = memory[base + group.lanes[0]];
+        boolean same = true;
+        for (int i = 1; i < group.count && same; i++)
+            same = memory[base + group.lanes[i]] == first;
+        if (same)
+            return false;
+
+        Map<Integer, Group> byWord = new LinkedHashMap<>();
+        for (int i = 0; i < group.count; i++) {
+            int lane = group.lanes[i];
+            Group part = byWord.computeIfAbsent(memory[base + lane],
+                    word -> new Group(group.counter, new int[group.count], 0));
+            part.lanes[part.count++] = lane;
+            counts[lane] += group.steps;
+        }
+        splits += byWord.size() - 1;
+        for (Group part : byWord.values()) {
+            Group other = step(part);
+            if (other != null)
+                park(other);
+            park(part);
+        }
+        group.count = 0;
+        return true;
+    }
+
+    private void stop(Group group, int lane, RunResult.Reason reason, RunResult.Fault fault) {
+        counts[lane] += group.steps;
+        counters[lane] = group.counter;
+        reasons[lane] = reason;
+        faults[lane] = fault;
+    }
+
+    // Runs the instruction at the group's counter for every lane in it.
+    // Returns the lanes that took a branch the rest didn't, or null.
+    private Group step(Group group) {
+        int pc = group.counter;
+        int word = memory[pc * lanes + group.lanes[0]];
+        int opCode = word / operandScale;
+        int operand = word % operandScale;
+        int base = operand * lanes;
+        int[] ids = group.lanes;
+        int n = group.count;
+        dispatches++;
+        group.steps++;
+
+        if (operand >= size && MachineFormat.usesMemory(opCode)) {
+            for (int i = 0; i < n; i++)
+                stop(group, ids[i], RunResult.Reason.FAULT, RunResult.Fault.ADDRESS);
+            group.count = 0;
+            return null;
+        }
+
+        switch (opCode) {
+            case 10:                            // READ
+                written[operand] = true;
+                group.count = read(group, base);
+                break;
+            case 11:                            // WRITE
+                for (int i = 0; i < n; i++)
+                    outputs[ids[i]].offer(memory[base + ids[i]]);
+                break;
+            case 20:                            // LOAD
+                for (int i = 0; i < n; i++)
+                    accumulators[ids[i]] = memory[base + ids[i]];
+                break;
+            case 21:                            // STORE
+                written[operand] = true;
+                for (int i = 0; i < n; i++)
+                    memory[base + ids[i]] = accumulators[ids[i]];
+                break;
+            case 22:                            // LOADI
+                for (int i = 0; i < n; i++)
+                    accumulators[ids[i]] = operand;
+                break;
+            case 30: case 31: case 32: case 33: case 34:
+            case 35: case 36: case 37: case 38: case 39:
+                group.count = arithmetic(group, opCode, operand, base);
+                break;
+            case 40:                            // JUMP
+                group.counter = operand;
+                return null;
+            case 41:                            // JUMPN
+            case 42:                            // JUMPZ
+                return branch(group, opCode == 42, operand);
+            case 43:                            // HALT
+                for (int i = 0; i < n; i++)
+                    stop(group, ids[i], RunResult.Reason.HALTED, RunResult.Fault.NONE);
+                group.count = 0;
+                return null;
+            default:
+                for (int i = 0; i < n; i++)
+                    warn(ids[i], "Unknown opcode: " + opCode);
+        }
+        group.counter = pc + 1;
+        return null;
+    }
+
+    // As Processor.warn; lanes have no port to show it
+    private void warn(int lane, String message) {
+        if (warnings.get(lane).size() < RunResult.MAX_WARNINGS)
+            warnings.get(lane).add(message);
+    }
+
+    // Returns how many lanes read a value; the others fault and drop out
+    private int read(Group group, int base) {
+        int kept = 0;
+        for (int i = 0; i < group.count; i++) {
+            int lane = group.lanes[i];
+            int[] values = inputs[lane];
+            if (inputPositions[lane] >= values.length) {
+                stop(group, lane, RunResult.Reason.FAULT, RunResult.Fault.NO_INPUT);
+                continue;
+            }
+            int value = values[inputPositions[lane]++];
+            if (value > maxWord || value < -maxWord) {
+                stop(group, lane, RunResult.Reason.FAULT, RunResult.Fault.INPUT_RANGE);
+                continue;
+            }
+            memory[base + lane] = value;
+            group.lanes[kept++] = lane;
+        }
+        return kept;
+    }
+
+    // Opcodes 30-39 across the group, with the range checks of the
+    // interpreter. Returns how many lanes are still running.
+    private int arithmetic(Group group, int opCode, int operand, int base) {
+        int[] ids = group.lanes;
+        int n = group.count;
+        boolean immediate = opCode >= 35;
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            int lane = ids[i];
+            long acc = accumulators[lane];
+            long value = immediate ? operand : memory[base + lane];
+            long result;
+            switch (opCode) {
+                case 30: case 35:
+                    result = acc + value;
+                    break;
+                case 31: case 36:
+                    result = acc - value;
+                    break;
+                case 32: case 37:
+                    if (value == 0) {
+                        warn(lane, "ERROR: Cannot divide by 0.");
+                        result = 0;
+                    } else {
+                        result = acc / value;
+                    }
+                    break;
+                case 33: case 38:
+                    if (value == 0) {
+                        stop(group, lane, RunResult.Reason.FAULT, RunResult.Fault.DIVIDE_BY_ZERO);
+                        continue;
+                    }
+                    accumulators[lane] = (int) (acc % value);
+                    ids[kept++] = lane;
+                    continue;
+                default:
+                    result = acc * value;
+                    break;
+            }
+            if (result > maxWord) {
+                stop(group, lane, RunResult.Reason.FAULT, RunResult.Fault.OVERFLOW);
+            } else if (result < -maxWord) {
+                stop(group, lane, RunResult.Reason.FAULT, RunResult.Fault.UNDERFLOW);
+            } else {
+                accumulators[lane] = (int) result;
+                ids[kept++] = lane;
+            }
+        }
+        return kept;
+    }
+
+    private Group branch(Group group, boolean onZero, int target) {
+        int[] ids = group.lanes;
+        int n = group.count;
+        int[] taken = null;
+        int takenCount = 0;
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            int lane = ids[i];
+            int acc = accumulators[lane];
+            if (onZero ? acc == 0 : acc < 0) {
+                if (taken == null)
+                    taken = new int[n];
+                taken[takenCount++] = lane;
+            } else {
+                ids[kept++] = lane;
+            }
+        }
+        if (kept == 0) {
+            group.lanes = taken;
+            group.count = takenCount;
+            group.counter = target;
+            return null;
+        }
+        group.count = kept;
+        group.counter++;
+        if (takenCount == 0)
+            return null;
+        splits++;
+        for (int i = 0; i < takenCount; i++)
+            counts[taken[i]] += group.steps;
+        return new Group(target, taken, takenCount);
+    }
+
+    // Compares a batch, and MachineRunner's batches on the pool, against
+    // Processor runs of the same vectors, on programs whose loops run a
+    // different number of times per lane
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Random random = new Random(42);
+        List<MachineImage> images = new ArrayList<>();
+        // Counts a read a down by a read b, writing each value, until it
+        // reaches 0 or passes it
+        images.add(new MachineImage(2, new int[] {
+            0, 0,
+            1000, 1001,         // READ a, READ b
+            1100, 2000, 3101,   // loop: WRITE a, LOAD a, SUBT b
+            4111, 4211,         // JUMPN done, JUMPZ done
+            2100, 4004,         // STORE a, JUMP loop
+            4300                // done: HALT
+        }));
+        // x * n by repeated addition, over a read x and n
+        images.add(new MachineImage(3, new int[] {
+            0, 0, 0,
+            1000, 1001,         // READ x, READ n
+            2002, 3000, 2102,   // loop: LOAD sum, ADD x, STORE sum
+            2001, 3601, 2101,   // LOAD n, SUBTI 1, STORE n
+            4114, 4214, 4005,   // JUMPN done, JUMPZ done, JUMP loop
+            1102, 4300          // done: WRITE sum, HALT
+        }));
+        // Reads the instruction at 2 and runs it: each lane its own code
+        images.add(new MachineImage(1, new int[] {
+            0,
+            1002,               // READ 02
+            0,                  // whatever was read
+            2100, 1100, 4300    // STORE 00, WRITE 00, HALT
+        }));
+        // DIVI 0 and opcode 99 warn, STORE 99 is past the end of memory
+        int[] codes = { 2200, 2299, 3507, 3907, 4300, 4005, 1100, 3800, 3700, 9900, 2199 };
+
+        int mismatches = 0;
+        for (MachineImage image : images) {
+            List<int[]> inputs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int[] values = new int[1 + random.nextInt(3)];
+                // Never 0, or the countdown would count forever
+                for (int k = 0; k < values.length; k++)
+                    values[k] = random.nextInt(399) - 50 | 1;
+                if (image == images.get(2))
+                    values[0] = codes[random.nextInt(codes.length)];
+                inputs.add(values);
+            }
+            LockstepBatch batch = new LockstepBatch(image, inputs);
+            long start = System.nanoTime();
+            List<MachineRunner.Result> results = batch.run();
+            long elapsed = System.nanoTime() - start;
+            List<MachineRunner.Result> pooled;
+            try (MachineRunner runner = new MachineRunner()) {
+                pooled = runner.runLockstep(image, inputs);
+            }
+
+            long instructions = 0;
+            for (int i = 0; i < count; i++) {
+                MachineRunner.Result want = MachineRunner.run(i, image, inputs.get(i));
+                MachineRunner.Result got = results.get(i);
+                MachineRunner.Result again = pooled.get(i);
+                instructions += got.getInstructionCount();
+                RunResult a = want.getRunResult(), b = got.getRunResult();
+                if (a.getReason() != b.getReason() || a.getFault() != b.getFault() || a.getAddress() != b.getAddress()
+                        || a.getAccumulator() != b.getAccumulator() || a.getInstructionCount() != b.getInstructionCount()
+                        || !a.getWarnings().equals(b.getWarnings())
+                        || !Arrays.equals(want.getOutputs(), got.getOutputs())
+                        || !Arrays.equals(want.getMemory(), got.getMemory())
+                        || again.getJob() != i || again.getInstructionCount() != b.getInstructionCount()
+                        || !Arrays.equals(again.getOutputs(), got.getOutputs())) {
+                    mismatches++;
+                    System.out.println("Lane " + i + ": expected " + a + ", got " + b);
+                }
+            }
+            System.out.printf("%d lanes, %d instructions in %d dispatches, %d splits, %.1f ms%n",
+                    count, instructions, batch.getDispatches(), batch.getSplits(), elapsed / 1e6);
+        }
+        System.out.println(mismatches + " mismatches");
+        if (mismatches > 0)
+            System.exit(1);
+    }
+}
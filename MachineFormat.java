@@ -0,0 +1,113 @@
+// Word layout for a given memory size. An instruction word is a two-digit
+// opcode followed by an operand wide enough to address every word, so words
+// always have two more digits than addresses. Memories of up to 100 words
+// keep the classic layout.
+//
+//    memory    operand     word     range
+//    100       2 digits    4305     +-9999
+//    1000      3 digits    43005    +-99999
+//    10000     4 digits    430005   +-999999
+public final class MachineFormat {
+    public static final MachineFormat CLASSIC = of(100);
+
+    // Nine-digit words still fit in an int
+    public static final int MAX_MEMORY_SIZE = 10_000_000;
+
+    private final int operandDigits;
+    private final int operandLimit;
+    private final int maxWord;
+
+    private MachineFormat(int operandDigits) {
+        this.operandDigits = operandDigits;
+        int limit = 1;
+        for (int i = 0; i < operandDigits; i++)
+            limit *= 10;
+        this.operandLimit = limit;
+        this.maxWord = limit * 100 - 1;
+    }
+
+    public static MachineFormat of(int memorySize) {
+        if (memorySize < 0 || memorySize > MAX_MEMORY_SIZE)
+            throw new IllegalArgumentException("Unsupported memory size: " + memorySize);
+        int digits = 2;
+        for (int limit = 100; limit < memorySize; limit *= 10)
+            digits++;
+        return new MachineFormat(digits);
+    }
+
+    public boolean isClassic() {
+        return operandDigits == 2;
+    }
+
+    public int getOperandDigits() {
+        return operandDigits;
+    }
+
+    public int getWordDigits() {
+        return operandDigits + 2;
+    }
+
+    public int getMaxOperand() {
+        return operandLimit - 1;
+    }
+
+    public int getMaxWord() {
+        return maxWord;
+    }
+
+    public int getMinWord() {
+        return -maxWord;
+    }
+
+    public boolean fits(long value) {
+        return value >= -maxWord && value <= maxWord;
+    }
+
+    // READ, WRITE, LOAD, STORE and the arithmetic that reads memory; their
+    // operand has to be an address in memory
+    public static boolean usesMemory(int opCode) {
+        return opCode == 10 || opCode == 11 || opCode == 20 || opCode == 21 || (opCode >= 30 && opCode <= 34);
+    }
+
+    public int opCode(int word) {
+        return word / operandLimit;
+    }
+
+    public int operand(int word) {
+        return word % operandLimit;
+    }
+
+    public int word(int opCode, int operand) {
+        return opCode * operandLimit + operand;
+    }
+
+    // Zero padded to the word width, with a leading '-' for negative words
+    public String format(int value) {
+        int digits = getWordDigits();
+        char[] buf = new char[digits + 1];
+        int pos = buf.length;
+        int num = Math.abs(value);
+        for (int i = 0; i < digits; i++) {
+            buf[--pos] = (char) ('0' + num % 10);
+            num /= 10;
+        }
+        if (value < 0)
+            buf[--pos] = '-';
+        return new String(buf, pos, buf.length - pos);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof MachineFormat && ((MachineFormat) other).operandDigits == operandDigits;
+    }
+
+    @Override
+    public int hashCode() {
+        return operandDigits;
+    }
+
+    @Override
+    public String toString() {
+        return operandDigits + "-digit operands, words of +-" + maxWord;
+    }
+}
@@ -0,0 +1,66 @@
+import java.nio.*;
+import java.security.*;
+
+public class MachineImage {
+    private final int startAddress;
+    private final int[] words;
+    private String digest;
+
+    public MachineImage(int startAddress, int[] words) {
+        this.startAddress = startAddress;
+        this.words = words.clone();
+    }
+
+    public static MachineImage fromMemory(Memory memory, int startAddress) {
+        return new MachineImage(startAddress, memory.toArray());
+    }
+
+    // Fresh, independent memory holding this image
+    public Memory toMemory() {
+        Memory memory = new Memory(words.length);
+        memory.loadWords(0, words);
+        return memory;
+    }
+
+    public int getStartAddress() {
+        return startAddress;
+    }
+
+    public int getWordCount() {
+        return words.length;
+    }
+
+    public int getWord(int address) {
+        return words[address];
+    }
+
+    public int[] getWords() {
+        return words.clone();
+    }
+
+    // SHA-256 of the start address and words in hex, the same for equal
+    // images; worked out on first use
+    public String getDigest() {
+        if (digest == null) {
+            ByteBuffer bytes = ByteBuffer.allocate(4 * (words.length + 1));
+            bytes.putInt(startAddress).asIntBuffer().put(words);
+            digest = hex(sha256(bytes.array()));
+        }
+        return digest;
+    }
+
+    static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is missing", e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes)
+            text.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        return text.toString();
+    }
+}
@@ -0,0 +1,238 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+public class MachineRunner implements AutoCloseable {
+
+    public static class Result {
+        private final int job;
+        private final RunResult run;
+        private final int[] outputs;
+        private final int[] memory;
+
+        Result(int job, RunResult run, Memory memory, IntRingBuffer outputs) {
+            this.job = job;
+            this.run = run;
+            this.outputs = outputs.toArray();
+            this.memory = memory.toArray();
+        }
+
+        Result(int job, RunResult run, int[] memory, int[] outputs) {
+            this.job = job;
+            this.run = run;
+            this.outputs = outputs;
+            this.memory = memory;
+        }
+
+        // The same run under another job number
+        Result(int job, Result other) {
+            this(job, other.run, other.memory, other.outputs);
+        }
+
+        public int getJob() { return job; }
+        public RunResult getRunResult() { return run; }
+        public int getAccumulator() { return run.getAccumulator(); }
+        public long getInstructionCount() { return run.getInstructionCount(); }
+        public int[] getOutputs() { return outputs.clone(); }
+        public int[] getMemory() { return memory.clone(); }
+    }
+
+    // Lanes per lockstep batch at most, and words of lane memory per batch;
+    // the batch keeps one memory per lane, so big images get fewer lanes
+    public static final int BATCH_LANES = 1024;
+    public static final int BATCH_WORDS = 1 << 20;
+
+    private final ExecutorService pool;
+    private volatile Profiler profiler;
+    private volatile ResultCache cache;
+
+    public MachineRunner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public MachineRunner(int threads) {
+        this.pool = Executors.newFixedThreadPool(threads);
+    }
+
+    // Profiles every job run from now on, each into its own stripe
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    // Answers image jobs from the cache where it can; profiled jobs still run
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    // Runs every image on its own Memory and Processor; results keep the input order
+    public List<Result> runAll(List<MachineImage> images) throws InterruptedException {
+        return runAll(images, Collections.nCopies(images.size(), new int[0]));
+    }
+
+    // As runAll, feeding job i the READ values in inputs.get(i)
+    public List<Result> runAll(List<MachineImage> images, List<int[]> inputs) throws InterruptedException {
+        if (inputs.size() != images.size())
+            throw new IllegalArgumentException("Need one input vector per image");
+
+        List<Callable<Result>> jobs = new ArrayList<>(images.size());
+        for (int i = 0; i < images.size(); i++) {
+            final int job = i;
+            final MachineImage image = images.get(i);
+            final int[] values = inputs.get(i);
+            final Profiler profile = profiler;
+            final ResultCache results = profile == null ? cache : null;
+            jobs.add(() -> results != null ? results.run(job, image, values)
+                    : run(job, new Processor(image.toMemory(), image.getStartAddress()), values, profile));
+        }
+        return invoke(jobs);
+    }
+
+    // One job per input vector, each forked from the snapshot instead of
+    // running the program from its start
+    public List<Result> runAll(MachineSnapshot snapshot, List<int[]> inputs) throws InterruptedException {
+        List<Callable<Result>> jobs = new ArrayList<>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            final int job = i;
+            final int[] values = inputs.get(i);
+            final Profiler profile = profiler;
+            jobs.add(() -> run(job, snapshot.fork(), values, profile));
+        }
+        return invoke(jobs);
+    }
+
+    // As runAll over one image, with the vectors run in LockstepBatch
+    // batches of batchLanes(image) lanes on the pool's threads
+    public List<Result> runLockstep(MachineImage image, List<int[]> inputs) throws InterruptedException {
+        List<Callable<List<Result>>> batches = new ArrayList<>();
+        int perBatch = batchLanes(image);
+        for (int first = 0; first < inputs.size(); first += perBatch) {
+            final int offset = first;
+            final List<int[]> lanes = inputs.subList(first, Math.min(first + perBatch, inputs.size()));
+            batches.add(() -> {
+                List<Result> results = new ArrayList<>(lanes.size());
+                for (Result result : new LockstepBatch(image, lanes).run())
+                    results.add(new Result(offset + result.getJob(), result));
+                return results;
+            });
+        }
+        List<Result> results = new ArrayList<>(inputs.size());
+        for (Future<List<Result>> future : pool.invokeAll(batches)) {
+            try {
+                results.addAll(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Batch failed: " + e.getCause(), e.getCause());
+            }
+        }
+        return results;
+    }
+
+    // As many lanes as BATCH_WORDS holds, at least one and at most BATCH_LANES
+    public static int batchLanes(MachineImage image) {
+        return Math.max(1, Math.min(BATCH_LANES, BATCH_WORDS / Math.max(1, image.getWordCount())));
+    }
+
+    private List<Result> invoke(List<Callable<Result>> jobs) throws InterruptedException {
+        List<Result> results = new ArrayList<>(jobs.size());
+        for (Future<Result> future : pool.invokeAll(jobs)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Job failed: " + e.getCause(), e.getCause());
+            }
+        }
+        return results;
+    }
+
+    public static Result run(int job, MachineImage image, int... inputs) {
+        return run(job, new Processor(image.toMemory(), image.getStartAddress()), inputs, null);
+    }
+
+    static Result run(int job, Processor cpu, int[] inputs, Profiler profiler) {
+        IntRingBuffer outputs = new IntRingBuffer();
+        cpu.setInput(IntRingBuffer.of(inputs));
+        cpu.setOutput(outputs);
+        cpu.setProfiler(profiler);
+        RunResult run = cpu.dumpDirect();
+        return new Result(job, run, cpu.getMemory(), outputs);
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    // Stress check: many jobs with different data must give the same results
+    // in parallel as they do one at a time
+    public static void main(String[] args) throws InterruptedException {
+        int jobs = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        List<MachineImage> images = new ArrayList<>(jobs);
+        for (int i = 0; i < jobs; i++)
+            images.add(sumProgram(i % 100, 20));
+
+        List<Result> expected = new ArrayList<>(jobs);
+        for (int i = 0; i < jobs; i++)
+            expected.add(run(i, images.get(i)));
+
+        long start = System.nanoTime();
+        List<Result> actual;
+        try (MachineRunner runner = new MachineRunner()) {
+            actual = runner.runAll(images);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // The same jobs again, profiled: the stripes must add up
+        Profiler profiler = new Profiler();
+        List<Result> profiled;
+        try (MachineRunner runner = new MachineRunner()) {
+            runner.setProfiler(profiler);
+            profiled = runner.runAll(images);
+        }
+        Profiler.Snapshot profile = profiler.snapshot();
+
+        long instructions = 0;
+        int mismatches = 0;
+        for (int i = 0; i < jobs; i++) {
+            Result want = expected.get(i);
+            Result got = actual.get(i);
+            instructions += got.getInstructionCount();
+            if (!Arrays.equals(got.getOutputs(), new int[] { (i % 100) * 20 })
+                    || !Arrays.equals(got.getOutputs(), want.getOutputs())
+                    || got.getRunResult().getReason() != RunResult.Reason.HALTED
+                    || got.getInstructionCount() != want.getInstructionCount()
+                    || !Arrays.equals(got.getMemory(), want.getMemory())
+                    || !Arrays.equals(profiled.get(i).getMemory(), want.getMemory())) {
+                mismatches++;
+                System.out.println("Job " + i + " mismatch: " + Arrays.toString(got.getOutputs()));
+            }
+        }
+
+        // Per job the JUMPZ at 9 falls through 19 times and jumps once, and
+        // the JUMP at 10 jumps 19 times
+        if (profile.getInstructions() != instructions || profile.getTaken(10) != 19L * jobs
+                || profile.getTaken(9) != jobs || profile.getNotTaken(9) != 19L * jobs) {
+            mismatches++;
+            System.out.println("Profile mismatch: " + profile.getInstructions() + " instructions");
+        }
+
+        System.out.printf("%d jobs, %d instructions in %.1f ms, %d mismatches%n",
+                jobs, instructions, elapsed / 1e6, mismatches);
+        if (mismatches > 0)
+            System.exit(1);
+    }
+
+    // x * n computed by repeated addition, then written out
+    static MachineImage sumProgram(int x, int n) {
+        int[] words = new int[100];
+        words[0] = x;
+        words[1] = n;
+        words[2] = 0;
+        int[] code = {
+            2002, 3000, 2102,   // LOAD sum, ADD x, STORE sum
+            2001, 3601, 2101,   // LOAD n, SUBTI 1, STORE n
+            4211, 4003,         // JUMPZ done, JUMP loop
+            1102, 4300          // WRITE sum, HALT
+        };
+        System.arraycopy(code, 0, words, 3, code.length);
+        return new MachineImage(3, words);
+    }
+}
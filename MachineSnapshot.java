@@ -0,0 +1,146 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+
+// Machine state frozen at one point: every memory word, the accumulator
+// and the counter. Machines forked from a snapshot share its words until
+// they first write to memory, so starting many jobs from the same point
+// costs at most one array copy each, and only for jobs that write.
+//
+// Binary form, big-endian like ImageFile:
+//
+//    int    magic        'SMLS'
+//    short  version
+//    int    counter
+//    int    accumulator
+//    int    word count
+//    int    CRC32 of the packed words
+//    short  words[word count]     version 1, memories of up to 100 words
+//    int    words[word count]     version 2, larger memories
+public class MachineSnapshot {
+    public static final String EXTENSION = ".ssnap";
+
+    private static final int MAGIC = 0x534D4C53;
+    private static final short VERSION = 1;
+    private static final short WIDE_VERSION = 2;
+    private static final int HEADER_SIZE = 22;
+
+    private final int[] words;
+    private final int counter;
+    private final int accumulator;
+
+    public MachineSnapshot(int[] words, int counter, int accumulator) {
+        this.words = words.clone();
+        this.counter = counter;
+        this.accumulator = accumulator;
+    }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    public int getAccumulator() {
+        return accumulator;
+    }
+
+    public int getWordCount() {
+        return words.length;
+    }
+
+    public int getWord(int address) {
+        return words[address];
+    }
+
+    // A new machine in this state, with copy-on-write memory
+    public Processor fork() {
+        return new Processor(this);
+    }
+
+    Memory newMemory() {
+        return Memory.sharing(words);
+    }
+
+    public ByteBuffer toBytes() {
+        boolean wide = words.length > MachineFormat.CLASSIC.getMaxOperand() + 1;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (wide ? 4 : 2) * words.length);
+        buffer.putInt(MAGIC);
+        buffer.putShort(wide ? WIDE_VERSION : VERSION);
+        buffer.putInt(counter);
+        buffer.putInt(accumulator);
+        buffer.putInt(words.length);
+        buffer.putInt(0);
+        if (wide) {
+            buffer.asIntBuffer().put(words);
+            buffer.position(buffer.capacity());
+        } else {
+            for (int word : words)
+                buffer.putShort((short) word);
+        }
+
+        buffer.putInt(HEADER_SIZE - 4, checksum(buffer.duplicate().position(HEADER_SIZE)));
+        buffer.flip();
+        return buffer;
+    }
+
+    public void write(Path file) throws IOException {
+        ByteBuffer buffer = toBytes();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+
+    // Maps the file and decodes it, checking the header and checksum
+    public static MachineSnapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(buffer, file.toString());
+        }
+    }
+
+    public static MachineSnapshot decode(ByteBuffer buffer, String source) throws IOException {
+        buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+            throw new IOException(source + ": not a machine snapshot");
+        short version = buffer.getShort();
+        if (version != VERSION && version != WIDE_VERSION)
+            throw new IOException(source + ": unsupported snapshot version " + version);
+        int wordSize = version == VERSION ? 2 : 4;
+
+        int counter = buffer.getInt();
+        int accumulator = buffer.getInt();
+        int count = buffer.getInt();
+        int expected = buffer.getInt();
+        if (count < 0 || count > MachineFormat.MAX_MEMORY_SIZE || buffer.remaining() != (long) wordSize * count)
+            throw new IOException(source + ": truncated snapshot");
+        if (counter < 0 || counter > count)
+            throw new IOException(source + ": bad counter " + counter);
+        if (checksum(buffer.duplicate()) != expected)
+            throw new IOException(source + ": checksum mismatch");
+
+        int[] words = new int[count];
+        if (wordSize == 4) {
+            buffer.asIntBuffer().get(words);
+        } else {
+            short[] packed = new short[count];
+            buffer.asShortBuffer().get(packed);
+            for (int i = 0; i < count; i++)
+                words[i] = packed[i];
+        }
+        MachineFormat format = MachineFormat.of(count);
+        for (int i = 0; i < count; i++) {
+            if (!format.fits(words[i]))
+                throw new IOException(source + ": word out of range at address " + i);
+        }
+        return new MachineSnapshot(words, counter, accumulator);
+    }
+
+    private static int checksum(ByteBuffer words) {
+        CRC32 crc = new CRC32();
+        crc.update(words);
+        return (int) crc.getValue();
+    }
+}
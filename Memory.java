@@ -1,31 +1,113 @@
-public class Memory {
-   private static String[] addresses;
-      
-   public Memory(int size) {
-      addresses = new String[size];   
-      
-      for (int i = 0; i < size; i++)
-         addresses[i] = "0000";
-   }
-   
-   public void addItem (int index, String value) {
-      if (value.matches("\\d+")) {
-         int num = Integer.parseInt(value);
-         addresses[index] = String.format("%04d", num);
-      } else {
-         addresses[index] = value;
-      } 
-   }
-   
-   public String getItem (int index) {
-      return addresses[index];  
-   }
-
-   public String[] getAdds() {
-      return addresses;
-   }
-   
-   public int getMemSize() {
-      return addresses.length;
-   }
-}
+public class Memory {
+   // Word range of the classic 100-word machine; larger memories take
+   // theirs from getFormat()
+   public static final int MAX_WORD = 9999;
+   public static final int MIN_WORD = -9999;
+
+   private final MachineFormat format;
+   private final int maxWord;
+   private int[] words;
+   // Set while words still belongs to the snapshot this memory was forked
+   // from; the first write takes a private copy
+   private boolean shared;
+
+   public Memory(int size) {
+      this(new int[size], false);
+   }
+
+   private Memory(int[] words, boolean shared) {
+      this.format = MachineFormat.of(words.length);
+      this.maxWord = format.getMaxWord();
+      this.words = words;
+      this.shared = shared;
+   }
+
+   // Copy-on-write memory over words, which nobody may change afterwards
+   static Memory sharing(int[] words) {
+      return new Memory(words, true);
+   }
+
+   // String edge: parses a text word such as "1005", "+0007" or "-0005"
+   public void addItem (int index, String value) {
+      setWord(index, parseWord(value));
+   }
+
+   public String getItem (int index) {
+      return format.format(words[index]);
+   }
+
+   public int getWord (int index) {
+      return words[index];
+   }
+
+   public void setWord (int index, int value) {
+      if (value > maxWord || value < -maxWord)
+         throw new IllegalArgumentException("Word out of range at address " + index + ": " + value);
+      if (shared)
+         unshare();
+      words[index] = value;
+   }
+
+   // Bulk load of already packed words starting at the given address
+   public void loadWords (int start, int[] values) {
+      for (int i = 0; i < values.length; i++)
+         setWord(start + i, values[i]);
+   }
+
+   public int[] toArray() {
+      return words.clone();
+   }
+
+   // The backing array itself, for the JIT's generated code, which writes
+   // to it directly
+   int[] rawWords() {
+      if (shared)
+         unshare();
+      return words;
+   }
+
+   // The backing array for callers that only read it, such as the trace
+   // renderer; unlike rawWords() it leaves shared memory shared
+   int[] readOnlyWords() {
+      return words;
+   }
+
+   private void unshare() {
+      words = words.clone();
+      shared = false;
+   }
+
+   public String[] getAdds() {
+      String[] addresses = new String[words.length];
+      for (int i = 0; i < words.length; i++)
+         addresses[i] = format.format(words[i]);
+      return addresses;
+   }
+
+   public int getMemSize() {
+      return words.length;
+   }
+
+   public MachineFormat getFormat() {
+      return format;
+   }
+
+   public static int parseWord(String value) {
+      return Integer.parseInt(value.trim());
+   }
+
+   // Four digits, zero padded, with a leading '-' for negative words, as
+   // in the classic format
+   public static String format(int value) {
+      char[] buf = new char[5];
+      int pos = buf.length;
+      int num = Math.abs(value);
+      for (int i = 0; i < 4; i++) {
+         buf[--pos] = (char) ('0' + num % 10);
+         num /= 10;
+      }
+      if (value < 0)
+         buf[--pos] = '-';
+      return new String(buf, pos, buf.length - pos);
+   }
+}
@@ -0,0 +1,308 @@
+import java.util.*;
+
+// Optimization stage between parsing and linking. It works on instruction
+// indexes, before addresses exist, so the linker lays the shorter program
+// out and resolves labels to their new addresses afterwards.
+//
+// Level 1 runs each rewrite once, level 2 repeats them until nothing changes:
+//  - constant folding of LOADI followed by an immediate opcode (35-39), and
+//    of runs of ADDI, SUBTI or MULTI
+//  - removal of immediates that do nothing (ADDI 0, SUBTI 0, MULTI 1, DIVI 1)
+//  - peephole rewrites: STORE a; LOAD a drops the LOAD, LOAD a; STORE a drops
+//    the STORE, and a LOAD or STORE overwritten by the next one is dropped
+//  - jump threading through unconditional jumps, and removal of jumps to
+//    the next instruction
+//  - removal of code that can't be reached, such as code after HALT
+//
+// Instructions carrying a label are never merged into the one before them,
+// since control can arrive there directly.
+class Optimizer {
+
+    static final class Instruction {
+        int opCode;
+        int operand;
+        String symbol;
+        int line;
+
+        Instruction(int opCode, int operand, String symbol, int line) {
+            this.opCode = opCode;
+            this.operand = operand;
+            this.symbol = symbol;
+            this.line = line;
+        }
+
+        boolean isImmediate() {
+            return opCode == 22 || (opCode >= 35 && opCode <= 39);
+        }
+
+        boolean isJump() {
+            return opCode >= 40 && opCode <= 42;
+        }
+    }
+
+    private final List<Instruction> code;
+    private final Map<String, Integer> labels;
+    private final Set<String> variables;
+    private final int dataSize;
+    private final int maxOperand;
+
+    private boolean[] dead;
+    private List<List<String>> labelsAt;
+
+    // labels maps each label to the index of the instruction it names and is
+    // updated in place; dataSize is the number of variable words
+    Optimizer(List<Instruction> code, Map<String, Integer> labels, Set<String> variables, int dataSize,
+            int maxOperand) {
+        this.code = code;
+        this.labels = labels;
+        this.variables = variables;
+        this.dataSize = dataSize;
+        this.maxOperand = maxOperand;
+    }
+
+    // Returns false and leaves the code alone when moving instructions could
+    // change what the program does
+    boolean optimize(int level) {
+        if (level <= 0 || !isRelocatable())
+            return false;
+
+        boolean changed;
+        do {
+            startRound();
+            changed = foldImmediates();
+            changed |= peephole();
+            changed |= threadJumps();
+            changed |= removeUnreachable();
+            finishRound();
+        } while (changed && level > 1);
+        return true;
+    }
+
+    // Code must only be reached through labels: a numeric code address, or a
+    // label used as data, would point somewhere else once code moves
+    private boolean isRelocatable() {
+        for (Instruction instruction : code) {
+            if (instruction.opCode == 43)
+                continue;
+            if (instruction.isImmediate()) {
+                // LOADI loop takes a code address as a value
+                if (instruction.symbol != null && labels.containsKey(instruction.symbol))
+                    return false;
+                continue;
+            }
+            if (instruction.symbol == null) {
+                if (instruction.isJump() || instruction.operand >= dataSize)
+                    return false;
+            } else if (instruction.isJump()) {
+                if (!labels.containsKey(instruction.symbol))
+                    return false;
+            } else if (labels.containsKey(instruction.symbol) || !variables.contains(instruction.symbol)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void startRound() {
+        dead = new boolean[code.size()];
+        labelsAt = new ArrayList<>(code.size() + 1);
+        for (int i = 0; i <= code.size(); i++)
+            labelsAt.add(new ArrayList<>(0));
+        labels.forEach((label, index) -> labelsAt.get(index).add(label));
+    }
+
+    // Drops dead instructions and moves their labels to the next survivor
+    private void finishRound() {
+        List<Instruction> kept = new ArrayList<>(code.size());
+        List<String> pending = new ArrayList<>();
+        for (int i = 0; i <= code.size(); i++) {
+            pending.addAll(labelsAt.get(i));
+            if (i == code.size() || !dead[i]) {
+                for (String label : pending)
+                    labels.put(label, kept.size());
+                pending.clear();
+                if (i < code.size())
+                    kept.add(code.get(i));
+            }
+        }
+        code.clear();
+        code.addAll(kept);
+    }
+
+    private int nextLive(int index) {
+        while (index < code.size() && dead[index])
+            index++;
+        return index;
+    }
+
+    private boolean isLabelled(int index) {
+        return !labelsAt.get(index).isEmpty();
+    }
+
+    private boolean foldImmediates() {
+        boolean changed = false;
+        for (int i = nextLive(0); i < code.size(); i = nextLive(i + 1)) {
+            Instruction first = code.get(i);
+            if (first.symbol != null)
+                continue;
+
+            if (isIdentity(first)) {
+                dead[i] = true;
+                changed = true;
+                continue;
+            }
+
+            int j = nextLive(i + 1);
+            while (j < code.size() && !isLabelled(j) && code.get(j).symbol == null) {
+                Instruction next = code.get(j);
+                int folded = fold(first, next);
+                if (folded < 0)
+                    break;
+                first.operand = folded;
+                dead[j] = true;
+                changed = true;
+                j = nextLive(j + 1);
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isIdentity(Instruction instruction) {
+        switch (instruction.opCode) {
+            case 35:
+            case 36:
+                return instruction.operand == 0;
+            case 37:
+            case 39:
+                return instruction.operand == 1;
+            default:
+                return false;
+        }
+    }
+
+    // New operand for first when next can be folded into it, otherwise -1.
+    // Folded operands must still fit the operand field.
+    private int fold(Instruction first, Instruction next) {
+        long a = first.operand;
+        long b = next.operand;
+        long result;
+
+        if (first.opCode == 22) {
+            switch (next.opCode) {
+                case 35: result = a + b; break;
+                case 36: result = a - b; break;
+                case 37: result = b == 0 ? -1 : a / b; break;
+                case 38: result = b == 0 ? -1 : a % b; break;
+                case 39: result = a * b; break;
+                default: return -1;
+            }
+        } else if (first.opCode == next.opCode && (first.opCode == 35 || first.opCode == 36)) {
+            result = a + b;
+        } else if (first.opCode == 39 && next.opCode == 39 && a >= 1 && b >= 1) {
+            // Both factors grow the magnitude, so an overflow still happens
+            result = a * b;
+        } else {
+            return -1;
+        }
+        return result >= 0 && result <= maxOperand ? (int) result : -1;
+    }
+
+    private boolean peephole() {
+        boolean changed = false;
+        for (int i = nextLive(0); i < code.size(); i = nextLive(i + 1)) {
+            int j = nextLive(i + 1);
+            if (j >= code.size() || isLabelled(j))
+                continue;
+            Instruction first = code.get(i);
+            Instruction next = code.get(j);
+            if (!Objects.equals(first.symbol, next.symbol) || first.operand != next.operand)
+                continue;
+
+            // STORE a; LOAD a and LOAD a; STORE a: the second changes nothing
+            boolean redundant = (first.opCode == 21 && next.opCode == 20)
+                    || (first.opCode == 20 && next.opCode == 21)
+                    || (first.opCode == 21 && next.opCode == 21);
+            if (redundant) {
+                dead[j] = true;
+                changed = true;
+            }
+        }
+
+        // LOAD x; LOAD y: the first load is overwritten
+        for (int i = nextLive(0); i < code.size(); i = nextLive(i + 1)) {
+            int j = nextLive(i + 1);
+            if (j < code.size() && !isLabelled(j)
+                    && (code.get(i).opCode == 20 || code.get(i).opCode == 22)
+                    && (code.get(j).opCode == 20 || code.get(j).opCode == 22)) {
+                dead[i] = true;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private int target(Instruction jump) {
+        return nextLive(labels.get(jump.symbol));
+    }
+
+    private boolean threadJumps() {
+        boolean changed = false;
+        for (int i = nextLive(0); i < code.size(); i = nextLive(i + 1)) {
+            Instruction jump = code.get(i);
+            if (!jump.isJump())
+                continue;
+
+            // Follow chains of unconditional jumps, stopping on a cycle
+            Set<Integer> seen = new HashSet<>();
+            int target = target(jump);
+            while (target < code.size() && code.get(target).opCode == 40
+                    && target != i && seen.add(target)) {
+                jump.symbol = code.get(target).symbol;
+                target = target(jump);
+                changed = true;
+            }
+
+            // An unconditional jump to HALT may as well halt
+            if (jump.opCode == 40 && target < code.size() && code.get(target).opCode == 43) {
+                jump.opCode = 43;
+                jump.operand = 0;
+                jump.symbol = null;
+                changed = true;
+                continue;
+            }
+
+            if (target == nextLive(i + 1)) {
+                dead[i] = true;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private boolean removeUnreachable() {
+        boolean[] reached = new boolean[code.size()];
+        Deque<Integer> work = new ArrayDeque<>();
+        work.push(nextLive(0));
+        while (!work.isEmpty()) {
+            int i = nextLive(work.pop());
+            if (i >= code.size() || reached[i])
+                continue;
+            reached[i] = true;
+
+            Instruction instruction = code.get(i);
+            if (instruction.isJump())
+                work.push(target(instruction));
+            if (instruction.opCode != 40 && instruction.opCode != 43)
+                work.push(i + 1);
+        }
+
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            if (!dead[i] && !reached[i]) {
+                dead[i] = true;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
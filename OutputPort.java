@@ -0,0 +1,14 @@
+// Where WRITE sends its values
+public interface OutputPort {
+    void write(int value);
+
+    // A problem the machine runs on after, such as a division by zero.
+    // The run's RunResult keeps it too, so ports that don't show it can
+    // leave this out.
+    default void warn(String message) {
+    }
+
+    // Pushes out anything buffered; called when a run stops
+    default void flush() {
+    }
+}
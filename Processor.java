@@ -1,284 +1,939 @@
-import java.util.Scanner;
-
-public class Processor {
-   private StringBuilder res;
-   private String accumulator;
-   private Scanner scan;
-   private int counter;
-   private Memory memory; 
-   
-   public Processor(Memory mem) {
-      this(mem, 0); // Default to starting at address 0
-   }
-   
-   public Processor(Memory mem, int startAddress) {
-      this.memory = mem;
-      this.accumulator = "0000";
-      this.counter = startAddress;
-      this.scan = new Scanner(System.in);
-      this.res = new StringBuilder();
-   }
-
-   public String getAcc() {
-      return accumulator;
-   }
-
-   public void setAcc(String value) {
-      int num = Integer.parseInt(value);
-      if (num < 0)
-         this.accumulator = String.format("-%04d", Math.abs(num));
-      else
-         this.accumulator = String.format("%04d", num);
-   }
-
-   public int getCounter() {
-      return counter;
-   }
-
-   public String getRes() {
-      return res.toString();
-   }
-   
-   public void execute() {
-      String instruction = memory.getItem(counter);
-      int intInstr = Integer.parseInt(instruction);
-      int opCode = intInstr / 100;    
-      int operand = intInstr % 100;
-
-      switch (opCode) {
-            case 10: 
-               readAdd(operand);
-               break;
-            case 11: 
-               write(operand);
-               break;
-            case 20:
-            case 22:
-               load(opCode, operand);
-               break;
-            case 21:
-               store(operand);
-               break;
-            case 30:
-            case 35:
-               add(opCode, operand);
-               break;
-            case 31:
-            case 36:
-               subt(opCode, operand);
-               break;
-            case 32:
-            case 37:
-               div(opCode, operand);
-               break;
-            case 33:
-            case 38:
-               mod(opCode, operand);
-               break;
-            case 34:
-            case 39:     
-               mult(opCode, operand);
-               break;
-            case 40:
-            case 41:
-            case 42:
-               jump(opCode, operand);
-               break;
-            case 43: 
-               System.exit(0);
-            default:
-               System.out.println("Unknown opcode: " + opCode);
-      }
-      counter++;
-   }
-   
-   public void dumpDirect() {
-      while (counter < memory.getMemSize()) {
-         execute();
-      }
-   }
-
-   public void dumpStep() {
-      while (counter < memory.getMemSize()) {
-         String[] addresses = memory.getAdds();
-         int currAcc = Integer.parseInt(getAcc());
-         int currCounter = getCounter();
-         String currReg = memory.getItem(currCounter);
-         // Load registers
-         System.out.println();
-         System.out.println("REGISTERS:");
-         if (currAcc < 0)
-            System.out.printf("accumulator:%11s%05d%n", " ", currAcc);
-         else 
-            System.out.printf("accumulator:%11s+%04d%n", " ", currAcc);
-         System.out.printf("programCounter:%11s%02d%n", " ", currCounter);
-         System.out.printf("instructionRegister:%3s%5s%n", " ", currReg);
-         System.out.printf("operationCode:%12s%02d%n", " ", Integer.parseInt(currReg) / 100);
-         System.out.printf("operand:%18s%02d%n%n", " ", Integer.parseInt(currReg) % 100);
-
-         // Load memory addresses   
-         System.out.println("MEMORY:");
-         System.out.printf("%-6s", " ");
-         for (int i = 0; i < 10; i++) {
-               System.out.printf("%5d%4s", i, " ");
-         }
-         System.out.println();
-
-         for (int i = 0; i < 100; i++) {
-            if (i % 10 == 0) {
-               System.out.printf("%02d", i);
-               System.out.printf("%4s", " ");
-            }
-            if (addresses[i].startsWith("-"))
-               System.out.printf("%05d", Integer.parseInt(addresses[i]));
-            else
-               System.out.print("+" + addresses[i]);
-            System.out.printf("%4s", " ");
-            if (i % 10 == 9)
-               System.out.println();
-         }
-         execute();
-         System.out.println();
-         System.out.print("Press Enter to proceed to next step...");
-         scan.nextLine();
-      }
-   }
-   
-   public void readAdd(int address) {
-      System.out.print("Enter value: ");
-      String val = scan.next();
-      scan.nextLine(); 
-
-      if (val.matches("[+-]?\\d+")) {
-         int num = Integer.parseInt(val);
-
-         if (num > 9999 || num < -9999) {
-               System.out.println("ERROR: Input exceeds value limits. Terminating Program...");
-               System.exit(1);
-         }
-
-         String formatNum = String.format("%04d", Math.abs(num));
-         if (num < 0) {
-               formatNum = "-" + formatNum;
-         }
-         memory.addItem(address, formatNum);
-      } else {
-         memory.addItem(address, val);
-      }
-   }
-   
-   public void write(int address) {
-      String value = memory.getItem(address);
-
-      if (value.matches("[+-]?\\d+")) {
-         int num = Integer.parseInt(value);
-         System.out.print(Integer.toString(num));
-      } else {
-         System.out.print("RESULT: " + value);
-      }  
-   }
-   
-   public void load(int opCode, int operand) {
-      String result = " ";
-      if (opCode == 20)
-         result = memory.getItem(operand);
-      else 
-         result = String.format("%04d", operand);
-      setAcc(result);
-   }
-
-   public void store (int address) {
-      String currAcc = getAcc();
-      memory.addItem(address, currAcc);
-   }
-
-   public void add(int opCode, int operand) {
-      int val2, result = 0;
-      if (opCode == 30)
-         val2 = Integer.parseInt(memory.getItem(operand));
-      else 
-         val2 = operand;
-      result = Integer.parseInt(accumulator) + val2;
-
-      if (result > 9999) {
-         System.out.println("ERROR: Result exceeds upper value limit. Terminating Program...");
-         System.exit(1);
-      }
-      setAcc(String.format("%04d", result));   
-   }
-
-   public void subt(int opCode, int operand) {
-      int val2, result = 0;
-      if (opCode == 31)
-         val2 = Integer.parseInt(memory.getItem(operand));
-      else 
-         val2 = operand;
-      result = Integer.parseInt(accumulator) - val2;
-
-      if (result < -9999) {
-         System.out.println("ERROR: Result exceeds lower value limit. Terminating Program...");
-         System.exit(1);
-      }
-      setAcc(String.format("%04d", result));
-   }
-
-   public void div(int opCode, int operand) {
-      int val2, result = 0;
-      if (opCode == 32)
-         val2 = Integer.parseInt(memory.getItem(operand));
-      else 
-         val2 = operand;
-
-      if (val2 == 0) {
-         System.out.println("ERROR: Cannot divide by 0.");
-         result = 0;
-      } else {
-         result = Integer.parseInt(accumulator) / val2;
-      }
-
-      if (result > 9999) {
-         System.out.println("ERROR: Result exceeds upper value limit. Terminating Program...");
-         System.exit(1);
-      }
-      setAcc(String.format("%04d", result));
-   }
-
-   public void mod(int opCode, int operand) {
-      int val2, result = 0;
-      if (opCode == 33)
-         val2 = Integer.parseInt(memory.getItem(operand));
-      else 
-         val2 = operand;
-      result = Integer.parseInt(accumulator) % val2;
-
-      setAcc(String.format("%04d", result));
-   }
-
-   public void mult(int opCode, int operand) {
-      int val2, result = 0;
-      if (opCode == 34)
-         val2 = Integer.parseInt(memory.getItem(operand));
-      else 
-         val2 = operand;
-      result = Integer.parseInt(accumulator) * val2;
-      if (result > 9999) {
-         System.out.println("ERROR: Result exceeds upper value limit. Terminating Program...");
-         System.exit(1);
-      }
-      setAcc(String.format("%04d", result));
-   }
-
-   public void jump(int opCode, int operand) {
-      int accVal = Integer.parseInt(getAcc());
-
-      if (opCode == 40) { 
-         counter = operand - 1;  
-      } 
-      else if (opCode == 41 && accVal < 0) { 
-         counter = operand - 1;
-      } 
-      else if (opCode == 42 && accVal == 0) {
-         counter = operand - 1;
-      }
-   }
+import java.io.*;
+import java.util.*;
+
+public class Processor {
+   private StringBuilder res;
+   private int accumulator;
+   private InputPort input;
+   private OutputPort output;
+   private ConsolePort console;
+   private int counter;
+   private Memory memory; 
+   private long instructionCount;
+   private boolean stopped;
+   private RunResult.Reason stopReason;
+   private RunResult.Fault fault = RunResult.Fault.NONE;
+   private final List<String> warnings = new ArrayList<>();
+   private boolean jit;
+   // Limits on running, 0 for none, and the time spent running so far
+   private long instructionLimit;
+   private long timeLimit;
+   private long runTime;
+   private ExecutionRecorder recorder;
+   private Profiler profiler;
+   // Counters of the current run; handed back to the profiler when it ends
+   private Profiler.Stripe profile;
+
+   // Decoded instruction cache, one entry per address. An entry is dropped
+   // when the processor writes to its address, so only self-modified code
+   // is decoded again.
+   private int[] opCodes;
+   private int[] operands;
+   private byte[] handlers;
+   private boolean[] decoded;
+   // Where reload() began decoding; addresses below it are decoded, and
+   // fused, when the machine first gets to them
+   private int decodedFrom;
+   // Word layout of the loaded memory, cached for decode and range checks
+   private int operandScale;
+   private int maxWord;
+
+   // Handlers for dumpDirect's fast path. Superinstructions are common
+   // opcode sequences run in one dispatch: fastHandlers holds a fused
+   // handler at the first address of each sequence. Arithmetic that
+   // RangeAnalysis proved can't leave the word range gets an unchecked
+   // handler, and everything else the plain one. execute() and dumpStep
+   // only use the plain handlers, so single steps stay exact, and a jump
+   // into the middle of a sequence runs it one instruction at a time.
+   private byte[] fastHandlers;
+   private boolean[] fusedCover;
+   private boolean fusion = true;
+   private RangeAnalysis ranges;
+   // Unchecked marks of ranges, or null while they don't cover the machine
+   private boolean[] unchecked;
+   private final int[] fusionSites = new int[FUSION_NAMES.length];
+   private final long[] fusionRuns = new long[FUSION_NAMES.length];
+
+   private static final byte H_UNKNOWN = 0;
+   private static final byte H_READ = 1;
+   private static final byte H_WRITE = 2;
+   private static final byte H_LOAD = 3;
+   private static final byte H_LOADI = 4;
+   private static final byte H_STORE = 5;
+   private static final byte H_ADD = 6;
+   private static final byte H_ADDI = 7;
+   private static final byte H_SUBT = 8;
+   private static final byte H_SUBTI = 9;
+   private static final byte H_DIV = 10;
+   private static final byte H_DIVI = 11;
+   private static final byte H_MOD = 12;
+   private static final byte H_MODI = 13;
+   private static final byte H_MULT = 14;
+   private static final byte H_MULTI = 15;
+   private static final byte H_JUMP = 16;
+   private static final byte H_JUMPN = 17;
+   private static final byte H_JUMPZ = 18;
+   private static final byte H_HALT = 19;
+   // A memory instruction whose operand is past the end of memory
+   private static final byte H_ADDRESS = 20;
+
+   private static final byte H_FIRST_UNCHECKED = 21;
+   private static final byte H_ADD_UNCHECKED = 21;
+   private static final byte H_ADDI_UNCHECKED = 22;
+   private static final byte H_SUBT_UNCHECKED = 23;
+   private static final byte H_SUBTI_UNCHECKED = 24;
+   private static final byte H_MULT_UNCHECKED = 25;
+   private static final byte H_MULTI_UNCHECKED = 26;
+   private static final byte H_FIRST_FUSED = 27;
+   private static final byte H_LOAD_SUBT_JUMPZ = 27;
+   private static final byte H_LOAD_ARITH_STORE = 28;
+   private static final byte H_STORE_JUMP = 29;
+   private static final String[] FUSION_NAMES = { "LOAD+SUBT+JUMPZ", "LOAD+ARITH+STORE", "STORE+JUMP" };
+   private static final int[] FUSION_LENGTHS = { 3, 3, 2 };
+
+   private static final byte[] HANDLER_FOR_OPCODE = new byte[100];
+   static {
+      HANDLER_FOR_OPCODE[10] = H_READ;
+      HANDLER_FOR_OPCODE[11] = H_WRITE;
+      HANDLER_FOR_OPCODE[20] = H_LOAD;
+      HANDLER_FOR_OPCODE[21] = H_STORE;
+      HANDLER_FOR_OPCODE[22] = H_LOADI;
+      HANDLER_FOR_OPCODE[30] = H_ADD;
+      HANDLER_FOR_OPCODE[31] = H_SUBT;
+      HANDLER_FOR_OPCODE[32] = H_DIV;
+      HANDLER_FOR_OPCODE[33] = H_MOD;
+      HANDLER_FOR_OPCODE[34] = H_MULT;
+      HANDLER_FOR_OPCODE[35] = H_ADDI;
+      HANDLER_FOR_OPCODE[36] = H_SUBTI;
+      HANDLER_FOR_OPCODE[37] = H_DIVI;
+      HANDLER_FOR_OPCODE[38] = H_MODI;
+      HANDLER_FOR_OPCODE[39] = H_MULTI;
+      HANDLER_FOR_OPCODE[40] = H_JUMP;
+      HANDLER_FOR_OPCODE[41] = H_JUMPN;
+      HANDLER_FOR_OPCODE[42] = H_JUMPZ;
+      HANDLER_FOR_OPCODE[43] = H_HALT;
+   }
+
+   private static final byte[] UNCHECKED_HANDLER = new byte[H_FIRST_UNCHECKED];
+   static {
+      UNCHECKED_HANDLER[H_ADD] = H_ADD_UNCHECKED;
+      UNCHECKED_HANDLER[H_ADDI] = H_ADDI_UNCHECKED;
+      UNCHECKED_HANDLER[H_SUBT] = H_SUBT_UNCHECKED;
+      UNCHECKED_HANDLER[H_SUBTI] = H_SUBTI_UNCHECKED;
+      UNCHECKED_HANDLER[H_MULT] = H_MULT_UNCHECKED;
+      UNCHECKED_HANDLER[H_MULTI] = H_MULTI_UNCHECKED;
+   }
+   
+   public Processor(Memory mem) {
+      this(mem, 0); // Default to starting at address 0
+   }
+   
+   public Processor(Memory mem, int startAddress) {
+      this.memory = mem;
+      this.accumulator = 0;
+      this.counter = startAddress;
+      this.res = new StringBuilder();
+      this.console = new ConsolePort();
+      this.input = console;
+      this.output = console;
+      reload();
+   }
+
+   // A machine in the snapshot's state; its memory is copied on first write
+   public Processor(MachineSnapshot snapshot) {
+      this(snapshot.newMemory(), snapshot.getCounter());
+      this.accumulator = snapshot.getAccumulator();
+   }
+
+   // Rebuilds the decode cache from memory. Call after changing memory
+   // other than through this processor.
+   public void reload() {
+      int size = memory.getMemSize();
+      MachineFormat format = memory.getFormat();
+      operandScale = format.getMaxOperand() + 1;
+      maxWord = format.getMaxWord();
+      opCodes = new int[size];
+      operands = new int[size];
+      handlers = new byte[size];
+      fastHandlers = new byte[size];
+      fusedCover = new boolean[size];
+      decoded = new boolean[size];
+      unchecked = ranges != null && ranges.covers(counter, accumulator, memory) ? ranges.getUnchecked() : null;
+      decodedFrom = Math.max(counter, 0);
+      for (int i = decodedFrom; i < size; i++)
+         decode(i);
+      fuse();
+   }
+
+   private void fuse() {
+      Arrays.fill(fusionSites, 0);
+      for (int i = decodedFrom; i + 1 < handlers.length; i++)
+         fuseAt(i);
+   }
+
+   private void fuseAt(int i) {
+      byte fused = fusionAt(i);
+      if (fused == 0)
+         return;
+      int kind = fused - H_FIRST_FUSED;
+      fastHandlers[i] = fused;
+      for (int k = 0; k < FUSION_LENGTHS[kind]; k++)
+         fusedCover[i + k] = true;
+      fusionSites[kind]++;
+   }
+
+   private byte fusionAt(int i) {
+      if (!decoded[i] || !decoded[i + 1])
+         return 0;
+      byte first = handlers[i];
+      byte second = handlers[i + 1];
+      // A STORE into the jump right behind it must run before that jump is read
+      if (first == H_STORE && second == H_JUMP && operands[i] != i + 1)
+         return H_STORE_JUMP;
+
+      if (first != H_LOAD || i + 2 >= handlers.length || !decoded[i + 2])
+         return 0;
+      byte third = handlers[i + 2];
+      if (second == H_SUBT && third == H_JUMPZ)
+         return H_LOAD_SUBT_JUMPZ;
+      if ((second == H_ADD || second == H_ADDI || second == H_SUBT || second == H_SUBTI)
+            && third == H_STORE)
+         return H_LOAD_ARITH_STORE;
+      return 0;
+   }
+
+   // Fusions that fired since the processor was built or reset
+   public String getFusionReport() {
+      StringBuilder report = new StringBuilder();
+      for (int kind = 0; kind < FUSION_NAMES.length; kind++) {
+         report.append(String.format("%-18s %4d sites %12d runs %12d dispatches saved%n",
+               FUSION_NAMES[kind], fusionSites[kind], fusionRuns[kind],
+               fusionRuns[kind] * (FUSION_LENGTHS[kind] - 1)));
+      }
+      return report.toString();
+   }
+
+   public long getDispatchesSaved() {
+      long saved = 0;
+      for (int kind = 0; kind < FUSION_NAMES.length; kind++)
+         saved += fusionRuns[kind] * (FUSION_LENGTHS[kind] - 1);
+      return saved;
+   }
+
+   // Superinstructions are on by default
+   public void setFusion(boolean fusion) {
+      this.fusion = fusion;
+   }
+
+   // Lets dumpDirect skip the range checks that the analysis proved
+   // redundant, for as long as the machine stays in a state it covers
+   public void setRangeAnalysis(RangeAnalysis ranges) {
+      this.ranges = ranges;
+      reload();
+   }
+
+   // Addresses that currently run unchecked arithmetic
+   public int getUncheckedCount() {
+      int count = 0;
+      for (int i = 0; i < fastHandlers.length; i++) {
+         if (fastHandlers[i] >= H_FIRST_UNCHECKED && fastHandlers[i] < H_FIRST_FUSED)
+            count++;
+      }
+      return count;
+   }
+
+   private void decode(int address) {
+      int word = memory.getWord(address);
+      int opCode = word / operandScale;
+      opCodes[address] = opCode;
+      operands[address] = word % operandScale;
+      handlers[address] = opCode >= 0 ? HANDLER_FOR_OPCODE[opCode] : H_UNKNOWN;
+      if (operands[address] >= memory.getMemSize() && MachineFormat.usesMemory(opCode))
+         handlers[address] = H_ADDRESS;
+      fastHandlers[address] = fastHandler(address);
+      decoded[address] = true;
+      // Code below where reload() began, such as a loop jumped back to,
+      // gets its superinstructions once their last word is decoded
+      if (address < decodedFrom) {
+         for (int head = Math.max(0, address - 2); head <= address && head + 1 < handlers.length; head++) {
+            if (fastHandlers[head] < H_FIRST_FUSED)
+               fuseAt(head);
+         }
+      }
+   }
+
+   private void writeWord(int address, int value) {
+      memory.setWord(address, value);
+      decoded[address] = false;
+      if (fusedCover[address])
+         unfuse(address);
+   }
+
+   private byte fastHandler(int address) {
+      byte handler = handlers[address];
+      if (unchecked != null && unchecked[address] && UNCHECKED_HANDLER[handler] != 0)
+         return UNCHECKED_HANDLER[handler];
+      return handler;
+   }
+
+   // Self-modified code: break up every sequence that covers the address
+   private void unfuse(int address) {
+      for (int head = Math.max(0, address - 2); head <= address; head++) {
+         byte fused = fastHandlers[head];
+         if (fused < H_FIRST_FUSED)
+            continue;
+         int kind = fused - H_FIRST_FUSED;
+         if (head + FUSION_LENGTHS[kind] <= address)
+            continue;
+         fastHandlers[head] = fastHandler(head);
+         for (int k = 0; k < FUSION_LENGTHS[kind]; k++)
+            fusedCover[head + k] = false;
+      }
+   }
+
+   public String getAcc() {
+      return memory.getFormat().format(accumulator);
+   }
+
+   public void setAcc(String value) {
+      this.accumulator = Memory.parseWord(value);
+   }
+
+   public int getAccumulator() {
+      return accumulator;
+   }
+
+   public Memory getMemory() {
+      return memory;
+   }
+
+   public int getCounter() {
+      return counter;
+   }
+
+   public String getRes() {
+      return res.toString();
+   }
+
+   public long getInstructionCount() {
+      return instructionCount;
+   }
+
+   public boolean isHalted() {
+      return stopReason == RunResult.Reason.HALTED;
+   }
+
+   // True once HALT ran or a fault stopped the machine
+   public boolean isStopped() {
+      return stopped;
+   }
+
+   public RunResult getResult() {
+      RunResult.Reason reason = stopped ? stopReason : RunResult.Reason.END_OF_MEMORY;
+      return new RunResult(reason, fault, counter, accumulator, instructionCount, warnings);
+   }
+
+   // Makes the processor ready to run its memory again from startAddress,
+   // so machines can be pooled instead of rebuilt
+   public void reset(int startAddress) {
+      accumulator = 0;
+      counter = startAddress;
+      instructionCount = 0;
+      runTime = 0;
+      Arrays.fill(fusionRuns, 0);
+      stopped = false;
+      stopReason = null;
+      fault = RunResult.Fault.NONE;
+      warnings.clear();
+      if (profiler != null && profile == null)
+         profile = profiler.newStripe(memory.getMemSize());
+      reload();
+   }
+
+   private void stop(RunResult.Reason reason, RunResult.Fault cause) {
+      stopped = true;
+      stopReason = reason;
+      fault = cause;
+   }
+
+   // Goes to the output port, which may show it, and into the result
+   private void warn(String message) {
+      output.warn(message);
+      if (warnings.size() < RunResult.MAX_WARNINGS)
+         warnings.add(message);
+   }
+
+   // Stops the machine from outside, for a scheduler that gives up on it
+   public void abort(RunResult.Fault cause) {
+      if (!stopped)
+         stop(RunResult.Reason.FAULT, cause);
+   }
+
+   public MachineSnapshot snapshot() {
+      return new MachineSnapshot(memory.readOnlyWords(), counter, accumulator);
+   }
+
+   // Runs until the next instruction is a READ and stops in front of it, the
+   // point to snapshot a job that reads its inputs after a common prefix.
+   // Returns false when the machine stopped without reaching one.
+   public boolean runToInput() {
+      int size = memory.getMemSize();
+      while (!stopped && counter < size) {
+         if (!decoded[counter])
+            decode(counter);
+         if (handlers[counter] == H_READ)
+            return true;
+         execute();
+      }
+      output.flush();
+      return false;
+   }
+
+   // Logs every following step to the recorder, starting from the current
+   // state. Recording runs each instruction on its own, without the JIT or
+   // superinstructions, so that every step gets its own record.
+   public void setRecorder(ExecutionRecorder recorder) {
+      this.recorder = recorder;
+      if (recorder != null)
+         recorder.start(counter, accumulator, memory.readOnlyWords());
+   }
+
+   // Counts every following step into the profiler, up to the end of the
+   // run and again after each reset. Like recording, this runs each
+   // instruction on its own, without the JIT or superinstructions.
+   public void setProfiler(Profiler profiler) {
+      if (profile != null)
+         this.profiler.retire(profile);
+      this.profiler = profiler;
+      profile = profiler == null ? null : profiler.newStripe(memory.getMemSize());
+   }
+
+   private void retireProfile(long elapsed) {
+      profile.ran(elapsed);
+      profiler.retire(profile);
+      profile = null;
+   }
+
+   // Runs dumpDirect through JitCompiler's generated code where it can
+   public void setJit(boolean jit) {
+      this.jit = jit;
+   }
+
+   // Stops the machine with an INSTRUCTION_LIMIT fault once it has run this
+   // many instructions, 0 for no limit. Limited runs don't use the JIT,
+   // since compiled code only hands the machine back when it stops.
+   public void setInstructionLimit(long limit) {
+      this.instructionLimit = Math.max(0, limit);
+   }
+
+   // Stops the machine with a TIME_LIMIT fault once dumpDirect and runSlice
+   // together have run it for this long, 0 for no limit
+   public void setTimeLimit(long millis) {
+      this.timeLimit = Math.max(0, millis) * 1_000_000;
+   }
+
+   // Nanoseconds spent in dumpDirect and runSlice since the processor was
+   // built or reset
+   public long getRunTime() {
+      return runTime;
+   }
+
+   public void setInput(InputPort input) {
+      this.input = input;
+   }
+
+   public void setOutput(OutputPort output) {
+      this.output = output;
+   }
+
+   public InputPort getInput() {
+      return input;
+   }
+
+   public OutputPort getOutput() {
+      return output;
+   }
+   
+   // Runs one instruction. Returns false once the machine has stopped.
+   public boolean execute() {
+      int pc = counter;
+      if (!decoded[pc])
+         decode(pc);
+      if (recorder != null || profile != null)
+         return observedStep(pc);
+      return dispatch(pc, handlers[pc]);
+   }
+
+   private boolean observedStep(int pc) {
+      int acc = accumulator;
+      byte handler = handlers[pc];
+      boolean running = dispatch(pc, handler);
+      if (profile != null)
+         profile(pc, handler);
+      if (recorder != null)
+         record(pc, handler, acc);
+      return running;
+   }
+
+   private void profile(int pc, byte handler) {
+      int operand = operands[pc];
+      profile.executed(pc, opCodes[pc]);
+      switch (handler) {
+         case H_WRITE:
+         case H_LOAD:
+         case H_ADD:
+         case H_SUBT:
+         case H_DIV:
+         case H_MOD:
+         case H_MULT:
+            profile.read(operand);
+            break;
+         case H_STORE:
+            profile.wrote(operand);
+            break;
+         case H_READ:
+            if (!stopped)
+               profile.wrote(operand);
+            break;
+         case H_JUMP:
+            profile.jump(pc, true);
+            break;
+         case H_JUMPN:
+            profile.jump(pc, accumulator < 0);
+            break;
+         case H_JUMPZ:
+            profile.jump(pc, accumulator == 0);
+            break;
+         default:
+            break;
+      }
+   }
+
+   private void record(int pc, byte handler, int acc) {
+      // An instruction changes one memory word or the accumulator, not both.
+      // The operand is still cached even if the instruction overwrote itself.
+      int operand = operands[pc];
+      if (handler == H_STORE) {
+         recorder.record(ExecutionRecorder.MEMORY, pc, operand, accumulator);
+      } else if (handler == H_READ && !stopped) {
+         recorder.record(ExecutionRecorder.INPUT, pc, operand, memory.getWord(operand));
+      } else if (accumulator != acc) {
+         recorder.record(ExecutionRecorder.ACCUMULATOR, pc, 0, accumulator);
+      } else {
+         recorder.record(ExecutionRecorder.NONE, pc, 0, 0);
+      }
+   }
+
+   // As execute(), but runs a whole superinstruction when one starts here
+   // and arithmetic without its range check where that is safe
+   private boolean executeFast() {
+      int pc = counter;
+      if (!decoded[pc])
+         decode(pc);
+      byte handler = fastHandlers[pc];
+      if (handler >= H_FIRST_FUSED) {
+         if (fusion && runFused(pc, handler))
+            return true;
+      } else if (handler >= H_FIRST_UNCHECKED) {
+         return runUnchecked(pc, handler);
+      }
+      return dispatch(pc, handlers[pc]);
+   }
+
+   private boolean runUnchecked(int pc, byte handler) {
+      int operand = operands[pc];
+      instructionCount++;
+      switch (handler) {
+         case H_ADD_UNCHECKED:
+            accumulator += memory.getWord(operand);
+            break;
+         case H_ADDI_UNCHECKED:
+            accumulator += operand;
+            break;
+         case H_SUBT_UNCHECKED:
+            accumulator -= memory.getWord(operand);
+            break;
+         case H_SUBTI_UNCHECKED:
+            accumulator -= operand;
+            break;
+         case H_MULT_UNCHECKED:
+            accumulator *= memory.getWord(operand);
+            break;
+         default:
+            accumulator *= operand;
+            break;
+      }
+      counter = pc + 1;
+      return true;
+   }
+
+   // Returns false, having changed nothing, when the sequence would fault
+   // and has to run one instruction at a time instead
+   private boolean runFused(int pc, byte handler) {
+      int result;
+      switch (handler) {
+         case H_LOAD_SUBT_JUMPZ:
+            result = memory.getWord(operands[pc]) - memory.getWord(operands[pc + 1]);
+            if (result > maxWord || result < -maxWord)
+               return false;
+            accumulator = result;
+            counter = result == 0 ? operands[pc + 2] : pc + 3;
+            break;
+         case H_LOAD_ARITH_STORE:
+            int value = operands[pc + 1];
+            byte arith = handlers[pc + 1];
+            if (arith == H_ADD || arith == H_SUBT)
+               value = memory.getWord(value);
+            if (arith == H_SUBT || arith == H_SUBTI)
+               value = -value;
+            result = memory.getWord(operands[pc]) + value;
+            if (result > maxWord || result < -maxWord)
+               return false;
+            accumulator = result;
+            counter = pc + 3;
+            writeWord(operands[pc + 2], result);
+            break;
+         case H_STORE_JUMP:
+            counter = operands[pc + 1];
+            writeWord(operands[pc], accumulator);
+            break;
+         default:
+            return false;
+      }
+      int kind = handler - H_FIRST_FUSED;
+      instructionCount += FUSION_LENGTHS[kind];
+      fusionRuns[kind]++;
+      return true;
+   }
+
+   private boolean dispatch(int pc, byte handler) {
+      int operand = operands[pc];
+      instructionCount++;
+
+      switch (handler) {
+            case H_READ: 
+               readAdd(operand);
+               break;
+            case H_WRITE: 
+               write(operand);
+               break;
+            case H_LOAD:
+               accumulator = memory.getWord(operand);
+               break;
+            case H_LOADI:
+               accumulator = operand;
+               break;
+            case H_STORE:
+               writeWord(operand, accumulator);
+               break;
+            case H_ADD:
+               setResult(accumulator + memory.getWord(operand));
+               break;
+            case H_ADDI:
+               setResult(accumulator + operand);
+               break;
+            case H_SUBT:
+               setResult(accumulator - memory.getWord(operand));
+               break;
+            case H_SUBTI:
+               setResult(accumulator - operand);
+               break;
+            case H_DIV:
+            case H_DIVI:
+               div(opCodes[pc], operand);
+               break;
+            case H_MOD:
+            case H_MODI:
+               mod(opCodes[pc], operand);
+               break;
+            case H_MULT:
+               setResult((long) accumulator * memory.getWord(operand));
+               break;
+            case H_MULTI:
+               setResult((long) accumulator * operand);
+               break;
+            case H_JUMP:
+               counter = operand;
+               return true;
+            case H_JUMPN:
+               if (accumulator < 0) {
+                  counter = operand;
+                  return true;
+               }
+               break;
+            case H_JUMPZ:
+               if (accumulator == 0) {
+                  counter = operand;
+                  return true;
+               }
+               break;
+            case H_HALT: 
+               stop(RunResult.Reason.HALTED, RunResult.Fault.NONE);
+               return false;
+            case H_ADDRESS:
+               stop(RunResult.Reason.FAULT, RunResult.Fault.ADDRESS);
+               break;
+            default:
+               warn("Unknown opcode: " + opCodes[pc]);
+      }
+      // Faulting instructions leave the counter on themselves
+      if (stopped)
+         return false;
+      counter++;
+      return true;
+   }
+   
+   public RunResult dumpDirect() {
+      boolean observed = recorder != null || profile != null;
+      boolean limited = instructionLimit > 0 || timeLimit > 0;
+      long started = System.nanoTime();
+      if (jit && !observed && !limited)
+         runCompiled();
+      if (limited) {
+         runLimited(Long.MAX_VALUE, started, false);
+      } else if (!observed) {
+         while (!stopped && counter < memory.getMemSize())
+            executeFast();
+      } else {
+         while (!stopped && counter < memory.getMemSize())
+            execute();
+      }
+      long elapsed = System.nanoTime() - started;
+      runTime += elapsed;
+      if (profile != null)
+         retireProfile(elapsed);
+      return finishRun();
+   }
+
+   // Runs about steps instructions, less when the machine stops or the next
+   // instruction is a READ that would have to wait for input, so that a
+   // scheduler can share threads between many machines. Returns false once
+   // the machine has stopped or run off the end of memory.
+   public boolean runSlice(long steps) {
+      long started = System.nanoTime();
+      runLimited(steps, started, true);
+      runTime += System.nanoTime() - started;
+      if (!stopped && counter < memory.getMemSize())
+         return true;
+      if (profile != null)
+         retireProfile(runTime);
+      finishRun();
+      return false;
+   }
+
+   // True when the next instruction is a READ and its input isn't there yet
+   public boolean isWaitingForInput() {
+      if (stopped || counter < 0 || counter >= memory.getMemSize())
+         return false;
+      if (!decoded[counter])
+         decode(counter);
+      return handlers[counter] == H_READ && !input.available() && !input.isClosed();
+   }
+
+   // The run loop under the limits. The clock is read every 1024 steps, and
+   // superinstructions are left out where they could overshoot the
+   // instruction limit.
+   private void runLimited(long steps, long started, boolean slice) {
+      boolean observed = recorder != null || profile != null;
+      long timeLeft = timeLimit > 0 ? timeLimit - runTime : Long.MAX_VALUE;
+      long end = steps > Long.MAX_VALUE - instructionCount ? Long.MAX_VALUE : instructionCount + steps;
+      for (int check = 0; !stopped && counter < memory.getMemSize(); check++) {
+         if (instructionLimit > 0 && instructionCount >= instructionLimit) {
+            stop(RunResult.Reason.FAULT, RunResult.Fault.INSTRUCTION_LIMIT);
+            break;
+         }
+         if ((check & 1023) == 0 && timeLimit > 0 && System.nanoTime() - started >= timeLeft) {
+            stop(RunResult.Reason.FAULT, RunResult.Fault.TIME_LIMIT);
+            break;
+         }
+         if (instructionCount >= end || (slice && isWaitingForInput()))
+            break;
+         if (observed || (instructionLimit > 0 && instructionLimit - instructionCount < 3))
+            execute();
+         else
+            executeFast();
+      }
+   }
+
+   private void runCompiled() {
+      if (stopped || counter < 0 || counter >= memory.getMemSize())
+         return;
+      int[] words = memory.readOnlyWords();
+      JitCompiler.Entry entry = JitCompiler.entry(words, counter);
+      JitCompiler.Program program = entry.getProgram(words);
+      if (program == null) {
+         // Interpreted while the image is cold. A run that makes it hot
+         // compiles the state it has reached, which is as sound a start
+         // as any; the image itself is compiled when a run next starts
+         // from it.
+         long started = instructionCount;
+         long coldLeft = entry.getColdLeft();
+         while (!stopped && counter < memory.getMemSize() && instructionCount - started < coldLeft)
+            executeFast();
+         if (!entry.interpreted(instructionCount - started) || stopped || counter >= memory.getMemSize())
+            return;
+         program = JitCompiler.compile(memory.readOnlyWords(), counter);
+         if (program == null)
+            return;
+      }
+      program.run(this, memory.rawWords(), accumulator, counter);
+      // Compiled code writes memory directly; start the interpreter clean
+      reload();
+   }
+
+   // Called from compiled code to run one instruction in the interpreter
+   void jitStep(int acc, int pc) {
+      accumulator = acc;
+      counter = pc;
+      execute();
+   }
+
+   // Called from compiled code when it hands the machine back
+   void jitExit(int acc, int pc, long count) {
+      accumulator = acc;
+      counter = pc;
+      instructionCount += count;
+   }
+
+   public RunResult dumpStep() {
+      // Field widths follow the word layout; the classic machine shows
+      // two-digit addresses and four-digit words
+      MachineFormat format = memory.getFormat();
+      int address = format.getOperandDigits();
+      int word = format.getWordDigits();
+      String addressField = "%0" + address + "d";
+      while (!stopped && counter < memory.getMemSize()) {
+         int currAcc = accumulator;
+         int currCounter = getCounter();
+         int currWord = memory.getWord(currCounter);
+         String currReg = format.format(currWord);
+         // Load registers
+         System.out.println();
+         System.out.println("REGISTERS:");
+         if (currAcc < 0)
+            System.out.printf("accumulator:%11s%0" + (word + 1) + "d%n", " ", currAcc);
+         else 
+            System.out.printf("accumulator:%11s+%0" + word + "d%n", " ", currAcc);
+         System.out.printf("programCounter:%11s" + addressField + "%n", " ", currCounter);
+         System.out.printf("instructionRegister:%3s%" + (word + 1) + "s%n", " ", currReg);
+         System.out.printf("operationCode:%12s%02d%n", " ", format.opCode(currWord));
+         System.out.printf("operand:%18s" + addressField + "%n%n", " ", format.operand(currWord));
+
+         // Load memory addresses   
+         System.out.println("MEMORY:");
+         System.out.printf("%-" + (address + 4) + "s", " ");
+         for (int i = 0; i < 10; i++) {
+               System.out.printf("%" + (word + 1) + "d%4s", i, " ");
+         }
+         System.out.println();
+
+         for (int i = 0; i < memory.getMemSize(); i++) {
+            if (i % 10 == 0) {
+               System.out.printf(addressField, i);
+               System.out.printf("%4s", " ");
+            }
+            int cell = memory.getWord(i);
+            if (cell < 0)
+               System.out.printf("%0" + (word + 1) + "d", cell);
+            else
+               System.out.print("+" + format.format(cell));
+            System.out.printf("%4s", " ");
+            if (i % 10 == 9)
+               System.out.println();
+         }
+         execute();
+         System.out.println();
+         if (stopped)
+            break;
+         output.flush();
+         System.out.print("Press Enter to proceed to next step...");
+         console.waitForEnter();
+      }
+      return finishRun();
+   }
+
+   // Runs without waiting for Enter and writes dumpStep's frames for the
+   // sampled steps to the trace; program output still goes to the output port
+   public RunResult trace(TraceRenderer trace) throws IOException {
+      MachineFormat format = memory.getFormat();
+      long step = 0;
+      while (!stopped && counter < memory.getMemSize()) {
+         if (trace.wants(step, format.opCode(memory.getWord(counter))))
+            trace.render(accumulator, counter, memory);
+         execute();
+         step++;
+      }
+      trace.flush();
+      return finishRun();
+   }
+
+   private RunResult finishRun() {
+      output.flush();
+      RunResult result = getResult();
+      if (recorder != null)
+         recorder.finish(result);
+      return result;
+   }
+
+   public void readAdd(int address) {
+      int num;
+      try {
+         num = input.read();
+      } catch (InputMismatchException e) {
+         stop(RunResult.Reason.FAULT, RunResult.Fault.INVALID_INPUT);
+         return;
+      } catch (NoSuchElementException e) {
+         stop(RunResult.Reason.FAULT, RunResult.Fault.NO_INPUT);
+         return;
+      }
+
+      if (num > maxWord || num < -maxWord) {
+         stop(RunResult.Reason.FAULT, RunResult.Fault.INPUT_RANGE);
+         return;
+      }
+      writeWord(address, num);
+   }
+   
+   public void write(int address) {
+      output.write(memory.getWord(address));
+   }
+   
+   private void div(int opCode, int operand) {
+      int val2, result = 0;
+      if (opCode == 32)
+         val2 = memory.getWord(operand);
+      else 
+         val2 = operand;
+
+      if (val2 == 0) {
+         warn("ERROR: Cannot divide by 0.");
+         result = 0;
+      } else {
+         result = accumulator / val2;
+      }
+      setResult(result);
+   }
+
+   private void mod(int opCode, int operand) {
+      int val2;
+      if (opCode == 33)
+         val2 = memory.getWord(operand);
+      else 
+         val2 = operand;
+
+      if (val2 == 0)
+         stop(RunResult.Reason.FAULT, RunResult.Fault.DIVIDE_BY_ZERO);
+      else
+         accumulator = accumulator % val2;
+   }
+
+   // Takes a long so that products of wide words can't wrap around
+   private void setResult(long result) {
+      if (result > maxWord)
+         stop(RunResult.Reason.FAULT, RunResult.Fault.OVERFLOW);
+      else if (result < -maxWord)
+         stop(RunResult.Reason.FAULT, RunResult.Fault.UNDERFLOW);
+      else
+         accumulator = (int) result;
+   }
 }
\ No newline at end of file
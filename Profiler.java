@@ -0,0 +1,307 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Execution profile shared by any number of processors. Each Processor
+// given to setProfiler counts into its own Stripe of plain arrays, written
+// only by the thread running it, and a snapshot adds the stripes up. When
+// its run finishes the stripe is added into the totals of finished runs
+// and dropped, so only running machines hold counters of their own. A
+// snapshot taken while machines are still running is approximate.
+//
+// Snapshots export as JSON or as Prometheus text, to a file or over HTTP:
+//    GET /metrics        Prometheus text
+//    GET /profile.json   JSON
+public class Profiler {
+    static final int OPCODES = 100;
+
+    private static final String[] NAMES = new String[OPCODES];
+    static {
+        String[][] names = {
+            { "10", "READ" }, { "11", "WRITE" }, { "20", "LOAD" }, { "21", "STORE" }, { "22", "LOADI" },
+            { "30", "ADD" }, { "31", "SUBT" }, { "32", "DIV" }, { "33", "MOD" }, { "34", "MULT" },
+            { "35", "ADDI" }, { "36", "SUBTI" }, { "37", "DIVI" }, { "38", "MODI" }, { "39", "MULTI" },
+            { "40", "JUMP" }, { "41", "JUMPN" }, { "42", "JUMPZ" }, { "43", "HALT" }
+        };
+        for (String[] name : names)
+            NAMES[Integer.parseInt(name[0])] = name[1];
+    }
+
+    // Counters for one processor
+    public static final class Stripe {
+        // Indexed by opcode, with words that aren't instructions counted last
+        final long[] opcodes = new long[OPCODES + 1];
+        final long[] hits;
+        final long[] reads;
+        final long[] writes;
+        final long[] taken;
+        final long[] notTaken;
+        long runs;
+        long nanos;
+
+        Stripe(int size) {
+            hits = new long[size];
+            reads = new long[size];
+            writes = new long[size];
+            taken = new long[size];
+            notTaken = new long[size];
+        }
+
+        void executed(int pc, int opCode) {
+            hits[pc]++;
+            opcodes[opCode >= 0 && opCode < OPCODES ? opCode : OPCODES]++;
+        }
+
+        void read(int address) {
+            reads[address]++;
+        }
+
+        void wrote(int address) {
+            writes[address]++;
+        }
+
+        void jump(int pc, boolean jumped) {
+            if (jumped)
+                taken[pc]++;
+            else
+                notTaken[pc]++;
+        }
+
+        void ran(long elapsed) {
+            runs++;
+            nanos += elapsed;
+        }
+
+        // Adds the other's counts to these, which cover at least as much memory
+        void add(Stripe other) {
+            Profiler.add(opcodes, other.opcodes);
+            Profiler.add(hits, other.hits);
+            Profiler.add(reads, other.reads);
+            Profiler.add(writes, other.writes);
+            Profiler.add(taken, other.taken);
+            Profiler.add(notTaken, other.notTaken);
+            runs += other.runs;
+            nanos += other.nanos;
+        }
+    }
+
+    private final Set<Stripe> running = new HashSet<>();
+    private Stripe finished = new Stripe(0);
+
+    synchronized Stripe newStripe(int size) {
+        Stripe stripe = new Stripe(size);
+        running.add(stripe);
+        return stripe;
+    }
+
+    // Adds a stripe whose run is over to the totals and forgets it
+    synchronized void retire(Stripe stripe) {
+        if (!running.remove(stripe))
+            return;
+        if (stripe.hits.length > finished.hits.length) {
+            Stripe grown = new Stripe(stripe.hits.length);
+            grown.add(finished);
+            finished = grown;
+        }
+        finished.add(stripe);
+    }
+
+    public synchronized void clear() {
+        running.clear();
+        finished = new Stripe(0);
+    }
+
+    public synchronized Snapshot snapshot() {
+        List<Stripe> stripes = new ArrayList<>(running);
+        stripes.add(finished);
+        return new Snapshot(stripes);
+    }
+
+    private static void add(long[] total, long[] counts) {
+        for (int i = 0; i < counts.length; i++)
+            total[i] += counts[i];
+    }
+
+    // Serves snapshots until the returned server is stopped
+    public HttpServer serve(InetSocketAddress address) throws IOException {
+        HttpServer server = HttpServer.create(address, 0);
+        server.createContext("/metrics", exchange ->
+                respond(exchange, "text/plain; version=0.0.4", snapshot().toPrometheus()));
+        server.createContext("/profile.json", exchange ->
+                respond(exchange, "application/json", snapshot().toJson()));
+        server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "profiler-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        return server;
+    }
+
+    private static void respond(HttpExchange exchange, String type, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // Totals over every stripe at one point in time
+    public static final class Snapshot {
+        private final long[] opcodes = new long[OPCODES + 1];
+        private final long[] hits;
+        private final long[] reads;
+        private final long[] writes;
+        private final long[] taken;
+        private final long[] notTaken;
+        private long instructions;
+        private long runs;
+        private long nanos;
+
+        Snapshot(List<Stripe> stripes) {
+            int size = 0;
+            for (Stripe stripe : stripes)
+                size = Math.max(size, stripe.hits.length);
+            hits = new long[size];
+            reads = new long[size];
+            writes = new long[size];
+            taken = new long[size];
+            notTaken = new long[size];
+
+            for (Stripe stripe : stripes) {
+                add(opcodes, stripe.opcodes);
+                add(hits, stripe.hits);
+                add(reads, stripe.reads);
+                add(writes, stripe.writes);
+                add(taken, stripe.taken);
+                add(notTaken, stripe.notTaken);
+                runs += stripe.runs;
+                nanos += stripe.nanos;
+            }
+            for (long count : opcodes)
+                instructions += count;
+        }
+
+        public long getInstructions() {
+            return instructions;
+        }
+
+        public long getOpcodeCount(int opCode) {
+            return opcodes[opCode];
+        }
+
+        public long getHits(int address) {
+            return address < hits.length ? hits[address] : 0;
+        }
+
+        public long getReads(int address) {
+            return address < reads.length ? reads[address] : 0;
+        }
+
+        public long getWrites(int address) {
+            return address < writes.length ? writes[address] : 0;
+        }
+
+        public long getTaken(int address) {
+            return address < taken.length ? taken[address] : 0;
+        }
+
+        public long getNotTaken(int address) {
+            return address < notTaken.length ? notTaken[address] : 0;
+        }
+
+        // Over the time spent inside dumpDirect; 0 before any run finished
+        public double getInstructionsPerSecond() {
+            return nanos == 0 ? 0 : instructions * 1e9 / nanos;
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\n  \"instructions\": ").append(instructions)
+                .append(",\n  \"runs\": ").append(runs)
+                .append(",\n  \"seconds\": ").append(nanos / 1e9)
+                .append(",\n  \"instructionsPerSecond\": ").append(Math.round(getInstructionsPerSecond()))
+                .append(",\n  \"opcodes\": {");
+            String separator = "";
+            for (int op = 0; op <= OPCODES; op++) {
+                if (opcodes[op] == 0)
+                    continue;
+                json.append(separator).append("\n    \"").append(name(op)).append("\": ").append(opcodes[op]);
+                separator = ",";
+            }
+            json.append("\n  },\n  \"addresses\": [");
+            separator = "";
+            for (int a = 0; a < hits.length; a++) {
+                if (hits[a] == 0 && reads[a] == 0 && writes[a] == 0)
+                    continue;
+                json.append(separator).append("\n    { \"address\": ").append(a)
+                    .append(", \"hits\": ").append(hits[a])
+                    .append(", \"reads\": ").append(reads[a])
+                    .append(", \"writes\": ").append(writes[a]);
+                if (taken[a] != 0 || notTaken[a] != 0)
+                    json.append(", \"taken\": ").append(taken[a]).append(", \"notTaken\": ").append(notTaken[a]);
+                json.append(" }");
+                separator = ",";
+            }
+            return json.append("\n  ]\n}\n").toString();
+        }
+
+        public String toPrometheus() {
+            StringBuilder text = new StringBuilder();
+            metric(text, "sml_instructions_total", "counter", "Instructions executed");
+            text.append("sml_instructions_total ").append(instructions).append('\n');
+            metric(text, "sml_runs_total", "counter", "Profiled dumpDirect runs");
+            text.append("sml_runs_total ").append(runs).append('\n');
+            metric(text, "sml_instructions_per_second", "gauge", "Instructions per second inside dumpDirect");
+            text.append("sml_instructions_per_second ").append(Math.round(getInstructionsPerSecond())).append('\n');
+
+            metric(text, "sml_opcode_executions_total", "counter", "Instructions executed by opcode");
+            for (int op = 0; op <= OPCODES; op++) {
+                if (opcodes[op] != 0)
+                    text.append("sml_opcode_executions_total{opcode=\"").append(name(op)).append("\"} ")
+                        .append(opcodes[op]).append('\n');
+            }
+            perAddress(text, "sml_address_hits_total", "Instructions executed by address", hits, "");
+            perAddress(text, "sml_memory_reads_total", "Data reads by address", reads, "");
+            perAddress(text, "sml_memory_writes_total", "Data writes by address", writes, "");
+            metric(text, "sml_jumps_total", "counter", "Conditional and unconditional jumps by address and outcome");
+            perAddress(text, "sml_jumps_total", null, taken, ",taken=\"true\"");
+            perAddress(text, "sml_jumps_total", null, notTaken, ",taken=\"false\"");
+            return text.toString();
+        }
+
+        public void writeJson(Path file) throws IOException {
+            Files.write(file, toJson().getBytes(StandardCharsets.UTF_8));
+        }
+
+        public void writePrometheus(Path file) throws IOException {
+            Files.write(file, toPrometheus().getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static void metric(StringBuilder text, String name, String type, String help) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        private static void perAddress(StringBuilder text, String name, String help, long[] counts, String labels) {
+            if (help != null)
+                metric(text, name, "counter", help);
+            for (int a = 0; a < counts.length; a++) {
+                if (counts[a] != 0)
+                    text.append(name).append("{address=\"").append(a).append('"').append(labels).append("} ")
+                        .append(counts[a]).append('\n');
+            }
+        }
+
+        private static String name(int op) {
+            if (op == OPCODES)
+                return "OTHER";
+            return NAMES[op] != null ? NAMES[op] : String.format("%02d", op);
+        }
+    }
+}
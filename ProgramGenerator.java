@@ -0,0 +1,304 @@
+import java.util.*;
+
+// Seeded generator of valid SML programs of a chosen size and shape, for
+// checking and timing the engines on more than two hand-written examples.
+//
+// Every program terminates. Loops only ever jump back from their own end,
+// after counting down a counter that nothing else writes, from a trip count
+// the loop itself loads; every other jump goes forward. Each statement
+// reduces its result with ModI, so values stay small enough that no
+// arithmetic overflows, and DIV and MOD only divide by constants that
+// aren't 0. setFaults(true) leaves some reductions out, so some programs
+// stop on an OVERFLOW or UNDERFLOW fault instead of at their HALT.
+//
+//    jmp start
+//        v0 .. vN        data, inputs are read into the first ones
+//        k0 .. kN = x    non-zero constants, never written
+//        c0 .. cD        one loop counter per nesting level
+//    start:
+//        Read v0 ...
+//        statements, loops nested setLoopDepth deep
+//        Write v0 ...
+//        Halt
+public class ProgramGenerator {
+    public enum Op { ADD, SUBT, MULT, DIV, MOD }
+
+    private static final int CONSTANTS = 4;
+    // Words of a loop besides its body: trip count, store, and the count
+    // down and jumps at its end
+    private static final int LOOP_WORDS = 7;
+
+    private final Random random;
+    private int memorySize = 1000;
+    private int loopDepth = 2;
+    private int blockSize = 6;
+    private int maxTrips = 10;
+    private int variables = 6;
+    private int inputCount = 2;
+    private double jumpDensity = 0.2;
+    private boolean faults;
+    private final EnumMap<Op, Integer> mix = new EnumMap<>(Op.class);
+
+    // One generated program with input to run it on
+    public static final class Program {
+        private final List<String> source;
+        private final int[] inputs;
+        private final int memorySize;
+        private final String shape;
+
+        Program(List<String> source, int[] inputs, int memorySize, String shape) {
+            this.source = Collections.unmodifiableList(source);
+            this.inputs = inputs;
+            this.memorySize = memorySize;
+            this.shape = shape;
+        }
+
+        // The memory size to compile it for
+        public int getMemorySize() {
+            return memorySize;
+        }
+
+        public List<String> getSource() {
+            return source;
+        }
+
+        public int[] getInputs() {
+            return inputs.clone();
+        }
+
+        // The settings it was made with, for reports
+        public String getShape() {
+            return shape;
+        }
+    }
+
+    public ProgramGenerator(long seed) {
+        random = new Random(seed);
+        for (Op op : Op.values())
+            mix.put(op, 1);
+    }
+
+    // Words the program has to fit, as for Compiler; 100 is the classic
+    // machine. Bigger programs need bigger memories.
+    public void setMemorySize(int memorySize) {
+        if (memorySize < 20 || memorySize > MachineFormat.MAX_MEMORY_SIZE)
+            throw new IllegalArgumentException("Memory size must be between 20 and " + MachineFormat.MAX_MEMORY_SIZE);
+        this.memorySize = memorySize;
+    }
+
+    // How deep loops nest; 0 gives straight-line code
+    public void setLoopDepth(int loopDepth) {
+        if (loopDepth < 0)
+            throw new IllegalArgumentException("Loop depth can't be negative: " + loopDepth);
+        this.loopDepth = loopDepth;
+    }
+
+    // Statements in the top level and in each loop body
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("Blocks need at least one statement: " + blockSize);
+        this.blockSize = blockSize;
+    }
+
+    // Each loop runs from 1 to maxTrips times
+    public void setMaxTrips(int maxTrips) {
+        if (maxTrips < 1)
+            throw new IllegalArgumentException("Loops run at least once: " + maxTrips);
+        this.maxTrips = maxTrips;
+    }
+
+    public void setVariables(int variables) {
+        if (variables < 1)
+            throw new IllegalArgumentException("Need at least one variable: " + variables);
+        this.variables = variables;
+    }
+
+    // Values read at the start, at most one per variable
+    public void setInputCount(int inputCount) {
+        if (inputCount < 0)
+            throw new IllegalArgumentException("Input count can't be negative: " + inputCount);
+        this.inputCount = inputCount;
+    }
+
+    // Chance that a statement starts a conditional jump over the next few
+    public void setJumpDensity(double jumpDensity) {
+        if (jumpDensity < 0 || jumpDensity > 1)
+            throw new IllegalArgumentException("Jump density is a probability: " + jumpDensity);
+        this.jumpDensity = jumpDensity;
+    }
+
+    // Relative weight of an operation among arithmetic statements
+    public void setWeight(Op op, int weight) {
+        if (weight < 0)
+            throw new IllegalArgumentException("Weights can't be negative: " + weight);
+        mix.put(op, weight);
+    }
+
+    public void setFaults(boolean faults) {
+        this.faults = faults;
+    }
+
+    public Program next() {
+        MachineFormat format = MachineFormat.of(memorySize);
+        int inputs = Math.min(inputCount, variables);
+        int bound = bound();
+
+        List<String> lines = new ArrayList<>();
+        lines.add("jmp start");
+        for (int v = 0; v < variables; v++)
+            lines.add("    v" + v + (v < inputs ? "" : " = " + random.nextInt(bound)));
+        for (int k = 0; k < CONSTANTS; k++)
+            lines.add("    k" + k + " = " + (1 + random.nextInt(bound - 1)));
+        for (int c = 0; c < loopDepth; c++)
+            lines.add("    c" + c);
+        lines.add("start:");
+
+        Emitter emitter = new Emitter(lines, bound, format);
+        // Words left for code besides the jump, the data, the final writes
+        // and the Halt
+        emitter.budget = memorySize - 1 - variables - CONSTANTS - loopDepth - variables - 1;
+        for (int v = 0; v < inputs; v++) {
+            emitter.emit("Read v" + v);
+            emitter.reduce("v" + v, true);
+        }
+        if (emitter.budget < 0)
+            throw new IllegalArgumentException("A " + memorySize + " word memory is too small for "
+                    + variables + " variables");
+        emitter.block(0);
+        for (int v = 0; v < variables; v++)
+            lines.add("    Write v" + v);
+        lines.add("    Halt");
+
+        String shape = "memory=" + memorySize + " depth=" + loopDepth + " block=" + blockSize + " trips="
+                + maxTrips + " vars=" + variables + " inputs=" + inputs
+                + " jumps=" + String.format("%.2f", jumpDensity)
+                + " mix=" + mix + (faults ? " faults" : "");
+        return new Program(lines, nextInputs(), memorySize, shape);
+    }
+
+    // Another input vector for programs of the current settings
+    public int[] nextInputs() {
+        int bound = bound();
+        int[] values = new int[Math.min(inputCount, variables)];
+        for (int i = 0; i < values.length; i++)
+            values[i] = random.nextInt(2 * bound + 1) - bound;
+        return values;
+    }
+
+    // Both operands of a MULT stay below this, so it can't overflow
+    private int bound() {
+        MachineFormat format = MachineFormat.of(memorySize);
+        return Math.max(2, Math.min(format.getMaxOperand(), (int) Math.sqrt(format.getMaxWord()) - 1));
+    }
+
+    // Writes statements while keeping count of the words left
+    private final class Emitter {
+        final List<String> lines;
+        final int bound;
+        final MachineFormat format;
+        int budget;
+        int labels;
+
+        Emitter(List<String> lines, int bound, MachineFormat format) {
+            this.lines = lines;
+            this.bound = bound;
+            this.format = format;
+        }
+
+        void emit(String instruction) {
+            lines.add("    " + instruction);
+            budget--;
+        }
+
+        // Brings the accumulator back into range and stores it; without
+        // faults always, with them most of the time
+        void reduce(String target, boolean always) {
+            if (always || !faults || random.nextInt(4) > 0)
+                emit("ModI " + bound);
+            emit("Store " + target);
+        }
+
+        // A level of statements; with room and depth left, one of them is a
+        // loop around the next level
+        void block(int depth) {
+            int loopAt = depth < loopDepth ? random.nextInt(blockSize) : -1;
+            Deque<String> skips = new ArrayDeque<>();
+            Deque<Integer> skipEnds = new ArrayDeque<>();
+            for (int s = 0; s < blockSize; s++) {
+                while (!skipEnds.isEmpty() && skipEnds.peek() == s) {
+                    skipEnds.pop();
+                    lines.add(skips.pop() + ":");
+                }
+                if (s == loopAt && budget >= LOOP_WORDS + 4) {
+                    loop(depth);
+                    continue;
+                }
+                if (budget < 6)
+                    break;
+                if (random.nextDouble() < jumpDensity) {
+                    String label = "L" + labels++;
+                    emit("LoadM v" + random.nextInt(variables));
+                    emit((random.nextBoolean() ? "JmpN " : "JmpZ ") + label);
+                    skips.push(label);
+                    skipEnds.push(Math.min(blockSize, s + 1 + random.nextInt(3)));
+                }
+                statement();
+            }
+            while (!skips.isEmpty())
+                lines.add(skips.pop() + ":");
+        }
+
+        void loop(int depth) {
+            String counter = "c" + depth;
+            String head = "L" + labels++;
+            String end = "L" + labels++;
+            emit("LoadI " + (1 + random.nextInt(Math.min(maxTrips, format.getMaxOperand()))));
+            emit("Store " + counter);
+            lines.add(head + ":");
+            budget -= LOOP_WORDS - 2;
+            block(depth + 1);
+            budget += LOOP_WORDS - 2;
+            emit("LoadM " + counter);
+            emit("SubtI 1");
+            emit("Store " + counter);
+            emit("JmpZ " + end);
+            emit("Jmp " + head);
+            lines.add(end + ":");
+        }
+
+        void statement() {
+            String target = "v" + random.nextInt(variables);
+            if (random.nextInt(8) == 0) {
+                emit("Write " + target);
+                return;
+            }
+            emit("LoadM v" + random.nextInt(variables));
+            Op op = pick();
+            boolean immediate = random.nextBoolean();
+            String operand;
+            if (op == Op.DIV || op == Op.MOD)
+                operand = immediate ? Integer.toString(1 + random.nextInt(bound - 1)) : "k" + random.nextInt(CONSTANTS);
+            else
+                operand = immediate ? Integer.toString(random.nextInt(bound)) : "v" + random.nextInt(variables);
+            String mnemonic = op == Op.ADD ? "Add" : op == Op.SUBT ? "Subt" : op == Op.MULT ? "Mult"
+                    : op == Op.DIV ? "Div" : "Mod";
+            emit(mnemonic + (immediate ? "I " : "M ") + operand);
+            reduce(target, false);
+        }
+
+        Op pick() {
+            int total = 0;
+            for (int weight : mix.values())
+                total += weight;
+            if (total == 0)
+                return Op.ADD;
+            int r = random.nextInt(total);
+            for (Map.Entry<Op, Integer> entry : mix.entrySet()) {
+                r -= entry.getValue();
+                if (r < 0)
+                    return entry.getKey();
+            }
+            return Op.ADD;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+import java.util.*;
+
+// Value ranges over a machine image, found by abstract interpretation from
+// the start address. The accumulator gets an interval at every reachable
+// instruction; each memory word gets one interval covering its initial
+// value and everything the program may store or read into it. Intervals
+// that keep growing are widened to the whole word range, the accumulator's
+// only where ControlFlowGraph finds a cycle entry, so straight-line code
+// and loop bodies keep exact bounds.
+//
+// Together the intervals hold in every state the program can reach, so an
+// ADD, SUBT or MULT whose result interval stays inside the word range can
+// skip its overflow check. A DIV or MOD whose divisor interval is exactly
+// zero divides by zero whenever it runs.
+//
+// Programs that may write to their own reachable code aren't analysed:
+// nothing is marked and isComplete() returns false.
+public class RangeAnalysis {
+    // Changes to one interval before it is widened
+    private static final int WIDEN_AFTER = 3;
+
+    private final int size;
+    private final int startAddress;
+    private final int maxWord;
+    private final MachineFormat format;
+    private final int[] words;
+
+    private final boolean[] reached;
+    private final int[] accLow;
+    private final int[] accHigh;
+    private final int[] accChanges;
+    private final int[] cellLow;
+    private final int[] cellHigh;
+    private final int[] cellChanges;
+    private final boolean[] written;
+
+    private final boolean[] cycleEntry;
+    private final boolean[] unchecked;
+    private final List<Integer> zeroDivisors = new ArrayList<>();
+    private boolean complete = true;
+    private boolean cellsChanged;
+
+    private RangeAnalysis(int[] words, int startAddress) {
+        this.words = words;
+        this.size = words.length;
+        this.startAddress = startAddress;
+        this.format = MachineFormat.of(size);
+        this.maxWord = format.getMaxWord();
+        reached = new boolean[size];
+        accLow = new int[size];
+        accHigh = new int[size];
+        accChanges = new int[size];
+        cellLow = words.clone();
+        cellHigh = words.clone();
+        cellChanges = new int[size];
+        written = new boolean[size];
+        unchecked = new boolean[size];
+        cycleEntry = new boolean[size];
+    }
+
+    // The accumulator may hold anything at the start address
+    public static RangeAnalysis analyze(int[] words, int startAddress) {
+        RangeAnalysis analysis = new RangeAnalysis(words.clone(), startAddress);
+        analysis.run();
+        return analysis;
+    }
+
+    public static RangeAnalysis analyze(MachineImage image) {
+        return analyze(image.getWords(), image.getStartAddress());
+    }
+
+    // False when the program may modify its own code, in which case nothing
+    // is marked
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int getStartAddress() {
+        return startAddress;
+    }
+
+    public boolean isReachable(int address) {
+        return reached[address];
+    }
+
+    public boolean isUnchecked(int address) {
+        return unchecked[address];
+    }
+
+    // Owned by the analysis; callers must not change it
+    boolean[] getUnchecked() {
+        return unchecked;
+    }
+
+    public int getUncheckedCount() {
+        int count = 0;
+        for (boolean mark : unchecked) {
+            if (mark)
+                count++;
+        }
+        return count;
+    }
+
+    // Reachable DIV, DIVI, MOD and MODI instructions whose divisor is
+    // always zero
+    public List<Integer> getZeroDivisors() {
+        return Collections.unmodifiableList(zeroDivisors);
+    }
+
+    // Accumulator interval on arrival at a reachable address
+    public int getAccumulatorLow(int address) {
+        return accLow[address];
+    }
+
+    public int getAccumulatorHigh(int address) {
+        return accHigh[address];
+    }
+
+    public int getCellLow(int address) {
+        return cellLow[address];
+    }
+
+    public int getCellHigh(int address) {
+        return cellHigh[address];
+    }
+
+    // Whether a machine about to run the instruction at counter is in a state
+    // the analysis covers, so its marks hold for the rest of the run
+    public boolean covers(int counter, int accumulator, Memory memory) {
+        if (!complete || memory.getMemSize() != size || counter < 0 || counter >= size || !reached[counter])
+            return false;
+        if (accumulator < accLow[counter] || accumulator > accHigh[counter])
+            return false;
+        for (int i = 0; i < size; i++) {
+            int word = memory.getWord(i);
+            if (word < cellLow[i] || word > cellHigh[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void run() {
+        if (startAddress < 0 || startAddress >= size)
+            return;
+        for (ControlFlowGraph.Block block : ControlFlowGraph.build(words, startAddress).getBlocks())
+            cycleEntry[block.getStart()] = block.isCycleEntry();
+        reached[startAddress] = true;
+        accLow[startAddress] = -maxWord;
+        accHigh[startAddress] = maxWord;
+
+        // Memory intervals don't depend on the address, so a pass that
+        // widens one has to revisit every instruction
+        IntRingBuffer work = new IntRingBuffer();
+        boolean[] queued = new boolean[size];
+        do {
+            cellsChanged = false;
+            for (int pc = 0; pc < size; pc++) {
+                if (reached[pc] && !queued[pc]) {
+                    queued[pc] = true;
+                    work.offer(pc);
+                }
+            }
+            while (!work.isEmpty() && complete) {
+                int pc = work.poll();
+                queued[pc] = false;
+                step(pc, work, queued);
+            }
+        } while (cellsChanged && complete);
+
+        if (!complete) {
+            Arrays.fill(reached, false);
+            return;
+        }
+        for (int pc = 0; pc < size; pc++) {
+            if (reached[pc])
+                mark(pc);
+        }
+    }
+
+    private void step(int pc, IntRingBuffer work, boolean[] queued) {
+        if (written[pc]) {
+            complete = false;
+            return;
+        }
+        int opCode = format.opCode(words[pc]);
+        int operand = format.operand(words[pc]);
+        int low = accLow[pc];
+        int high = accHigh[pc];
+        // Negative words run as unknown instructions; one whose operand is
+        // past the end of memory stops the machine with an ADDRESS fault
+        if (words[pc] < 0) {
+            flow(pc + 1, low, high, work, queued);
+            return;
+        }
+        if (MachineFormat.usesMemory(opCode) && operand >= size)
+            return;
+
+        switch (opCode) {
+            case 10:                            // READ
+                store(operand, -maxWord, maxWord);
+                flow(pc + 1, low, high, work, queued);
+                break;
+            case 11:                            // WRITE
+                flow(pc + 1, low, high, work, queued);
+                break;
+            case 20:                            // LOAD
+                flow(pc + 1, cellLow[operand], cellHigh[operand], work, queued);
+                break;
+            case 21:                            // STORE
+                store(operand, low, high);
+                flow(pc + 1, low, high, work, queued);
+                break;
+            case 22:                            // LOADI
+                flow(pc + 1, operand, operand, work, queued);
+                break;
+            case 30: case 31: case 34:
+            case 35: case 36: case 39: {
+                long[] result = arithmetic(pc);
+                // Out of range results stop the machine
+                long resultLow = Math.max(result[0], -maxWord);
+                long resultHigh = Math.min(result[1], maxWord);
+                if (resultLow <= resultHigh)
+                    flow(pc + 1, (int) resultLow, (int) resultHigh, work, queued);
+                break;
+            }
+            case 32: case 37: {                 // DIV, DIVI
+                // Division by zero leaves 0; otherwise the quotient is no
+                // further from 0 than the dividend, and keeps its sign or
+                // is 0 unless the divisor may be negative
+                int divisorLow = opCode == 32 ? cellLow[operand] : operand;
+                if (divisorLow >= 0) {
+                    flow(pc + 1, Math.min(low, 0), Math.max(high, 0), work, queued);
+                } else {
+                    int limit = Math.max(Math.abs(low), Math.abs(high));
+                    flow(pc + 1, -limit, limit, work, queued);
+                }
+                break;
+            }
+            case 33: case 38: {                 // MOD, MODI
+                int divisorLow = opCode == 33 ? cellLow[operand] : operand;
+                int divisorHigh = opCode == 33 ? cellHigh[operand] : operand;
+                if (divisorLow == 0 && divisorHigh == 0)
+                    break;                      // always faults
+                // The remainder keeps the dividend's sign and is smaller
+                // than the divisor
+                int limit = Math.max(Math.abs(divisorLow), Math.abs(divisorHigh)) - 1;
+                flow(pc + 1, Math.max(Math.min(low, 0), -limit), Math.min(Math.max(high, 0), limit), work, queued);
+                break;
+            }
+            case 40:                            // JUMP
+                flow(operand, low, high, work, queued);
+                break;
+            case 41:                            // JUMPN
+                if (low < 0)
+                    flow(operand, low, Math.min(high, -1), work, queued);
+                if (high >= 0)
+                    flow(pc + 1, Math.max(low, 0), high, work, queued);
+                break;
+            case 42:                            // JUMPZ
+                if (low <= 0 && high >= 0)
+                    flow(operand, 0, 0, work, queued);
+                if (low != 0 || high != 0)
+                    flow(pc + 1, low == 0 ? 1 : low, high == 0 ? -1 : high, work, queued);
+                break;
+            case 43:                            // HALT
+                break;
+            default:                            // unknown, skipped
+                flow(pc + 1, low, high, work, queued);
+                break;
+        }
+    }
+
+    // Result interval of an ADD, SUBT or MULT family instruction before the
+    // range check
+    private long[] arithmetic(int pc) {
+        int opCode = format.opCode(words[pc]);
+        int operand = format.operand(words[pc]);
+        long low = accLow[pc];
+        long high = accHigh[pc];
+        long valueLow = opCode < 35 ? cellLow[operand] : operand;
+        long valueHigh = opCode < 35 ? cellHigh[operand] : operand;
+        switch (opCode) {
+            case 30: case 35:
+                return new long[] { low + valueLow, high + valueHigh };
+            case 31: case 36:
+                return new long[] { low - valueHigh, high - valueLow };
+            default:
+                long a = low * valueLow, b = low * valueHigh, c = high * valueLow, d = high * valueHigh;
+                return new long[] { Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)) };
+        }
+    }
+
+    private void mark(int pc) {
+        int opCode = format.opCode(words[pc]);
+        int operand = format.operand(words[pc]);
+        if (words[pc] < 0)
+            return;
+        switch (opCode) {
+            case 30: case 31: case 34:
+            case 35: case 36: case 39:
+                // Operands past the end of memory fault before any arithmetic
+                if (operand < size || opCode >= 35) {
+                    long[] result = arithmetic(pc);
+                    unchecked[pc] = result[0] >= -maxWord && result[1] <= maxWord;
+                }
+                break;
+            case 32: case 33:
+                if (operand < size && cellLow[operand] == 0 && cellHigh[operand] == 0)
+                    zeroDivisors.add(pc);
+                break;
+            case 37: case 38:
+                if (operand == 0)
+                    zeroDivisors.add(pc);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void store(int address, int low, int high) {
+        written[address] = true;
+        if (reached[address]) {
+            complete = false;
+            return;
+        }
+        if (low >= cellLow[address] && high <= cellHigh[address])
+            return;
+        if (++cellChanges[address] > WIDEN_AFTER) {
+            low = low < cellLow[address] ? -maxWord : low;
+            high = high > cellHigh[address] ? maxWord : high;
+        }
+        cellLow[address] = Math.min(cellLow[address], low);
+        cellHigh[address] = Math.max(cellHigh[address], high);
+        cellsChanged = true;
+    }
+
+    private void flow(int target, int low, int high, IntRingBuffer work, boolean[] queued) {
+        // Running past the end of memory ends the program without a fault
+        if (target < 0 || target >= size)
+            return;
+        if (!reached[target]) {
+            reached[target] = true;
+            accLow[target] = low;
+            accHigh[target] = high;
+        } else {
+            if (low >= accLow[target] && high <= accHigh[target])
+                return;
+            if (cycleEntry[target] && ++accChanges[target] > WIDEN_AFTER) {
+                low = low < accLow[target] ? -maxWord : low;
+                high = high > accHigh[target] ? maxWord : high;
+            }
+            accLow[target] = Math.min(accLow[target], low);
+            accHigh[target] = Math.max(accHigh[target], high);
+        }
+        if (!queued[target]) {
+            queued[target] = true;
+            work.offer(target);
+        }
+    }
+}
@@ -0,0 +1,370 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Results of finished runs, keyed by the image and the READ values it is
+// given. A run depends on nothing else: the same image fed the same values
+// writes the same output and stops in the same state, so a repeated job
+// can be answered without running it. A hit has the run's warnings, such
+// as a division by zero, in its RunResult like the run itself.
+//
+// Entries are kept in a BoundedCache, and with a directory set also one
+// file per entry, which outlives the process and is looked up on a miss
+// in memory:
+//
+//    int    magic        'SMLR'
+//    short  version
+//    long   instruction limit
+//    int    input count, then the inputs
+//    int    reason, fault, address, accumulator
+//    long   instruction count
+//    int    output count, then the outputs
+//    int    warning count, then each as a short length and UTF-8 text
+//    int    word count, then the final memory
+//    int    CRC32 of everything before it
+//
+// The file name is the image digest and a digest of the inputs and the
+// limit. Disk errors only cost the disk tier its hit, never the run.
+public class ResultCache {
+    public static final String EXTENSION = ".sres";
+
+    private static final int MAGIC = 0x534D4C52;
+    private static final short VERSION = 2;
+
+    private final BoundedCache<Key, MachineRunner.Result> entries;
+    private long instructionLimit;
+    private Path directory;
+
+    private long hits;
+    private long diskHits;
+    private long misses;
+    private long instructionsSaved;
+    private long diskWrites;
+    private long diskErrors;
+
+    private static final class Key {
+        private final String image;
+        private final int[] inputs;
+        private final long limit;
+        private final int hash;
+
+        Key(String image, int[] inputs, long limit) {
+            this.image = image;
+            this.inputs = inputs.clone();
+            this.limit = limit;
+            this.hash = 31 * (31 * image.hashCode() + Arrays.hashCode(inputs)) + Long.hashCode(limit);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return hash == other.hash && limit == other.limit && image.equals(other.image)
+                    && Arrays.equals(inputs, other.inputs);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        String fileName() {
+            ByteBuffer bytes = ByteBuffer.allocate(4 * inputs.length + 8);
+            bytes.putLong(limit).asIntBuffer().put(inputs);
+            return image + "-" + MachineImage.hex(MachineImage.sha256(bytes.array())).substring(0, 32) + EXTENSION;
+        }
+    }
+
+    public ResultCache(int capacity, BoundedCache.Policy policy) {
+        entries = new BoundedCache<>(capacity, policy);
+    }
+
+    // Also keeps every entry as a file in dir, created if needed
+    public synchronized void setDirectory(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        this.directory = dir;
+    }
+
+    // As Processor.setInstructionLimit for the runs the cache makes. The
+    // limit is part of the key, so entries made under another limit miss.
+    public synchronized void setInstructionLimit(long limit) {
+        this.instructionLimit = Math.max(0, limit);
+    }
+
+    // As MachineRunner.run, answered from the cache when it can be
+    public MachineRunner.Result run(int job, MachineImage image, int... inputs) {
+        Key key;
+        Path dir;
+        synchronized (this) {
+            key = new Key(image.getDigest(), inputs, instructionLimit);
+            MachineRunner.Result cached = entries.get(key);
+            if (cached != null) {
+                hits++;
+                instructionsSaved += cached.getInstructionCount();
+                return new MachineRunner.Result(job, cached);
+            }
+            dir = directory;
+        }
+
+        MachineRunner.Result stored = dir == null ? null : readEntry(dir.resolve(key.fileName()), key);
+        if (stored != null) {
+            synchronized (this) {
+                diskHits++;
+                instructionsSaved += stored.getInstructionCount();
+                entries.put(key, stored);
+            }
+            return new MachineRunner.Result(job, stored);
+        }
+
+        Processor cpu = new Processor(image.toMemory(), image.getStartAddress());
+        cpu.setInstructionLimit(key.limit);
+        MachineRunner.Result result = MachineRunner.run(job, cpu, inputs, null);
+        synchronized (this) {
+            misses++;
+            entries.put(key, result);
+        }
+        if (dir != null)
+            writeEntry(dir.resolve(key.fileName()), key, result);
+        return result;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    // Misses in memory that the directory answered
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return entries.getEvictions();
+    }
+
+    // Instructions that hits didn't have to run
+    public synchronized long getInstructionsSaved() {
+        return instructionsSaved;
+    }
+
+    public synchronized double getHitRate() {
+        long total = hits + diskHits + misses;
+        return total == 0 ? 0 : (double) (hits + diskHits) / total;
+    }
+
+    public synchronized String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        metric(text, "sml_cache_hits_total", "counter", "Runs answered from the result cache, by tier");
+        text.append("sml_cache_hits_total{tier=\"memory\"} ").append(hits).append('\n');
+        text.append("sml_cache_hits_total{tier=\"disk\"} ").append(diskHits).append('\n');
+        metric(text, "sml_cache_misses_total", "counter", "Runs the result cache had to make");
+        text.append("sml_cache_misses_total ").append(misses).append('\n');
+        metric(text, "sml_cache_evictions_total", "counter", "Entries dropped from memory");
+        text.append("sml_cache_evictions_total ").append(entries.getEvictions()).append('\n');
+        metric(text, "sml_cache_entries", "gauge", "Entries in memory");
+        text.append("sml_cache_entries ").append(entries.size()).append('\n');
+        metric(text, "sml_cache_instructions_saved_total", "counter", "Instructions hits didn't have to run");
+        text.append("sml_cache_instructions_saved_total ").append(instructionsSaved).append('\n');
+        metric(text, "sml_cache_disk_writes_total", "counter", "Entries written to the directory");
+        text.append("sml_cache_disk_writes_total ").append(diskWrites).append('\n');
+        metric(text, "sml_cache_disk_errors_total", "counter", "Failed reads and writes of the directory");
+        text.append("sml_cache_disk_errors_total ").append(diskErrors).append('\n');
+        return text.toString();
+    }
+
+    private static void metric(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void writeEntry(Path file, Key key, MachineRunner.Result result) {
+        RunResult run = result.getRunResult();
+        int[] outputs = result.getOutputs();
+        int[] memory = result.getMemory();
+        List<byte[]> warnings = new ArrayList<>();
+        int warningBytes = 0;
+        for (String warning : run.getWarnings()) {
+            byte[] text = warning.getBytes(StandardCharsets.UTF_8);
+            warnings.add(text);
+            warningBytes += 2 + text.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 * (10 + key.inputs.length + outputs.length + memory.length)
+                + 2 * 8 + 2 + warningBytes);
+        buffer.putInt(MAGIC).putShort(VERSION).putLong(key.limit);
+        putInts(buffer, key.inputs);
+        buffer.putInt(run.getReason().ordinal()).putInt(run.getFault().ordinal())
+                .putInt(run.getAddress()).putInt(run.getAccumulator()).putLong(run.getInstructionCount());
+        putInts(buffer, outputs);
+        buffer.putInt(warnings.size());
+        for (byte[] text : warnings)
+            buffer.putShort((short) text.length).put(text);
+        putInts(buffer, memory);
+        buffer.putInt(checksum(buffer.array(), buffer.position()));
+
+        // Written aside and moved into place, so readers never see half a file
+        try {
+            Path temp = Files.createTempFile(file.getParent(), "entry", ".tmp");
+            try {
+                Files.write(temp, buffer.array());
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            synchronized (this) {
+                diskWrites++;
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                diskErrors++;
+            }
+        }
+    }
+
+    // Null when there's no entry or it's unreadable, or for other inputs
+    private MachineRunner.Result readEntry(Path file, Key key) {
+        if (!Files.isRegularFile(file))
+            return null;
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (bytes.length < 4 || checksum(bytes, bytes.length - 4) != buffer.getInt(bytes.length - 4))
+                throw new IOException(file + ": checksum mismatch");
+            if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION)
+                throw new IOException(file + ": not a result cache entry");
+            if (buffer.getLong() != key.limit || !Arrays.equals(getInts(buffer), key.inputs))
+                return null;
+            RunResult.Reason reason = RunResult.Reason.values()[buffer.getInt()];
+            RunResult.Fault fault = RunResult.Fault.values()[buffer.getInt()];
+            int address = buffer.getInt();
+            int accumulator = buffer.getInt();
+            long instructionCount = buffer.getLong();
+            int[] outputs = getInts(buffer);
+            List<String> warnings = new ArrayList<>();
+            for (int count = buffer.getInt(); warnings.size() < count; ) {
+                byte[] text = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(text);
+                warnings.add(new String(text, StandardCharsets.UTF_8));
+            }
+            int[] memory = getInts(buffer);
+            RunResult run = new RunResult(reason, fault, address, accumulator, instructionCount, warnings);
+            return new MachineRunner.Result(-1, run, memory, outputs);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                diskErrors++;
+            }
+            return null;
+        }
+    }
+
+    private static void putInts(ByteBuffer buffer, int[] values) {
+        buffer.putInt(values.length);
+        for (int value : values)
+            buffer.putInt(value);
+    }
+
+    private static int[] getInts(ByteBuffer buffer) {
+        int[] values = new int[buffer.getInt()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = buffer.getInt();
+        return values;
+    }
+
+    private static int checksum(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    // Replays a skewed stream of jobs, a few popular ones among many that
+    // come once, through both policies and then the disk tier. Every
+    // answer must match a real run.
+    public static void main(String[] args) throws IOException {
+        int jobs = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        // READ x, READ n, then x * n by repeated addition
+        MachineImage image = new MachineImage(3, new int[] {
+            0, 0, 0,
+            1000, 1001,
+            2002, 3000, 2102,
+            2001, 3601, 2101,
+            4114, 4214, 4005,
+            1102, 4300
+        });
+        Random random = new Random(42);
+        List<int[]> stream = new ArrayList<>(jobs);
+        for (int i = 0; i < jobs; i++) {
+            boolean popular = random.nextInt(10) < 7;
+            int x = popular ? random.nextInt(50) : 50 + random.nextInt(50);
+            int n = popular ? 1 + random.nextInt(4) : 5 + random.nextInt(95);
+            stream.add(new int[] { x, n });
+        }
+
+        int mismatches = 0;
+        for (BoundedCache.Policy policy : BoundedCache.Policy.values()) {
+            ResultCache cache = new ResultCache(150, policy);
+            long start = System.nanoTime();
+            for (int i = 0; i < jobs; i++) {
+                MachineRunner.Result got = cache.run(i, image, stream.get(i));
+                if (got.getJob() != i || got.getOutputs()[0] != stream.get(i)[0] * stream.get(i)[1])
+                    mismatches++;
+            }
+            System.out.printf("%-8s %5.1f%% hits, %d evictions, %d instructions saved, %.1f ms%n", policy,
+                    cache.getHitRate() * 100, cache.getEvictions(), cache.getInstructionsSaved(),
+                    (System.nanoTime() - start) / 1e6);
+        }
+
+        Path dir = Files.createTempDirectory("results");
+        try {
+            ResultCache first = new ResultCache(100, BoundedCache.Policy.TINY_LFU);
+            first.setDirectory(dir);
+            for (int i = 0; i < 500; i++)
+                first.run(i, image, stream.get(i));
+            ResultCache second = new ResultCache(100, BoundedCache.Policy.TINY_LFU);
+            second.setDirectory(dir);
+            for (int i = 0; i < 500; i++) {
+                MachineRunner.Result want = MachineRunner.run(i, image, stream.get(i));
+                MachineRunner.Result got = second.run(i, image, stream.get(i));
+                if (!Arrays.equals(want.getOutputs(), got.getOutputs()) || !Arrays.equals(want.getMemory(), got.getMemory())
+                        || want.getInstructionCount() != got.getInstructionCount()
+                        || want.getRunResult().getReason() != got.getRunResult().getReason())
+                    mismatches++;
+            }
+            if (second.getMisses() != 0)
+                mismatches++;
+
+            // LOADI 5, DIVI 0 twice, HALT: the warnings come back from disk
+            MachineImage divides = new MachineImage(0, new int[] { 2205, 3700, 3700, 4300 });
+            first.run(0, divides);
+            long diskHits = second.getDiskHits();
+            List<String> warnings = second.run(0, divides).getRunResult().getWarnings();
+            if (second.getDiskHits() != diskHits + 1 || !warnings.equals(Collections.nCopies(2, "ERROR: Cannot divide by 0.")))
+                mismatches++;
+            System.out.printf("disk     %d hits in memory, %d on disk, %d misses%n",
+                    second.getHits(), second.getDiskHits(), second.getMisses());
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files)
+                    Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+
+        System.out.println(mismatches + " mismatches");
+        if (mismatches > 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.*;
+
+// How a run of a Processor ended
+public class RunResult {
+    // Warnings kept per run; a run that keeps dividing by zero only keeps
+    // its first ones
+    public static final int MAX_WARNINGS = 100;
+
+    public enum Reason {
+        HALTED,          // HALT executed
+        END_OF_MEMORY,   // the counter ran past the last address
+        FAULT            // stopped by an error, see getFault()
+    }
+
+    public enum Fault {
+        NONE(""),
+        OVERFLOW("ERROR: Result exceeds upper value limit. Terminating Program..."),
+        UNDERFLOW("ERROR: Result exceeds lower value limit. Terminating Program..."),
+        DIVIDE_BY_ZERO("ERROR: Cannot divide by 0. Terminating Program..."),
+        INVALID_INPUT("ERROR: Input is not a number. Terminating Program..."),
+        INPUT_RANGE("ERROR: Input exceeds value limits. Terminating Program..."),
+        NO_INPUT("ERROR: No input available. Terminating Program..."),
+        INSTRUCTION_LIMIT("ERROR: Instruction limit reached. Terminating Program..."),
+        TIME_LIMIT("ERROR: Time limit reached. Terminating Program..."),
+        ADDRESS("ERROR: Address out of range. Terminating Program...");
+
+        private final String message;
+
+        Fault(String message) {
+            this.message = message;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private final Reason reason;
+    private final Fault fault;
+    private final int address;
+    private final int accumulator;
+    private final long instructionCount;
+    private final List<String> warnings;
+
+    public RunResult(Reason reason, Fault fault, int address, int accumulator, long instructionCount) {
+        this(reason, fault, address, accumulator, instructionCount, Collections.emptyList());
+    }
+
+    public RunResult(Reason reason, Fault fault, int address, int accumulator, long instructionCount,
+            List<String> warnings) {
+        this.reason = reason;
+        this.fault = fault;
+        this.address = address;
+        this.accumulator = accumulator;
+        this.instructionCount = instructionCount;
+        this.warnings = Collections.unmodifiableList(new ArrayList<>(warnings));
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    public Fault getFault() {
+        return fault;
+    }
+
+    public boolean isFault() {
+        return reason == Reason.FAULT;
+    }
+
+    // Address of the HALT or faulting instruction, or where the counter stopped
+    public int getAddress() {
+        return address;
+    }
+
+    public int getAccumulator() {
+        return accumulator;
+    }
+
+    public long getInstructionCount() {
+        return instructionCount;
+    }
+
+    // Problems the machine ran on after, in order, such as "ERROR: Cannot
+    // divide by 0."
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    @Override
+    public String toString() {
+        String where = reason + " at " + address + ", accumulator " + accumulator
+                + ", " + instructionCount + " instructions"
+                + (warnings.isEmpty() ? "" : ", " + warnings.size() + " warnings");
+        return isFault() ? fault + " " + where : where;
+    }
+}
@@ -0,0 +1,421 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Runs many machines on a few carrier threads by time slicing. A carrier
+// takes the job at the head of the run queue, runs it for one slice of
+// instructions and puts it back at the tail, so a job that never halts
+// only costs the others its share of slices until its limits stop it.
+//
+// A job whose next READ has no input yet is parked instead of requeued.
+// A waker thread looks at the parked jobs every millisecond and requeues
+// those whose input arrived or whose timeout passed.
+//
+// Slices are timed, so every job knows how much carrier time it used and
+// what share of all the time handed out that was.
+public class Scheduler implements AutoCloseable {
+    public static final long DEFAULT_SLICE = 10_000;
+
+    private static final long WAKE_INTERVAL = 1_000_000;
+
+    public enum State { QUEUED, RUNNING, PARKED, DONE }
+
+    public final class Job {
+        private final int id;
+        private final Processor cpu;
+        private final long submitted = System.nanoTime();
+        // System.nanoTime() by which the job must stop
+        private final long deadline;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile State state = State.QUEUED;
+        private volatile RunResult result;
+        private volatile long finished;
+        private volatile long runTime;
+        private volatile long slices;
+        private volatile long parks;
+        private final Consumer<Job> whenDone;
+
+        Job(int id, Processor cpu, long timeoutMillis, Consumer<Job> whenDone) {
+            this.id = id;
+            this.cpu = cpu;
+            this.whenDone = whenDone;
+            this.deadline = timeoutMillis > 0 ? submitted + timeoutMillis * 1_000_000 : Long.MAX_VALUE;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Processor getProcessor() {
+            return cpu;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        // Null until the job is done
+        public RunResult getResult() {
+            return result;
+        }
+
+        public RunResult await() throws InterruptedException {
+            done.await();
+            return result;
+        }
+
+        // Nanoseconds the job ran on a carrier
+        public long getRunTime() {
+            return runTime;
+        }
+
+        public long getSlices() {
+            return slices;
+        }
+
+        // Times the job waited for input
+        public long getParks() {
+            return parks;
+        }
+
+        // Nanoseconds from submission until the job was done, or until now
+        public long getLatency() {
+            return (state == State.DONE ? finished : System.nanoTime()) - submitted;
+        }
+
+        // Share of all the carrier time handed out so far
+        public double getCpuShare() {
+            long total = totalRunTime.get();
+            return total == 0 ? 0 : (double) runTime / total;
+        }
+
+        @Override
+        public String toString() {
+            return "job " + id + " " + state + (result != null ? ", " + result : "");
+        }
+    }
+
+    // Input that other threads fill while a scheduled machine reads it
+    public static final class Feed implements InputPort {
+        private final Queue<Integer> values = new ConcurrentLinkedQueue<>();
+        private volatile boolean closed;
+
+        public void offer(int value) {
+            values.offer(value);
+        }
+
+        // No more values will come; a READ that finds none then fails
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public boolean available() {
+            return !values.isEmpty();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed && values.isEmpty();
+        }
+
+        @Override
+        public int read() {
+            Integer value = values.poll();
+            if (value == null)
+                throw new NoSuchElementException();
+            return value;
+        }
+    }
+
+    private final long slice;
+    private final BlockingQueue<Job> ready = new LinkedBlockingQueue<>();
+    private final Set<Job> parked = ConcurrentHashMap.newKeySet();
+    private final List<Job> jobs = Collections.synchronizedList(new ArrayList<>());
+    private int nextId;
+    private final AtomicLong totalRunTime = new AtomicLong();
+    private final List<Thread> carriers = new ArrayList<>();
+    private final Thread waker;
+    private volatile boolean closed;
+
+    public Scheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_SLICE);
+    }
+
+    // slice is the number of instructions a job runs before the next one
+    // gets the carrier
+    public Scheduler(int threads, long slice) {
+        if (threads < 1 || slice < 1)
+            throw new IllegalArgumentException("Need at least one carrier and one instruction per slice");
+        this.slice = slice;
+        for (int i = 0; i < threads; i++) {
+            Thread carrier = new Thread(this::carry, "sml-carrier-" + i);
+            carrier.setDaemon(true);
+            carriers.add(carrier);
+            carrier.start();
+        }
+        waker = new Thread(this::wake, "sml-waker");
+        waker.setDaemon(true);
+        waker.start();
+    }
+
+    // Runs the processor as it is set up, with its own limits, input and
+    // output. It must not be used elsewhere until the job is done.
+    public Job submit(Processor cpu) {
+        return submit(cpu, 0);
+    }
+
+    // As submit, stopping the job with a TIME_LIMIT fault once this many
+    // milliseconds have passed since now, however long it spent queued or
+    // waiting for input
+    public Job submit(Processor cpu, long timeoutMillis) {
+        return submit(cpu, timeoutMillis, null);
+    }
+
+    // As above, and calls whenDone on the carrier once the job is done
+    public Job submit(Processor cpu, long timeoutMillis, Consumer<Job> whenDone) {
+        if (closed)
+            throw new IllegalStateException("Scheduler is closed");
+        Job job;
+        synchronized (jobs) {
+            job = new Job(nextId++, cpu, timeoutMillis, whenDone);
+            jobs.add(job);
+        }
+        ready.add(job);
+        return job;
+    }
+
+    public List<Job> getJobs() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs);
+        }
+    }
+
+    // Drops the jobs that are done from getJobs() and the report, so a
+    // long-lived scheduler doesn't keep every machine it ever ran. Returns
+    // how many went.
+    public int purge() {
+        synchronized (jobs) {
+            int before = jobs.size();
+            jobs.removeIf(job -> job.state == State.DONE);
+            return before - jobs.size();
+        }
+    }
+
+    // Waits until every job submitted so far is done
+    public void awaitAll() throws InterruptedException {
+        for (Job job : getJobs())
+            job.await();
+    }
+
+    // One line per job, with its share of the carrier time
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%6s %-7s %-18s %12s %8s %6s %10s %7s %10s%n", "job", "state",
+                "stopped by", "instructions", "slices", "parks", "run ms", "share", "latency ms"));
+        for (Job job : getJobs()) {
+            RunResult result = job.result;
+            String cause = result == null ? "" : result.isFault() ? result.getFault().toString()
+                    : result.getReason().toString();
+            report.append(String.format("%6d %-7s %-18s %12d %8d %6d %10.2f %6.2f%% %10.2f%n", job.id,
+                    job.state, cause, job.cpu.getInstructionCount(), job.slices, job.parks,
+                    job.runTime / 1e6, job.getCpuShare() * 100, job.getLatency() / 1e6));
+        }
+        return report.toString();
+    }
+
+    // Stops the carriers. Jobs that aren't done by then stop with a
+    // TIME_LIMIT fault. An interrupt doesn't cut this short, since jobs
+    // can't be finished while carriers still run them; it is passed on
+    // once they have stopped.
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread carrier : carriers)
+            carrier.interrupt();
+        waker.interrupt();
+        List<Thread> threads = new ArrayList<>(carriers);
+        threads.add(waker);
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (Job job : getJobs()) {
+            if (job.state != State.DONE) {
+                job.cpu.abort(RunResult.Fault.TIME_LIMIT);
+                job.cpu.runSlice(0);
+                finish(job);
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void carry() {
+        try {
+            while (!closed) {
+                Job job = ready.take();
+                if (closed) {
+                    ready.add(job);
+                    return;
+                }
+                run(job);
+            }
+        } catch (InterruptedException e) {
+            // closing
+        }
+    }
+
+    private void run(Job job) {
+        Processor cpu = job.cpu;
+        job.state = State.RUNNING;
+        if (System.nanoTime() >= job.deadline)
+            cpu.abort(RunResult.Fault.TIME_LIMIT);
+        long before = cpu.getRunTime();
+        boolean running = cpu.runSlice(slice);
+        long used = cpu.getRunTime() - before;
+        job.runTime += used;
+        job.slices++;
+        totalRunTime.addAndGet(used);
+
+        if (!running) {
+            finish(job);
+        } else if (cpu.isWaitingForInput()) {
+            job.parks++;
+            job.state = State.PARKED;
+            parked.add(job);
+        } else {
+            job.state = State.QUEUED;
+            ready.add(job);
+        }
+    }
+
+    private void finish(Job job) {
+        job.result = job.cpu.getResult();
+        job.finished = System.nanoTime();
+        job.state = State.DONE;
+        job.done.countDown();
+        if (job.whenDone != null)
+            job.whenDone.accept(job);
+    }
+
+    // Requeues parked jobs that can go on, or that ran out of time and
+    // have to be stopped by a carrier
+    private void wake() {
+        while (!closed) {
+            LockSupport.parkNanos(WAKE_INTERVAL);
+            if (Thread.interrupted())
+                return;
+            long now = System.nanoTime();
+            for (Iterator<Job> it = parked.iterator(); it.hasNext(); ) {
+                Job job = it.next();
+                if (now >= job.deadline || !job.cpu.isWaitingForInput()) {
+                    it.remove();
+                    job.state = State.QUEUED;
+                    ready.add(job);
+                }
+            }
+        }
+    }
+
+    // Stress check: jobs that never halt, jobs that wait for input and
+    // plain jobs share a few carriers. The plain jobs must give the same
+    // results as run alone, and every other job must stop the way its
+    // limits or its input say.
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        // JUMP 00 at address 0
+        MachineImage spin = new MachineImage(0, new int[] { 4000 });
+        // READ 00, READ 01, LOAD 00, ADD 01, STORE 00, WRITE 00, HALT
+        MachineImage sum = new MachineImage(2, new int[] { 0, 0, 1000, 1001, 2000, 3001, 2100, 1100, 4300 });
+
+        List<Job> jobs = new ArrayList<>(count);
+        List<IntRingBuffer> outputs = new ArrayList<>(count);
+        List<Feed> feeds = new ArrayList<>(count);
+        long start = System.nanoTime();
+        int mismatches = 0;
+        try (Scheduler scheduler = new Scheduler(threads, DEFAULT_SLICE)) {
+            for (int i = 0; i < count; i++) {
+                MachineImage image = i % 10 == 0 ? spin : i % 10 < 4 ? sum : MachineRunner.sumProgram(i % 100, 20);
+                Processor cpu = new Processor(image.toMemory(), image.getStartAddress());
+                IntRingBuffer output = new IntRingBuffer();
+                Feed feed = new Feed();
+                cpu.setOutput(output);
+                cpu.setInput(feed);
+                long timeout = 0;
+                // Spinners alternate between the two limits
+                if (i % 20 == 0)
+                    cpu.setInstructionLimit(200_000);
+                else if (i % 10 == 0)
+                    cpu.setTimeLimit(20);
+                // One reader in four gets no input until it times out
+                if (i % 10 == 1 && i % 40 == 1)
+                    timeout = 50;
+                jobs.add(scheduler.submit(cpu, timeout));
+                outputs.add(output);
+                feeds.add(feed);
+            }
+
+            // Input arrives later, so the readers park first
+            Thread.sleep(20);
+            for (int i = 0; i < count; i++) {
+                if (i % 10 == 2 || i % 10 == 3 || (i % 10 == 1 && i % 40 != 1)) {
+                    feeds.get(i).offer(i);
+                    if (i % 10 == 3)
+                        feeds.get(i).close();
+                    else
+                        feeds.get(i).offer(1);
+                }
+            }
+            scheduler.awaitAll();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long plainRun = 0, spinRun = 0, parks = 0;
+        double plainLatency = 0;
+        for (int i = 0; i < count; i++) {
+            Job job = jobs.get(i);
+            RunResult result = job.getResult();
+            int[] output = outputs.get(i).toArray();
+            boolean ok;
+            if (i % 10 == 0) {
+                ok = result.getFault() == (i % 20 == 0 ? RunResult.Fault.INSTRUCTION_LIMIT : RunResult.Fault.TIME_LIMIT)
+                        && (i % 20 != 0 || result.getInstructionCount() == 200_000);
+                spinRun += job.getRunTime();
+            } else if (i % 10 == 1 && i % 40 == 1) {
+                ok = result.getFault() == RunResult.Fault.TIME_LIMIT && output.length == 0;
+            } else if (i % 10 == 3) {
+                ok = result.getFault() == RunResult.Fault.NO_INPUT && output.length == 0;
+            } else if (i % 10 < 4) {
+                ok = result.getReason() == RunResult.Reason.HALTED && Arrays.equals(output, new int[] { i + 1 });
+            } else {
+                MachineRunner.Result want = MachineRunner.run(i, MachineRunner.sumProgram(i % 100, 20));
+                ok = result.getReason() == RunResult.Reason.HALTED && Arrays.equals(output, want.getOutputs())
+                        && result.getInstructionCount() == want.getInstructionCount();
+                plainRun += job.getRunTime();
+                plainLatency = Math.max(plainLatency, job.getLatency() / 1e6);
+            }
+            parks += job.getParks();
+            if (!ok) {
+                mismatches++;
+                System.out.println("Job " + i + " mismatch: " + result + ", output " + Arrays.toString(output));
+            }
+        }
+
+        System.out.printf("%d jobs on %d carriers in %.1f ms, %d parks; spinners used %.1f ms, plain jobs %.1f ms"
+                + " (slowest %.1f ms after submission); %d mismatches%n", count, threads, elapsed / 1e6, parks,
+                spinRun / 1e6, plainRun / 1e6, plainLatency, mismatches);
+        if (mismatches > 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Non-interactive execution trace in the same layout as dumpStep. A frame
+// is rendered as ASCII into reused byte arrays and goes out through a
+// channel a buffer at a time, so tracing a long run allocates nothing per
+// step. The memory grid is fixed width: between samples only the cells
+// whose word changed are rewritten.
+public class TraceRenderer implements Closeable {
+    public enum Sampling { EVERY_STEP, EVERY_N, ON_JUMP }
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+
+    private final WritableByteChannel out;
+    private final ByteBuffer buffer;
+    private final Sampling sampling;
+    private final int interval;
+    private boolean incremental = true;
+
+    // Register block; its width depends on the values shown
+    private final byte[] registers = new byte[256];
+    private int registersLength;
+
+    // Field widths of the memory being traced, set up with the grid
+    private MachineFormat format;
+    private int addressDigits;
+    private int wordDigits;
+
+    // Memory grid, with the offset of each cell and the word it shows
+    private byte[] grid;
+    private int[] cellOffsets;
+    private int[] shown;
+    private boolean gridValid;
+
+    private long frames;
+    private long cellsRendered;
+
+    public TraceRenderer(WritableByteChannel out, Sampling sampling, int interval) {
+        this(out, sampling, interval, 64 * 1024);
+    }
+
+    // interval is only used by EVERY_N
+    public TraceRenderer(WritableByteChannel out, Sampling sampling, int interval, int bufferSize) {
+        if (sampling == Sampling.EVERY_N && interval < 1)
+            throw new IllegalArgumentException("Sampling interval must be at least 1: " + interval);
+        this.out = out;
+        this.sampling = sampling;
+        this.interval = interval;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 4096));
+    }
+
+    public static TraceRenderer toFile(Path file, Sampling sampling, int interval) throws IOException {
+        return new TraceRenderer(FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), sampling, interval);
+    }
+
+    // Off: every frame formats the whole grid again
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    // Memory cells formatted so far, over all frames
+    public long getCellsRendered() {
+        return cellsRendered;
+    }
+
+    // Whether the step about to run is sampled; step counts from 0
+    boolean wants(long step, int opCode) {
+        switch (sampling) {
+            case EVERY_N:
+                return step % interval == 0;
+            case ON_JUMP:
+                return opCode >= 40 && opCode <= 42;
+            default:
+                return true;
+        }
+    }
+
+    // One frame: what dumpStep prints for the state before the instruction
+    // at pc runs, followed by the blank line it prints after it
+    void render(int accumulator, int pc, Memory memory) throws IOException {
+        int size = memory.getMemSize();
+        if (grid == null || cellOffsets.length != size)
+            layoutGrid(size);
+        renderRegisters(accumulator, pc, memory.getWord(pc));
+        renderGrid(memory);
+
+        if (buffer.remaining() < registersLength + grid.length + NEWLINE.length)
+            drain();
+        put(registers, registersLength);
+        put(grid, grid.length);
+        put(NEWLINE, NEWLINE.length);
+        frames++;
+    }
+
+    // The grid of a large memory can be bigger than the whole buffer
+    private void put(byte[] bytes, int length) throws IOException {
+        for (int p = 0; p < length; ) {
+            if (!buffer.hasRemaining())
+                drain();
+            int chunk = Math.min(length - p, buffer.remaining());
+            buffer.put(bytes, p, chunk);
+            p += chunk;
+        }
+    }
+
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            out.write(buffer);
+        buffer.clear();
+    }
+
+    private void renderRegisters(int accumulator, int pc, int word) {
+        int p = 0;
+        p = text(registers, p, NEWLINE);
+        p = line(registers, p, "REGISTERS:");
+        p = label(registers, p, "accumulator:", 11);
+        p = signed(registers, p, accumulator);
+        p = text(registers, p, NEWLINE);
+
+        p = label(registers, p, "programCounter:", 11);
+        p = padded(registers, p, pc, addressDigits);
+        p = text(registers, p, NEWLINE);
+
+        // Right aligned one wider than a positive word, like %5s
+        p = label(registers, p, "instructionRegister:", word < 0 ? 3 : 4);
+        p = padded(registers, p, word, word < 0 ? wordDigits + 1 : wordDigits);
+        p = text(registers, p, NEWLINE);
+
+        p = label(registers, p, "operationCode:", 12);
+        p = padded(registers, p, format.opCode(word), 2);
+        p = text(registers, p, NEWLINE);
+        p = label(registers, p, "operand:", 18);
+        p = padded(registers, p, format.operand(word), addressDigits);
+        p = text(registers, p, NEWLINE);
+        p = text(registers, p, NEWLINE);
+        registersLength = p;
+    }
+
+    private void renderGrid(Memory memory) {
+        int size = memory.getMemSize();
+        int[] words = memory.readOnlyWords();
+        for (int i = 0; i < size; i++) {
+            int word = words[i];
+            if (gridValid && incremental && shown[i] == word)
+                continue;
+            signed(grid, cellOffsets[i], word);
+            shown[i] = word;
+            cellsRendered++;
+        }
+        gridValid = true;
+    }
+
+    // Fixed parts of the grid: title, column header and row labels. Every
+    // cell is one character wider than a word whatever its sign.
+    private void layoutGrid(int size) {
+        format = MachineFormat.of(size);
+        addressDigits = format.getOperandDigits();
+        wordDigits = format.getWordDigits();
+        int cellWidth = wordDigits + 5;
+        int rows = (size + 9) / 10;
+        int rowWidth = addressDigits + 4 + 10 * cellWidth + NEWLINE.length;
+        grid = new byte[8 + NEWLINE.length + rowWidth * (rows + 1)];
+        cellOffsets = new int[size];
+        shown = new int[size];
+        gridValid = false;
+
+        int p = line(grid, 0, "MEMORY:");
+        p = spaces(grid, p, addressDigits + 4);
+        for (int i = 0; i < 10; i++) {
+            p = spaces(grid, p, wordDigits);
+            p = padded(grid, p, i, 1);
+            p = spaces(grid, p, 4);
+        }
+        p = text(grid, p, NEWLINE);
+
+        for (int i = 0; i < size; i++) {
+            if (i % 10 == 0) {
+                p = padded(grid, p, i, addressDigits);
+                p = spaces(grid, p, 4);
+            }
+            cellOffsets[i] = p;
+            p = spaces(grid, p, cellWidth);
+            if (i % 10 == 9 || i == size - 1)
+                p = text(grid, p, NEWLINE);
+        }
+        if (p != grid.length)
+            grid = Arrays.copyOf(grid, p);
+    }
+
+    private static int label(byte[] to, int p, String label, int pad) {
+        for (int i = 0; i < label.length(); i++)
+            to[p++] = (byte) label.charAt(i);
+        return spaces(to, p, pad);
+    }
+
+    private static int line(byte[] to, int p, String text) {
+        p = label(to, p, text, 0);
+        return text(to, p, NEWLINE);
+    }
+
+    private static int text(byte[] to, int p, byte[] text) {
+        System.arraycopy(text, 0, to, p, text.length);
+        return p + text.length;
+    }
+
+    private static int spaces(byte[] to, int p, int count) {
+        for (int i = 0; i < count; i++)
+            to[p++] = ' ';
+        return p;
+    }
+
+    // A word as dumpStep shows it: "+0005" or "-0005"
+    private int signed(byte[] to, int p, int value) {
+        if (value >= 0)
+            to[p++] = '+';
+        return padded(to, p, value, value < 0 ? wordDigits + 1 : wordDigits);
+    }
+
+    // %0<width>d, where a minus sign counts towards the width
+    private static int padded(byte[] to, int p, int value, int width) {
+        int digits = width;
+        if (value < 0) {
+            to[p++] = '-';
+            value = -value;
+            digits--;
+        }
+        int length = 1;
+        for (int v = value / 10; v != 0; v /= 10)
+            length++;
+        length = Math.max(length, digits);
+        for (int i = p + length - 1; i >= p; i--) {
+            to[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return p + length;
+    }
+}
@@ -0,0 +1,328 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Benchmarks for the compiler, loader and processor hot paths.
+//
+//    javac -d out *.java bench/*.java
+//    java -cp out Bench [benchmark ...]
+//
+// Each benchmark is warmed up, then measured over several iterations on the
+// same seeded workload. Allocation per operation comes from the JVM's
+// per-thread allocation counter, so new per-instruction garbage shows up as a
+// jump in bytes/op.
+public class Bench {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 500_000_000L;
+    private static final long SEED = 42;
+
+    interface Workload {
+        // Runs one operation and returns how many units of work it did
+        long run() throws Exception;
+    }
+
+    private static final Map<String, Workload> benchmarks = new LinkedHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        register();
+
+        List<String> names = args.length > 0 ? Arrays.asList(args) : new ArrayList<>(benchmarks.keySet());
+        System.out.printf("%-24s %16s %14s %14s%n", "benchmark", "units/s", "ns/op", "bytes/op");
+        for (String name : names) {
+            Workload workload = benchmarks.get(name);
+            if (workload == null) {
+                System.out.println("Unknown benchmark: " + name);
+                continue;
+            }
+            measure(name, workload);
+        }
+    }
+
+    private static void register() throws Exception {
+        MachineImage loop = Workloads.compile(Workloads.loopProgram(SEED, 30, 30, 4));
+        benchmarks.put("interpreter", () -> runImage(loop, false, false));
+        benchmarks.put("fused", () -> runImage(loop, true, false));
+        benchmarks.put("jit", () -> runImage(loop, false, true));
+
+        // Arithmetic that RangeAnalysis proves in range, with and without
+        // its range checks
+        MachineImage lcg = Workloads.compile(Workloads.lcgProgram(SEED, 1000, 4));
+        RangeAnalysis lcgRanges = RangeAnalysis.analyze(lcg);
+        benchmarks.put("checked", () -> runImage(lcg, true, false, null));
+        benchmarks.put("unchecked", () -> runImage(lcg, true, false, lcgRanges));
+
+        // One image over many input vectors: a Processor per vector against
+        // one lockstep batch. Units are instructions.
+        MachineImage readLoop = Workloads.compile(Workloads.readLoopProgram());
+        List<int[]> vectors = Workloads.loopInputs(SEED, 1000, 50);
+        benchmarks.put("serial", () -> {
+            long instructions = 0;
+            for (int[] vector : vectors) {
+                Processor cpu = new Processor(readLoop.toMemory(), readLoop.getStartAddress());
+                cpu.setInput(IntRingBuffer.of(vector));
+                cpu.setOutput(value -> { });
+                instructions += cpu.dumpDirect().getInstructionCount();
+            }
+            return instructions;
+        });
+        benchmarks.put("lockstep", () -> {
+            long instructions = 0;
+            for (MachineRunner.Result result : new LockstepBatch(readLoop, vectors).run())
+                instructions += result.getInstructionCount();
+            return instructions;
+        });
+
+        // A small program run once per request; units are runs. 'cold'
+        // starts `java Compiler file.sml -d` for each, 'client' a
+        // DaemonClient against a daemon in this JVM, and 'daemon' sends
+        // 100 runs down one open connection to it.
+        Path programDir = Files.createTempDirectory("bench");
+        programDir.toFile().deleteOnExit();
+        Path readLoopSource = programDir.resolve("readloop.sml");
+        Path readLoopInput = programDir.resolve("input.txt");
+        for (Path file : Arrays.asList(readLoopSource, readLoopInput, programDir.resolve(BuildCache.FILE_NAME),
+                BuildCache.machFile(readLoopSource), BuildCache.imageFile(readLoopSource)))
+            file.toFile().deleteOnExit();
+        Files.write(readLoopSource, Workloads.readLoopProgram());
+        Files.write(readLoopInput, Arrays.asList("7", "5"));
+        Daemon daemon = new Daemon(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), programDir,
+                new Compiler(), 2, 0, Daemon.DEFAULT_TIME_LIMIT);
+        String port = "-p" + ((InetSocketAddress) daemon.getAddress()).getPort();
+        benchmarks.put("cold", () -> launch(readLoopInput, "35", "Compiler", readLoopSource.toString(), "-d"));
+        benchmarks.put("client", () -> launch(readLoopInput, "35", "DaemonClient", readLoopSource.toString(), port));
+        DaemonClient client = DaemonClient.connect(daemon.getAddress());
+        List<Path> runSources = Collections.nCopies(100, readLoopSource);
+        List<int[]> runInputs = vectors.subList(0, 100);
+        benchmarks.put("daemon", () -> {
+            List<DaemonClient.Run> runs = client.runAll(runSources, runInputs);
+            for (int i = 0; i < runs.size(); i++) {
+                int[] input = runInputs.get(i);
+                if (!runs.get(i).getOutputs().equals(Collections.singletonList(input[0] * input[1])))
+                    throw new IllegalStateException(runs.get(i).toString());
+            }
+            return runs.size();
+        });
+
+        // Recording against plain dumpDirect on a longer run, so opening
+        // the log and allocating its buffer don't dominate; units are
+        // instructions. 'record' drops the log to show the processor's
+        // share, 'recordFile' adds the file writes.
+        MachineImage longLoop = Workloads.compile(Workloads.loopProgram(SEED, 200, 200, 4));
+        Path log = Files.createTempFile("bench", ExecutionRecorder.EXTENSION);
+        log.toFile().deleteOnExit();
+        benchmarks.put("direct", () -> runImage(longLoop, true, false));
+        benchmarks.put("record", () -> recordImage(longLoop, new ExecutionRecorder(discard(), 64 * 1024)));
+        benchmarks.put("recordFile", () -> recordImage(longLoop, new ExecutionRecorder(log)));
+
+        // Profiling counts into one stripe per run
+        Profiler profiler = new Profiler();
+        benchmarks.put("profile", () -> {
+            profiler.clear();
+            Processor cpu = new Processor(longLoop.toMemory(), longLoop.getStartAddress());
+            cpu.setOutput(value -> { });
+            cpu.setProfiler(profiler);
+            cpu.dumpDirect();
+            return cpu.getInstructionCount();
+        });
+
+        // Jobs that share a setup prefix: cold starts load the image and run
+        // it all, warm starts fork from a snapshot taken at the READ. Units
+        // are jobs.
+        MachineImage setup = Workloads.compile(Workloads.setupThenRead(SEED, 20, 20));
+        Path setupImage = Files.createTempFile("bench", ImageFile.EXTENSION);
+        setupImage.toFile().deleteOnExit();
+        ImageFile.write(setupImage, setup);
+        Processor init = new Processor(setup.toMemory(), setup.getStartAddress());
+        init.setOutput(value -> { });
+        init.runToInput();
+        MachineSnapshot snapshot = init.snapshot();
+        benchmarks.put("coldStart", () -> {
+            for (int job = 0; job < 100; job++) {
+                Memory memory = new Memory(100);
+                int start = Loader.loadProgramFromImage(memory, setupImage.toString());
+                runJob(new Processor(memory, start), job);
+            }
+            return 100;
+        });
+        benchmarks.put("warmStart", () -> {
+            for (int job = 0; job < 100; job++)
+                runJob(snapshot.fork(), job);
+            return 100;
+        });
+
+        // Units are frames, written to a channel that drops them
+        benchmarks.put("trace", () -> traceImage(loop, true));
+        benchmarks.put("traceFull", () -> traceImage(loop, false));
+
+        // Units are source lines, over a batch of seeded programs
+        List<List<String>> sources = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            sources.add(Workloads.jumpySource(SEED + i, 10));
+        Compiler compiler = new Compiler();
+        benchmarks.put("compile", () -> {
+            long lines = 0;
+            for (List<String> source : sources) {
+                compiler.compile(source);
+                lines += source.size();
+            }
+            return lines;
+        });
+        // One large source in a 10000-word memory, for the cost of big
+        // symbol and label tables; 1200 blocks take about 9600 words
+        List<String> large = Workloads.jumpySource(SEED, 1200);
+        Compiler largeCompiler = new Compiler(10000);
+        benchmarks.put("compileLarge", () -> {
+            largeCompiler.compile(large);
+            return large.size();
+        });
+
+        Path mach = Files.createTempFile("bench", ".mach");
+        mach.toFile().deleteOnExit();
+        Workloads.writeMach(loop, mach);
+        benchmarks.put("load", () -> {
+            Memory memory = new Memory(100);
+            Loader.loadProgramFromFile(memory, mach.toString());
+            return memory.getMemSize();
+        });
+
+        Path simg = Files.createTempFile("bench", ImageFile.EXTENSION);
+        simg.toFile().deleteOnExit();
+        ImageFile.write(simg, loop);
+        benchmarks.put("loadImage", () -> {
+            Memory memory = new Memory(100);
+            Loader.loadProgramFromImage(memory, simg.toString());
+            return memory.getMemSize();
+        });
+
+        String[] words = new String[100];
+        for (int i = 0; i < words.length; i++)
+            words[i] = Memory.format(loop.getWord(i));
+        Memory target = new Memory(100);
+        benchmarks.put("addItem", () -> {
+            for (int i = 0; i < words.length; i++)
+                target.addItem(i, words[i]);
+            return words.length;
+        });
+    }
+
+    private static long runImage(MachineImage image, boolean fusion, boolean jit) {
+        return runImage(image, fusion, jit, null);
+    }
+
+    private static long runImage(MachineImage image, boolean fusion, boolean jit, RangeAnalysis ranges) {
+        Processor cpu = new Processor(image.toMemory(), image.getStartAddress());
+        cpu.setOutput(value -> { });
+        cpu.setFusion(fusion);
+        cpu.setJit(jit);
+        cpu.setRangeAnalysis(ranges);
+        cpu.dumpDirect();
+        return cpu.getInstructionCount();
+    }
+
+    // Runs a main class in a new JVM on this classpath, feeding it input,
+    // and checks that what it prints contains expected
+    private static long launch(Path input, String expected, String... command) throws Exception {
+        List<String> line = new ArrayList<>(Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path")));
+        line.addAll(Arrays.asList(command));
+        Process process = new ProcessBuilder(line).redirectInput(input.toFile()).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        if (process.waitFor() != 0 || !output.contains(expected))
+            throw new IllegalStateException(String.join(" ", command) + " printed: " + output);
+        return 1;
+    }
+
+    private static void runJob(Processor cpu, int input) {
+        cpu.setInput(IntRingBuffer.of(input));
+        cpu.setOutput(value -> {
+            if (value != input)
+                throw new IllegalStateException("Job " + input + " wrote " + value);
+        });
+        cpu.dumpDirect();
+    }
+
+    private static long recordImage(MachineImage image, ExecutionRecorder recorder) throws IOException {
+        Processor cpu = new Processor(image.toMemory(), image.getStartAddress());
+        cpu.setOutput(value -> { });
+        try (recorder) {
+            cpu.setRecorder(recorder);
+            cpu.dumpDirect();
+        }
+        return cpu.getInstructionCount();
+    }
+
+    private static long traceImage(MachineImage image, boolean incremental) throws IOException {
+        Processor cpu = new Processor(image.toMemory(), image.getStartAddress());
+        cpu.setOutput(value -> { });
+        TraceRenderer trace = new TraceRenderer(discard(), TraceRenderer.Sampling.EVERY_STEP, 1);
+        trace.setIncremental(incremental);
+        cpu.trace(trace);
+        return trace.getFrames();
+    }
+
+    // A channel that accepts and drops everything
+    private static WritableByteChannel discard() {
+        return new WritableByteChannel() {
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                src.position(src.limit());
+                return n;
+            }
+            public boolean isOpen() {
+                return true;
+            }
+            public void close() {
+            }
+        };
+    }
+
+    private static void measure(String name, Workload workload) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            iteration(workload);
+
+        double[] unitsPerSec = new double[MEASURE_ITERATIONS];
+        double nsPerOp = 0;
+        double bytesPerOp = 0;
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            long[] r = iteration(workload);
+            unitsPerSec[i] = r[1] * 1e9 / r[2];
+            nsPerOp += (double) r[2] / r[0];
+            bytesPerOp += (double) r[3] / r[0];
+        }
+        Arrays.sort(unitsPerSec);
+        System.out.printf("%-24s %16.0f %14.1f %14.1f%n", name,
+                unitsPerSec[MEASURE_ITERATIONS / 2],
+                nsPerOp / MEASURE_ITERATIONS,
+                bytesPerOp / MEASURE_ITERATIONS);
+    }
+
+    // {operations, units, elapsed nanos, allocated bytes}
+    private static long[] iteration(Workload workload) throws Exception {
+        long ops = 0;
+        long units = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            units += workload.run();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        long allocated = allocatedBytes() - allocatedBefore;
+        return new long[] { ops, units, elapsed, allocated };
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Reproducible programs for the benchmarks. Every generator takes a seed so
+// two runs of the same benchmark see the same code.
+public class Workloads {
+
+    // Two nested counting loops whose body is a seeded mix of ADDM/SUBTM
+    // pairs on a running sum, so the sum never drifts out of range
+    public static List<String> loopProgram(long seed, int outer, int inner, int bodyOps) {
+        Random random = new Random(seed);
+        List<String> lines = new ArrayList<>();
+        lines.add("jmp start");
+        lines.add("    i");
+        lines.add("    j");
+        lines.add("    sum = 0");
+        lines.add("    one = 1");
+        lines.add("    n1 = " + outer);
+        lines.add("    n2 = " + inner);
+        for (int k = 0; k < bodyOps; k++)
+            lines.add("    k" + k + " = " + (1 + random.nextInt(50)));
+        lines.add("start:");
+        lines.add("    LoadM n1");
+        lines.add("    Store i");
+        lines.add("outer:");
+        lines.add("    LoadM n2");
+        lines.add("    Store j");
+        lines.add("inner:");
+        lines.add("    LoadM sum");
+        for (int k = 0; k < bodyOps; k++) {
+            lines.add("    AddM k" + k);
+            lines.add("    SubtM k" + k);
+        }
+        lines.add("    Store sum");
+        lines.add("    LoadM j");
+        lines.add("    SubtM one");
+        lines.add("    Store j");
+        lines.add("    JmpZ next");
+        lines.add("    Jmp inner");
+        lines.add("next:");
+        lines.add("    LoadM i");
+        lines.add("    SubtM one");
+        lines.add("    Store i");
+        lines.add("    JmpZ done");
+        lines.add("    Jmp outer");
+        lines.add("done:");
+        lines.add("    Write sum");
+        lines.add("    Halt");
+        return lines;
+    }
+
+    // loopProgram's loops as a fixed setup prefix, then one READ whose value
+    // is added to the sum and written out
+    public static List<String> setupThenRead(long seed, int outer, int inner) {
+        List<String> lines = loopProgram(seed, outer, inner, 2);
+        lines.add(1, "    x");
+        lines.subList(lines.size() - 2, lines.size()).clear();
+        lines.addAll(Arrays.asList("    Read x", "    LoadM x", "    AddM sum", "    Store sum",
+                "    Write sum", "    Halt"));
+        return lines;
+    }
+
+    // A counting loop around bodyOps seeded linear congruential updates of
+    // r, each reduced modulo 97. r stays below 97, so RangeAnalysis can
+    // prove that the updates never overflow; the counter needs its checks.
+    public static List<String> lcgProgram(long seed, int iterations, int bodyOps) {
+        Random random = new Random(seed);
+        List<String> lines = new ArrayList<>();
+        lines.add("jmp loop");
+        lines.add("    r = " + random.nextInt(97));
+        lines.add("    n = " + iterations);
+        lines.add("    one = 1");
+        lines.add("loop:");
+        for (int k = 0; k < bodyOps; k++) {
+            lines.add("    LoadM r");
+            lines.add("    MultI " + (2 + random.nextInt(98)));
+            lines.add("    AddI " + (1 + random.nextInt(99)));
+            lines.add("    ModI 97");
+            lines.add("    Store r");
+        }
+        lines.add("    LoadM n");
+        lines.add("    SubtM one");
+        lines.add("    Store n");
+        lines.add("    JmpZ done");
+        lines.add("    Jmp loop");
+        lines.add("done:");
+        lines.add("    Write r");
+        lines.add("    Halt");
+        return lines;
+    }
+
+    // Reads x and n, then adds x to a sum n times and writes the sum, so
+    // the loop runs as often as the input says
+    public static List<String> readLoopProgram() {
+        return Arrays.asList(
+                "jmp start",
+                "    x",
+                "    n",
+                "    sum = 0",
+                "start:",
+                "    Read x",
+                "    Read n",
+                "loop:",
+                "    LoadM sum",
+                "    AddM x",
+                "    Store sum",
+                "    LoadM n",
+                "    SubtI 1",
+                "    Store n",
+                "    JmpZ done",
+                "    Jmp loop",
+                "done:",
+                "    Write sum",
+                "    Halt");
+    }
+
+    // Input vectors for readLoopProgram: small x, 1 to maxTrips trips
+    public static List<int[]> loopInputs(long seed, int count, int maxTrips) {
+        Random random = new Random(seed);
+        List<int[]> inputs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            inputs.add(new int[] { random.nextInt(20), 1 + random.nextInt(maxTrips) });
+        return inputs;
+    }
+
+    // Source for compile latency: blocks of variables, labels and forward
+    // and backward jumps. Ten blocks still fit the 100-word memory, and
+    // each block takes eight words.
+    public static List<String> jumpySource(long seed, int blocks) {
+        Random random = new Random(seed);
+        String[] ops = { "LoadM", "AddM", "SubtM", "MultM", "Store", "Write" };
+        List<String> lines = new ArrayList<>();
+        lines.add("jmp b0");
+        for (int b = 0; b < blocks; b++)
+            lines.add("    v" + b + " = " + random.nextInt(100));
+        for (int b = 0; b < blocks; b++) {
+            lines.add("b" + b + ":");
+            for (int i = 0; i < 6; i++)
+                lines.add("    " + ops[random.nextInt(ops.length)] + " v" + random.nextInt(blocks));
+            lines.add("    JmpZ b" + random.nextInt(blocks));
+        }
+        lines.add("    Halt");
+        return lines;
+    }
+
+    public static MachineImage compile(List<String> source) {
+        try {
+            return new Compiler().compile(source).getImage();
+        } catch (CompileException e) {
+            throw new IllegalStateException("Workload failed to compile: " + e.getMessage());
+        }
+    }
+
+    // Writes an image in the text .mach format the Loader reads
+    public static Path writeMach(MachineImage image, Path file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file))) {
+            writer.println("// Variables (addresses 0-" + (image.getStartAddress() - 1) + ")");
+            for (int i = 0; i < image.getWordCount(); i++) {
+                if (i == image.getStartAddress())
+                    writer.println("// Instructions (starting at address " + i + ")");
+                writer.println(Memory.format(image.getWord(i)) + "  // " + i);
+            }
+        }
+        return file;
+    }
+}